@@ -0,0 +1,188 @@
+package com.shrimp.android.ble;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.shrimp.android.ble.bluetooth.BluetoothDeviceRegistry;
+import com.shrimp.android.ble.bluetooth.GattSessionRecorder;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble
+ * 类描述： 设备列表：稳定ID（地址转成long），每次提交新列表时用DiffUtil算出差异，只刷新变化的行；
+ *          只有信号强度和最后出现时间变化时用payload局部更新，不重新绑定名称和地址
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.ViewHolder> {
+
+    /**
+     * 只更新rssi和最后出现时间
+     */
+    private static final Object PAYLOAD_LIVE = new Object();
+
+    public interface OnItemClickListener {
+        void onItemClick(Item item);
+    }
+
+    /**
+     * 一行的内容，不可变，提交后不要再修改
+     */
+    public static final class Item {
+        final String address;
+        final long id;
+        final String name;
+        final int rssi;
+        // 距离最后一次出现的秒数，-1表示这次没扫描到（只是连接过）
+        final long seenSecondsAgo;
+
+        public Item(String address, String name, int rssi, long seenSecondsAgo) {
+            this.address = address;
+            this.id = GattSessionRecorder.addressToLong(address);
+            this.name = name;
+            this.rssi = rssi;
+            this.seenSecondsAgo = seenSecondsAgo;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        boolean sameContent(Item other) {
+            return rssi == other.rssi && seenSecondsAgo == other.seenSecondsAgo && sameIdentity(other);
+        }
+
+        boolean sameIdentity(Item other) {
+            return name == null ? other.name == null : name.equals(other.name);
+        }
+    }
+
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView detail;
+        final TextView live;
+        // 复用的缓冲，绑定时不做字符串拼接
+        final StringBuilder text = new StringBuilder(64);
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            detail = (TextView) itemView.findViewById(R.id.item_detail);
+            live = (TextView) itemView.findViewById(R.id.item_live);
+        }
+    }
+
+    private List<Item> items = Collections.emptyList();
+    private OnItemClickListener listener;
+
+    public DeviceListAdapter() {
+        setHasStableIds(true);
+    }
+
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 提交新的列表，在主线程调用。顺序应尽量稳定（如按第一次出现的时间），差异只剩插入、删除和内容变化
+     */
+    public void submit(final List<Item> newItems) {
+        final List<Item> oldItems = items;
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldItems.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newItems.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldItems.get(oldPosition).id == newItems.get(newPosition).id;
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return oldItems.get(oldPosition).sameContent(newItems.get(newPosition));
+            }
+
+            @Override
+            public Object getChangePayload(int oldPosition, int newPosition) {
+                return oldItems.get(oldPosition).sameIdentity(newItems.get(newPosition)) ? PAYLOAD_LIVE : null;
+            }
+        }, false);
+        items = newItems;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    public Item getItem(int position) {
+        return items.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return items.get(position).id;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_bluetooth, parent, false);
+        final ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (listener != null && position != RecyclerView.NO_POSITION) {
+                    listener.onItemClick(items.get(position));
+                }
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (!payloads.isEmpty()) {
+            bindLive(holder, items.get(position));
+            return;
+        }
+        onBindViewHolder(holder, position);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        Item item = items.get(position);
+        StringBuilder text = holder.text;
+        text.setLength(0);
+        text.append("name：").append(item.name).append("\naddress：").append(item.address);
+        holder.detail.setText(text);
+        bindLive(holder, item);
+    }
+
+    private static void bindLive(ViewHolder holder, Item item) {
+        StringBuilder text = holder.text;
+        text.setLength(0);
+        if (item.rssi != BluetoothDeviceRegistry.RSSI_UNKNOWN) {
+            text.append("rssi：").append(item.rssi).append(" dBm  ");
+        }
+        if (item.seenSecondsAgo < 0) {
+            text.append("已保存");
+        } else {
+            text.append(item.seenSecondsAgo).append("秒前");
+        }
+        holder.live.setText(text);
+    }
+}
@@ -2,30 +2,84 @@ package com.shrimp.android.ble;
 
 import android.bluetooth.BluetoothDevice;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
 import android.widget.Toast;
 
+import com.shrimp.android.ble.bluetooth.BluetoothDeviceRegistry;
 import com.shrimp.android.ble.bluetooth.BluetoothLeClass;
 import com.shrimp.android.ble.bluetooth.BluetoothLeScanner;
 import com.shrimp.android.ble.bluetooth.BluetoothReceiver;
+import com.shrimp.android.ble.bluetooth.KnownDeviceStore;
+import com.shrimp.android.ble.bluetooth.ScanScheduler;
 
 import java.util.ArrayList;
-
-public class MainActivity extends AppCompatActivity implements BluetoothReceiver.IBluetoothDiscoverListener {
-
-    private ListView listView;
-    private ArrayList<BluetoothDevice> data = new ArrayList<>();
-    private ArrayList<String> list = new ArrayList<>();
-    private ArrayAdapter<String> adapter;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MainActivity extends AppCompatActivity implements BluetoothReceiver.IBluetoothScanListener {
+
+    /**
+     * 检查过期设备的间隔
+     */
+    private static final long EVICT_INTERVAL = 5 * 1000;
+    /**
+     * 每次搜索的时长
+     */
+    private static final long SCAN_PERIOD = 30 * 1000;
+
+    private RecyclerView listView;
+    private DeviceListAdapter adapter;
+    private final BluetoothDeviceRegistry registry = new BluetoothDeviceRegistry();
+    private final Handler handler = new Handler();
+    private final Runnable evictTask = new Runnable() {
+        @Override
+        public void run() {
+            registry.evictStale();
+            // 同时刷新“几秒前”
+            requestRender();
+            handler.postDelayed(this, EVICT_INTERVAL);
+        }
+    };
+
+    /**
+     * 扫描结果只更新登记表，列表每帧最多刷新一次
+     */
+    private final AtomicBoolean renderRequested = new AtomicBoolean();
+    private final Choreographer.FrameCallback renderFrame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            renderRequested.set(false);
+            render();
+        }
+    };
+    // 5.0以下的扫描回调在binder线程上，Choreographer只能在主线程使用
+    private final Runnable postRenderFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(renderFrame);
+        }
+    };
+    private static final Comparator<BluetoothDeviceRegistry.Record> FIRST_SEEN_ORDER =
+            new Comparator<BluetoothDeviceRegistry.Record>() {
+                @Override
+                public int compare(BluetoothDeviceRegistry.Record a, BluetoothDeviceRegistry.Record b) {
+                    return a.getFirstSeen() < b.getFirstSeen() ? -1 : (a.getFirstSeen() == b.getFirstSeen() ? 0 : 1);
+                }
+            };
 
     private BluetoothLeClass bluetoothLeClass;
     private BluetoothReceiver receiver;
@@ -33,6 +87,12 @@ public class MainActivity extends AppCompatActivity implements BluetoothReceiver
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // 先发起到上次设备的连接，和加载界面同时进行
+        BluetoothLeScanner.enable(MainActivity.this);
+        bluetoothLeClass = BluetoothLeClass.getInstance();
+        bluetoothLeClass.initialize(this, BluetoothLeScanner.getBluetoothAdapter());
+        bluetoothLeClass.connectPreferred(false);
+
         setContentView(R.layout.activity_main);
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
@@ -46,17 +106,21 @@ public class MainActivity extends AppCompatActivity implements BluetoothReceiver
 //                        .setAction("Action", null).show();
 
 
-                BluetoothLeScanner.scanDevice();
-                Toast.makeText(MainActivity.this, "正在搜索...", Toast.LENGTH_SHORT).show();
+                // 只搜BLE设备，扫描SCAN_PERIOD后自动结束，连接时自动暂停
+                BluetoothLeScanner.ScanConfig config = new BluetoothLeScanner.ScanConfig()
+                        .setScanMode(BluetoothLeScanner.SCAN_MODE_LOW_LATENCY);
+                boolean started = ScanScheduler.getInstance().setDuration(SCAN_PERIOD)
+                        .start(config, MainActivity.this);
+                if (!started) {
+                    // 调度扫描不退回经典搜索，系统不支持BLE扫描时直接扫描，由它退回经典搜索
+                    started = BluetoothLeScanner.scanLeDevice(config.setClassicFallback(true), MainActivity.this);
+                }
+                Toast.makeText(MainActivity.this, started ? "正在搜索..." : "无法搜索", Toast.LENGTH_SHORT).show();
             }
         });
 
         register();
         initView();
-
-        BluetoothLeScanner.enable(MainActivity.this);
-        bluetoothLeClass = BluetoothLeClass.getInstance();
-        bluetoothLeClass.initialize(this, BluetoothLeScanner.getBluetoothAdapter());
     }
 
     private void register() {
@@ -65,20 +129,80 @@ public class MainActivity extends AppCompatActivity implements BluetoothReceiver
     }
 
     private void initView() {
-        listView = (ListView) findViewById(R.id.listView);
-        adapter = new ArrayAdapter<>(this, R.layout.item_bluetooth, R.id.item_detail, list);
-        listView.setAdapter(adapter);
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        listView = (RecyclerView) findViewById(R.id.listView);
+        adapter = new DeviceListAdapter();
+        adapter.setOnItemClickListener(new DeviceListAdapter.OnItemClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                bluetoothLeClass.connect(data.get(position).getAddress());
+            public void onItemClick(DeviceListAdapter.Item item) {
+                bluetoothLeClass.connect(item.getAddress());
             }
         });
+        // 列表占满屏幕，内容变化不用重新测量RecyclerView；局部更新时不做淡入淡出
+        listView.setHasFixedSize(true);
+        listView.setItemAnimator(null);
+        listView.setAdapter(adapter);
+        // 连接过的设备不用扫描就显示
+        render();
+    }
+
+    private void requestRender() {
+        if (renderRequested.compareAndSet(false, true)) {
+            handler.post(postRenderFrame);
+        }
+    }
+
+    /**
+     * 连接过的设备在前（按最后连接时间），之后是扫描到的设备（按第一次出现的时间），顺序稳定，差异计算很快
+     */
+    private void render() {
+        long now = SystemClock.elapsedRealtime();
+        List<KnownDeviceStore.KnownDevice> known = bluetoothLeClass.getKnownDevices().getAll();
+        List<BluetoothDeviceRegistry.Record> scanned = registry.snapshot();
+        Collections.sort(scanned, FIRST_SEEN_ORDER);
+        List<DeviceListAdapter.Item> items = new ArrayList<>(known.size() + scanned.size());
+        Set<String> knownAddresses = new HashSet<>();
+        for (KnownDeviceStore.KnownDevice device : known) {
+            knownAddresses.add(device.getAddress());
+            BluetoothDeviceRegistry.Record record = registry.get(device.getAddress());
+            if (record == null) {
+                items.add(new DeviceListAdapter.Item(device.getAddress(), device.getName(), device.getRssi(), -1));
+            } else {
+                items.add(item(record, now));
+            }
+        }
+        for (BluetoothDeviceRegistry.Record record : scanned) {
+            if (!knownAddresses.contains(record.getAddress())) {
+                items.add(item(record, now));
+            }
+        }
+        adapter.submit(items);
+    }
+
+    private static DeviceListAdapter.Item item(BluetoothDeviceRegistry.Record record, long now) {
+        return new DeviceListAdapter.Item(record.getAddress(), record.getName(), record.getRssi(),
+                (now - record.getLastSeen()) / 1000);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        requestRender();
+        handler.postDelayed(evictTask, EVICT_INTERVAL);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(evictTask);
+        handler.removeCallbacks(postRenderFrame);
+        Choreographer.getInstance().removeFrameCallback(renderFrame);
+        renderRequested.set(false);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        ScanScheduler.getInstance().stop();
         unregisterReceiver(receiver);
     }
 
@@ -106,11 +230,14 @@ public class MainActivity extends AppCompatActivity implements BluetoothReceiver
 
     @Override
     public void onDeviceFound(BluetoothDevice device) {
-        if (!data.contains(device)) {
-            data.add(device);
-            list.add("name：" + device.getName() + "\naddress：" + device.getAddress());
-            adapter.notifyDataSetChanged();
-        }
+        onDeviceFound(device, BluetoothDeviceRegistry.RSSI_UNKNOWN, null);
+    }
+
+    @Override
+    public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        bluetoothLeClass.getKnownDevices().updateRssi(device.getAddress(), rssi);
+        registry.update(device, rssi, scanRecord);
+        requestRender();
     }
 
     @Override
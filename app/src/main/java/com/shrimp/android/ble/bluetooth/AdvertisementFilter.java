@@ -0,0 +1,284 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 编译好的广播过滤条件，在扫描回调里、交给监听器之前丢掉无关设备。
+ *          条件写成“或”连接的若干组，每组内是“与”：
+ *          AdvertisementFilter.builder().serviceUuid(a).minRssi(-80).or().manufacturerData(0x004C, prefix, null).build()。
+ *          build()时把每组条件按开销排序（rssi、标志位先比，名称最后比），名称预先编码成UTF-8，
+ *          匹配时只比较数组，不分配内存
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class AdvertisementFilter {
+
+    // 按开销从小到大编号，组内按编号排序
+    private static final int OP_MIN_RSSI = 0;
+    private static final int OP_FLAGS = 1;
+    private static final int OP_MIN_TX_POWER = 2;
+    private static final int OP_SERVICE_UUID16 = 3;
+    private static final int OP_SERVICE_UUID = 4;
+    private static final int OP_MANUFACTURER = 5;
+    private static final int OP_SERVICE_DATA = 6;
+    private static final int OP_NAME_PREFIX = 7;
+    private static final int OP_NAME_EQUALS = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 不过滤
+     */
+    public static final AdvertisementFilter ACCEPT_ALL = new AdvertisementFilter(new int[]{0}, new int[0],
+            new long[0], new long[0], new byte[0][], new byte[0][], new String[0]);
+
+    // 组的起止：条件i属于组g，当clauseEnds[g-1] <= i < clauseEnds[g]
+    private final int[] clauseEnds;
+    private final int[] ops;
+    private final long[] args;
+    private final long[] args2;
+    private final byte[][] bytes;
+    private final byte[][] masks;
+    // 名称条件的原字符串，广播中没有名称时和设备名比较
+    private final String[] names;
+
+    private AdvertisementFilter(int[] clauseEnds, int[] ops, long[] args, long[] args2, byte[][] bytes,
+                                byte[][] masks, String[] names) {
+        this.clauseEnds = clauseEnds;
+        this.ops = ops;
+        this.args = args;
+        this.args2 = args2;
+        this.bytes = bytes;
+        this.masks = masks;
+        this.names = names;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param record 已经reset()过的广播数据
+     * @param rssi   信号强度，未知时为BluetoothDeviceRegistry.RSSI_UNKNOWN，此时忽略rssi条件
+     * @param device 广播中没有名称时用它的名字比较，可以为null
+     */
+    public boolean matches(AdvertisementParser record, int rssi, BluetoothDevice device) {
+        if (ops.length == 0) {
+            return true;
+        }
+        int start = 0;
+        for (int end : clauseEnds) {
+            if (matchesClause(start, end, record, rssi, device)) {
+                return true;
+            }
+            start = end;
+        }
+        return false;
+    }
+
+    private boolean matchesClause(int start, int end, AdvertisementParser record, int rssi,
+                                  BluetoothDevice device) {
+        for (int i = start; i < end; i++) {
+            boolean ok;
+            switch (ops[i]) {
+                case OP_MIN_RSSI:
+                    ok = rssi == BluetoothDeviceRegistry.RSSI_UNKNOWN || rssi >= args[i];
+                    break;
+                case OP_FLAGS:
+                    ok = (record.getFlags() & args[i]) == args2[i];
+                    break;
+                case OP_MIN_TX_POWER: {
+                    int tx = record.getTxPowerLevel();
+                    ok = tx != AdvertisementParser.TX_POWER_UNKNOWN && tx >= args[i];
+                    break;
+                }
+                case OP_SERVICE_UUID16:
+                    ok = record.hasServiceUuid16((int) args[i]);
+                    break;
+                case OP_SERVICE_UUID:
+                    ok = record.hasServiceUuid(args[i], args2[i]);
+                    break;
+                case OP_MANUFACTURER:
+                    ok = record.manufacturerDataMatches((int) args[i], bytes[i], masks[i]);
+                    break;
+                case OP_SERVICE_DATA:
+                    ok = record.serviceDataMatches((int) args[i], bytes[i], masks[i]);
+                    break;
+                case OP_NAME_PREFIX:
+                    ok = record.hasName() ? record.nameStartsWith(bytes[i])
+                            : deviceNameMatches(device, names[i], true);
+                    break;
+                case OP_NAME_EQUALS:
+                    ok = record.hasName() ? record.nameEquals(bytes[i])
+                            : deviceNameMatches(device, names[i], false);
+                    break;
+                default:
+                    ok = false;
+                    break;
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * getName()要跨进程调用，只在广播里没有名称时才用
+     */
+    private static boolean deviceNameMatches(BluetoothDevice device, String expected, boolean prefix) {
+        String name = device == null ? null : device.getName();
+        if (name == null) {
+            return false;
+        }
+        return prefix ? name.startsWith(expected) : name.equals(expected);
+    }
+
+    public static class Builder {
+
+        private static final class Condition {
+            final int op;
+            final long arg;
+            final long arg2;
+            final byte[] bytes;
+            final byte[] mask;
+            final String name;
+
+            Condition(int op, long arg, long arg2, byte[] bytes, byte[] mask, String name) {
+                this.op = op;
+                this.arg = arg;
+                this.arg2 = arg2;
+                this.bytes = bytes;
+                this.mask = mask;
+                this.name = name;
+            }
+        }
+
+        private final List<List<Condition>> clauses = new ArrayList<>();
+        private List<Condition> current = new ArrayList<>();
+
+        Builder() {
+            clauses.add(current);
+        }
+
+        public Builder minRssi(int rssi) {
+            return add(new Condition(OP_MIN_RSSI, rssi, 0, null, null, null));
+        }
+
+        /**
+         * 标志位中mask对应的位等于value，如flags(0x02, 0x02)只要通用可发现的设备
+         */
+        public Builder flags(int mask, int value) {
+            return add(new Condition(OP_FLAGS, mask, value & mask, null, null, null));
+        }
+
+        public Builder minTxPower(int dbm) {
+            return add(new Condition(OP_MIN_TX_POWER, dbm, 0, null, null, null));
+        }
+
+        public Builder serviceUuid16(int uuid16) {
+            return add(new Condition(OP_SERVICE_UUID16, uuid16 & 0xFFFF, 0, null, null, null));
+        }
+
+        public Builder serviceUuid(UUID uuid) {
+            return add(new Condition(OP_SERVICE_UUID, uuid.getMostSignificantBits(),
+                    uuid.getLeastSignificantBits(), null, null, null));
+        }
+
+        /**
+         * 厂商数据（不含公司ID）以prefix开头，mask为null时全部比较
+         */
+        public Builder manufacturerData(int companyId, byte[] prefix, byte[] mask) {
+            return add(new Condition(OP_MANUFACTURER, companyId & 0xFFFF, 0, prefix.clone(),
+                    mask == null ? null : mask.clone(), null));
+        }
+
+        public Builder serviceData(int uuid16, byte[] prefix, byte[] mask) {
+            return add(new Condition(OP_SERVICE_DATA, uuid16 & 0xFFFF, 0, prefix.clone(),
+                    mask == null ? null : mask.clone(), null));
+        }
+
+        public Builder namePrefix(String prefix) {
+            return add(new Condition(OP_NAME_PREFIX, 0, 0, prefix.getBytes(UTF_8), null, prefix));
+        }
+
+        public Builder name(String name) {
+            return add(new Condition(OP_NAME_EQUALS, 0, 0, name.getBytes(UTF_8), null, name));
+        }
+
+        /**
+         * 开始新的一组条件，和前面的组是“或”的关系
+         */
+        public Builder or() {
+            if (!current.isEmpty()) {
+                current = new ArrayList<>();
+                clauses.add(current);
+            }
+            return this;
+        }
+
+        private Builder add(Condition condition) {
+            current.add(condition);
+            return this;
+        }
+
+        public AdvertisementFilter build() {
+            List<Condition> flat = new ArrayList<>();
+            List<Integer> ends = new ArrayList<>();
+            for (List<Condition> clause : clauses) {
+                if (clause.isEmpty()) {
+                    continue;
+                }
+                List<Condition> sorted = new ArrayList<>(clause);
+                // 稳定排序，先比便宜的条件，不满足就不用再看后面的
+                Collections.sort(sorted, new Comparator<Condition>() {
+                    @Override
+                    public int compare(Condition a, Condition b) {
+                        return a.op - b.op;
+                    }
+                });
+                flat.addAll(sorted);
+                ends.add(flat.size());
+            }
+            if (flat.isEmpty()) {
+                return ACCEPT_ALL;
+            }
+            int n = flat.size();
+            int[] ops = new int[n];
+            long[] args = new long[n];
+            long[] args2 = new long[n];
+            byte[][] bytes = new byte[n][];
+            byte[][] masks = new byte[n][];
+            String[] names = new String[n];
+            for (int i = 0; i < n; i++) {
+                Condition c = flat.get(i);
+                ops[i] = c.op;
+                args[i] = c.arg;
+                args2[i] = c.arg2;
+                bytes[i] = c.bytes;
+                masks[i] = c.mask;
+                names[i] = c.name;
+            }
+            int[] clauseEnds = new int[ends.size()];
+            for (int i = 0; i < clauseEnds.length; i++) {
+                clauseEnds[i] = ends.get(i);
+            }
+            return new AdvertisementFilter(clauseEnds, ops, args, args2, bytes, masks, names);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AdvertisementFilter{ops=" + Arrays.toString(ops) + ", clauses=" + Arrays.toString(clauseEnds) + "}";
+    }
+}
@@ -0,0 +1,340 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.io.UnsupportedEncodingException;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 广播数据解析：在原数组上遍历AD结构，只记下每个结构的类型、偏移和长度，不复制、不分配内存。
+ *          一个实例可以反复reset()解析不同的广播，不是线程安全的，每个扫描回调线程用自己的实例。
+ *          查询UUID、厂商数据、名称都直接和原数组比较
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class AdvertisementParser {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16 = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32 = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128 = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_COMPLETE_NAME = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /**
+     * 没有TX功率字段时的返回值
+     */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    // 广播和扫描响应各31字节，每个结构至少2字节
+    private static final int MAX_STRUCTURES = 32;
+    // 蓝牙基础UUID 0000xxxx-0000-1000-8000-00805F9B34FB
+    private static final long BASE_UUID_MSB_LOW = 0x1000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private byte[] data;
+    private int count;
+    private final int[] types = new int[MAX_STRUCTURES];
+    // 数据部分（不含长度和类型）的起始位置和长度
+    private final int[] offsets = new int[MAX_STRUCTURES];
+    private final int[] lengths = new int[MAX_STRUCTURES];
+
+    /**
+     * 解析新的广播数据，record为null时视为空广播
+     *
+     * @return 结构是否完整；遇到越界的长度时停止，之前的结构仍然可用
+     */
+    public boolean reset(byte[] record) {
+        data = record;
+        count = 0;
+        if (record == null) {
+            return true;
+        }
+        int pos = 0;
+        int end = record.length;
+        while (pos < end && count < MAX_STRUCTURES) {
+            int length = record[pos] & 0xFF;
+            if (length == 0) {
+                // 剩下是填充的0
+                return true;
+            }
+            if (pos + 1 + length > end) {
+                return false;
+            }
+            types[count] = record[pos + 1] & 0xFF;
+            offsets[count] = pos + 2;
+            lengths[count] = length - 1;
+            count++;
+            pos += 1 + length;
+        }
+        return true;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getStructureCount() {
+        return count;
+    }
+
+    public int getStructureType(int index) {
+        return types[index];
+    }
+
+    public int getStructureOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getStructureLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * 第一个该类型结构的下标，没有返回-1
+     */
+    public int indexOf(int type) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 广播标志，没有时返回0
+     */
+    public int getFlags() {
+        int i = indexOf(TYPE_FLAGS);
+        return i < 0 || lengths[i] < 1 ? 0 : data[offsets[i]] & 0xFF;
+    }
+
+    /**
+     * 发射功率dBm，没有时返回TX_POWER_UNKNOWN
+     */
+    public int getTxPowerLevel() {
+        int i = indexOf(TYPE_TX_POWER);
+        return i < 0 || lengths[i] < 1 ? TX_POWER_UNKNOWN : data[offsets[i]];
+    }
+
+    /**
+     * 广播中是否有这个服务UUID，16位、32位和128位的列表都会检查
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * 按UUID的高低64位比较，调用方可以预先拆好，省掉UUID对象
+     */
+    public boolean hasServiceUuid(long msb, long lsb) {
+        boolean base = lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB_LOW;
+        int shortValue = (int) (msb >>> 32);
+        for (int i = 0; i < count; i++) {
+            int type = types[i];
+            if (base && (type == TYPE_UUID16 || type == TYPE_UUID16_INCOMPLETE)) {
+                if ((shortValue & 0xFFFF0000) == 0 && containsLe(i, 2, shortValue)) {
+                    return true;
+                }
+            } else if (base && (type == TYPE_UUID32 || type == TYPE_UUID32_INCOMPLETE)) {
+                if (containsLe(i, 4, shortValue)) {
+                    return true;
+                }
+            } else if (type == TYPE_UUID128 || type == TYPE_UUID128_INCOMPLETE) {
+                for (int off = offsets[i], end = off + lengths[i]; off + 16 <= end; off += 16) {
+                    // 128位UUID按小端存放：前8字节是低64位
+                    if (readLongLe(off) == lsb && readLongLe(off + 8) == msb) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 16位服务UUID，如0x180D
+     */
+    public boolean hasServiceUuid16(int uuid16) {
+        for (int i = 0; i < count; i++) {
+            int type = types[i];
+            if ((type == TYPE_UUID16 || type == TYPE_UUID16_INCOMPLETE) && containsLe(i, 2, uuid16)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 第一个厂商数据的公司ID，没有返回-1
+     */
+    public int getManufacturerId() {
+        int i = indexOf(TYPE_MANUFACTURER_DATA);
+        return i < 0 || lengths[i] < 2 ? -1 : (int) readLe(offsets[i], 2);
+    }
+
+    /**
+     * 该公司的厂商数据（去掉公司ID）的起始位置，没有返回-1，长度用{@link #getManufacturerDataLength(int)}
+     */
+    public int getManufacturerDataOffset(int companyId) {
+        int i = findManufacturer(companyId);
+        return i < 0 ? -1 : offsets[i] + 2;
+    }
+
+    public int getManufacturerDataLength(int companyId) {
+        int i = findManufacturer(companyId);
+        return i < 0 ? -1 : lengths[i] - 2;
+    }
+
+    /**
+     * 厂商数据是否以prefix开头，mask为null时逐字节比较，否则只比较mask中为1的位
+     */
+    public boolean manufacturerDataMatches(int companyId, byte[] prefix, byte[] mask) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TYPE_MANUFACTURER_DATA && lengths[i] >= 2
+                    && readLe(offsets[i], 2) == companyId
+                    && regionMatches(offsets[i] + 2, lengths[i] - 2, prefix, mask)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 16位UUID的服务数据是否以prefix开头
+     */
+    public boolean serviceDataMatches(int uuid16, byte[] prefix, byte[] mask) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TYPE_SERVICE_DATA16 && lengths[i] >= 2
+                    && readLe(offsets[i], 2) == uuid16
+                    && regionMatches(offsets[i] + 2, lengths[i] - 2, prefix, mask)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 是否带有名称（完整或缩短）
+     */
+    public boolean hasName() {
+        return nameIndex() >= 0;
+    }
+
+    /**
+     * 名称是否以UTF-8编码的prefix开头；缩短的名称只要是prefix的前缀也算匹配
+     */
+    public boolean nameStartsWith(byte[] prefix) {
+        int i = nameIndex();
+        if (i < 0) {
+            return false;
+        }
+        int length = lengths[i];
+        if (types[i] == TYPE_SHORT_NAME && length < prefix.length) {
+            return regionMatches(offsets[i], length, prefix, 0, length);
+        }
+        return regionMatches(offsets[i], length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * 名称是否等于UTF-8编码的name
+     */
+    public boolean nameEquals(byte[] name) {
+        int i = nameIndex();
+        return i >= 0 && types[i] == TYPE_COMPLETE_NAME && lengths[i] == name.length
+                && regionMatches(offsets[i], lengths[i], name, 0, name.length);
+    }
+
+    /**
+     * 名称，调试用，会分配字符串
+     */
+    public String getName() {
+        int i = nameIndex();
+        if (i < 0) {
+            return null;
+        }
+        try {
+            return new String(data, offsets[i], lengths[i], "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private int nameIndex() {
+        int shortName = -1;
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TYPE_COMPLETE_NAME) {
+                return i;
+            }
+            if (types[i] == TYPE_SHORT_NAME && shortName < 0) {
+                shortName = i;
+            }
+        }
+        return shortName;
+    }
+
+    private int findManufacturer(int companyId) {
+        for (int i = 0; i < count; i++) {
+            if (types[i] == TYPE_MANUFACTURER_DATA && lengths[i] >= 2 && readLe(offsets[i], 2) == companyId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean containsLe(int index, int size, long value) {
+        for (int off = offsets[index], end = off + lengths[index]; off + size <= end; off += size) {
+            if (readLe(off, size) == (value & ((1L << (size * 8)) - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long readLe(int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private long readLongLe(int offset) {
+        return readLe(offset, 8);
+    }
+
+    private boolean regionMatches(int offset, int length, byte[] prefix, byte[] mask) {
+        if (length < prefix.length) {
+            return false;
+        }
+        if (mask == null) {
+            return regionMatches(offset, length, prefix, 0, prefix.length);
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            int m = i < mask.length ? mask[i] : 0xFF;
+            if (((data[offset + i] ^ prefix[i]) & m) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionMatches(int offset, int length, byte[] other, int otherOffset, int count) {
+        if (length < count) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (data[offset + i] != other[otherOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
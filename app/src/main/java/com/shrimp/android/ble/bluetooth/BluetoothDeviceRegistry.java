@@ -0,0 +1,242 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 扫描到的设备登记表：按地址哈希索引，记录最后发现时间和平滑后的信号强度，
+ *          超过TTL没再收到广播的设备自动移除。登记一次扫描结果是O(1)，与设备数量无关
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class BluetoothDeviceRegistry {
+
+    public static final long DEFAULT_TTL = 30 * 1000;
+    /**
+     * 经典搜索拿不到rssi时的值
+     */
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    public static class Record {
+        private final BluetoothDevice device;
+        private final String address;
+        private String name;
+        private int rssi = RSSI_UNKNOWN;
+        private float smoothedRssi = RSSI_UNKNOWN;
+        private long firstSeen;
+        private long lastSeen;
+        private int seenCount;
+        private byte[] scanRecord;
+        // 按最后出现时间排序的双向链表
+        private Record prev;
+        private Record next;
+
+        Record(BluetoothDevice device, String address) {
+            this.device = device;
+            this.address = address;
+        }
+
+        Record(Record other) {
+            this.device = other.device;
+            this.address = other.address;
+            this.name = other.name;
+            this.rssi = other.rssi;
+            this.smoothedRssi = other.smoothedRssi;
+            this.firstSeen = other.firstSeen;
+            this.lastSeen = other.lastSeen;
+            this.seenCount = other.seenCount;
+            this.scanRecord = other.scanRecord;
+        }
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 最近一次的信号强度
+         */
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * 指数平滑后的信号强度，没有rssi时为RSSI_UNKNOWN
+         */
+        public int getSmoothedRssi() {
+            return Math.round(smoothedRssi);
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public int getSeenCount() {
+            return seenCount;
+        }
+
+        /**
+         * 最近一次的广播数据，可能为null
+         */
+        public byte[] getScanRecord() {
+            return scanRecord;
+        }
+    }
+
+    private final HashMap<String, Record> records = new HashMap<>(64);
+    // 每次登记都移到链表末尾，头部总是最久没出现的设备
+    private Record head;
+    private Record tail;
+    private long ttl = DEFAULT_TTL;
+    private float alpha = 0.25f;
+
+    /**
+     * 设备多久没出现就移除
+     */
+    public synchronized void setTtl(long ttlMillis) {
+        this.ttl = ttlMillis;
+    }
+
+    /**
+     * rssi平滑系数，0~1，越小越平滑
+     */
+    public synchronized void setSmoothingFactor(float alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha=" + alpha);
+        }
+        this.alpha = alpha;
+    }
+
+    public boolean update(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        return update(device, rssi, scanRecord, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 登记一次扫描结果
+     *
+     * @return 是否是新设备
+     */
+    public synchronized boolean update(BluetoothDevice device, int rssi, byte[] scanRecord, long now) {
+        String address = device.getAddress();
+        Record record = records.get(address);
+        boolean added = record == null;
+        if (added) {
+            record = new Record(device, address);
+            record.firstSeen = now;
+            records.put(address, record);
+        } else {
+            unlink(record);
+        }
+        linkLast(record);
+        if (record.name == null) {
+            record.name = device.getName();
+        }
+        if (rssi != RSSI_UNKNOWN) {
+            record.rssi = rssi;
+            record.smoothedRssi = record.smoothedRssi == RSSI_UNKNOWN
+                    ? rssi : record.smoothedRssi + alpha * (rssi - record.smoothedRssi);
+        }
+        if (scanRecord != null) {
+            record.scanRecord = scanRecord;
+        }
+        record.lastSeen = now;
+        record.seenCount++;
+        return added;
+    }
+
+    public int evictStale() {
+        return evictStale(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 移除超过TTL没出现的设备，只检查头部，遇到未过期的设备就停止
+     *
+     * @return 移除的数量
+     */
+    public synchronized int evictStale(long now) {
+        int removed = 0;
+        while (head != null && now - head.lastSeen >= ttl) {
+            Record record = head;
+            unlink(record);
+            records.remove(record.address);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * 返回副本
+     */
+    public synchronized Record get(String address) {
+        Record record = records.get(address);
+        return record == null ? null : new Record(record);
+    }
+
+    public synchronized boolean contains(String address) {
+        return records.containsKey(address);
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    public synchronized void clear() {
+        records.clear();
+        head = null;
+        tail = null;
+    }
+
+    /**
+     * 当前所有设备的副本，按最后出现时间从早到晚排序
+     */
+    public synchronized List<Record> snapshot() {
+        List<Record> list = new ArrayList<>(records.size());
+        for (Record record = head; record != null; record = record.next) {
+            list.add(new Record(record));
+        }
+        return list;
+    }
+
+    private void linkLast(Record record) {
+        record.prev = tail;
+        record.next = null;
+        if (tail == null) {
+            head = record;
+        } else {
+            tail.next = record;
+        }
+        tail = record;
+    }
+
+    private void unlink(Record record) {
+        if (record.prev == null) {
+            head = record.next;
+        } else {
+            record.prev.next = record.next;
+        }
+        if (record.next == null) {
+            tail = record.prev;
+        } else {
+            record.next.prev = record.prev;
+        }
+        record.prev = null;
+        record.next = null;
+    }
+}
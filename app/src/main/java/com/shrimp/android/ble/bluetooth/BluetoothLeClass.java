@@ -16,18 +16,24 @@
 
 package com.shrimp.android.ble.bluetooth;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -38,7 +44,7 @@ import android.util.Log;
 /**
  * 项目名称：BluetoothDemo
  * 包名称： com.shrimp.android.ble.bluetooth
- * 类描述： 蓝牙连接、搜索服务、读写数据、断开连接
+ * 类描述： 蓝牙连接、搜索服务、读写数据、断开连接；支持同时连接多个设备，每个设备一个{@link BluetoothLeConnection}
  * author: ywq
  * 创建时间：2017/2/4
  */
@@ -55,17 +61,48 @@ public class BluetoothLeClass {
     public final static String ACTION_GATT_DISCONNECTED = "com.shrimp.android.balancecar.ACTION_GATT_DISCONNECTED";
     // 发现服务
     public final static String ACTION_GATT_SERVICESDISCOVERED = "com.shrimp.android.balancecar.ACTION_GATT_SERVICESDISCOVERED";
+    /**
+     * 连接成功且有缓存的服务布局，可以用getCachedLayout()决定要排队的读写，不用等ACTION_GATT_SERVICESDISCOVERED再排队；
+     * 排队的操作仍在服务发现完成后才执行
+     */
+    public final static String ACTION_GATT_SERVICES_CACHED = "com.shrimp.android.balancecar.ACTION_GATT_SERVICES_CACHED";
 
     public final static String ACTION_DATA_AVAILABLE = "com.shrimp.android.balancecar.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA_RAW = "com.shrimp.android.balancecar.EXTRA_DATA_RAW";
     public final static String EXTRA_UUID_CHAR = "com.shrimp.android.balancecar.EXTRA_UUID_CHAR";
     public final static String EXTRA_SERVICE_RAW = "com.shrimp.android.balancecar.EXTRA_SERVICE_RAW";
+    /**
+     * 多设备连接时区分广播来自哪个设备
+     */
+    public final static String EXTRA_ADDRESS = "com.shrimp.android.balancecar.EXTRA_ADDRESS";
 
     private static BluetoothLeClass mInstance;
     private static BluetoothAdapter mBluetoothAdapter;
+    /**
+     * 当前设备：最近一次connect的地址，不带地址的方法都作用于这个设备
+     */
     private static String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
     private Context context;
+    private final BluetoothLeConnectionPool mConnectionPool = new BluetoothLeConnectionPool();
+    private long mOperationTimeout = GattOperationQueue.DEFAULT_TIMEOUT;
+    private int mPreferredMtu = BluetoothLeConnection.DEFAULT_PREFERRED_MTU;
+    private long mWriteCoalesceWindow = WriteCoalescer.DEFAULT_WINDOW;
+    private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    /**
+     * 关闭旧连接后等待协议栈释放资源的时间
+     */
+    private static final long CLOSE_SETTLE_DELAY = 500;
+    private final NotificationDispatcher mDispatcher = new NotificationDispatcher();
+    private final NotificationStream mStream = new NotificationStream(mDispatcher);
+    private final NotificationRouter mRouter = new NotificationRouter(mDispatcher);
+    /**
+     * 兼容模式：数据同时以ACTION_DATA_AVAILABLE广播发出，默认关闭
+     */
+    private volatile boolean mDataBroadcastEnabled;
+    private GattLayoutCache mLayoutCache;
+    private KnownDeviceStore mKnownDevices;
+    private volatile GattSessionRecorder mRecorder;
+    private final GattMetrics mMetrics = new GattMetrics();
 
     private BluetoothLeClass(){
     }
@@ -81,70 +118,6 @@ public class BluetoothLeClass {
         return mInstance;
     }
 
-    /**
-     * 回调
-     */
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            Log.d(TAG, "onConnectionStateChange--" + "status=" + status + ", " + "newState=" + newState);
-            final String intentAction;
-			if (newState == BluetoothProfile.STATE_CONNECTED)
-			{
-                Log.d(TAG, "Connected to GATT server.");
-                intentAction = ACTION_GATT_CONNECTED;
-
-                Log.d(TAG, "Attempting to start service discovery:");
-//                // important, Attempts to discover services after successful connection.
-				mBluetoothGatt.discoverServices();
-
-                broadcastUpdate(intentAction);
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-//                Log.d(TAG, "Disconnected from GATT server.");
-                intentAction = ACTION_GATT_DISCONNECTED;
-                broadcastUpdate(intentAction);
-            }
-            if (status == 133) { // 蓝牙连接自动断开的原因->需要清除所有的连接，重连机制
-                Log.e(TAG, "蓝牙连接自动断开,status=" + status);
-                close();
-                sleep();
-                connect(mBluetoothDeviceAddress);
-            }
-        }
-
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-//            Log.d(TAG, "onServicesDiscovered received: " + status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // 解析服务
-                displayGattServices(getSupportedGattServices());
-            }
-        }
-
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-//            Log.d(TAG, "onCharacteristicRead:" + status);
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-        }
-
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-//            Log.d(TAG, "onCharacteristicChanged");
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-        }
-
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt,
-                                          BluetoothGattCharacteristic characteristic, int status) {
-//            Log.d(TAG, "onCharacteristicWrite");
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-        }
-    };
-
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -153,6 +126,12 @@ public class BluetoothLeClass {
     public boolean initialize(Context context, BluetoothAdapter adapter) {
 
         this.context = context.getApplicationContext();
+        if (mLayoutCache == null) {
+            mLayoutCache = new GattLayoutCache(this.context.getFilesDir());
+        }
+        if (mKnownDevices == null) {
+            mKnownDevices = new KnownDeviceStore(this.context);
+        }
 
         if (adapter == null) {
             BluetoothManager mBluetoothManager = (BluetoothManager) context.getSystemService(
@@ -182,21 +161,40 @@ public class BluetoothLeClass {
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      *         callback.
      */
-    public synchronized boolean connect(final String address) {
+    public boolean connect(final String address) {
+        return connect(address, false);
+    }
+
+    /**
+     * @param autoConnect true时由协议栈在后台等待设备出现再连接，不会超时，但第一次连接较慢
+     */
+    public synchronized boolean connect(final String address, boolean autoConnect) {
         if (mBluetoothAdapter == null || TextUtils.isEmpty(address)) {
 //            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        // 直连前暂停扫描，加快连接；后台autoConnect不受扫描影响。
+        // 已连接时不会再有连接完成的回调来恢复扫描，不暂停
+        ScanScheduler scheduler = ScanScheduler.getInstance();
+        BluetoothLeConnection existing = getConnection(address);
+        boolean suspend = !autoConnect && (existing == null || !existing.isConnected());
+        if (suspend) {
+            scheduler.suspend(address);
+        }
+        boolean started = startConnection(address, autoConnect);
+        if (!started && suspend) {
+            scheduler.resume(address);
+        }
+        return started;
+    }
 
+    private boolean startConnection(String address, boolean autoConnect) {
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
+        BluetoothLeConnection connection = mConnectionPool.get(address);
+        if (connection != null) {
 //            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                return true;
-            } else {
-                return false;
-            }
+            mBluetoothDeviceAddress = address;
+            return connection.connect(context);
         }
 
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -205,25 +203,64 @@ public class BluetoothLeClass {
             return false;
         }
 
-        /**-------- 在连接下一个蓝牙之前彻底断开之前的连接 -----------**/
-        if (mBluetoothGatt != null) {
-            close();
-        }
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-//            Log.e(TAG, "e=" + e);
-        }
-        /**--------休息500毫秒再连---------**/
+        connection = new BluetoothLeConnection(this, device);
+        connection.setAutoConnect(autoConnect);
+        connection.setOperationTimeout(mOperationTimeout);
+        connection.setReconnectPolicy(mReconnectPolicy);
+        connection.setPreferredMtu(mPreferredMtu);
+        connection.setWriteCoalesceWindow(mWriteCoalesceWindow);
 
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(context, false, mGattCallback);
-//        Log.d(TAG, "Trying to create a new connection.----mBluetoothGatt=" + mBluetoothGatt);
+        /**-------- 连接数已满时彻底断开最久未使用的空闲连接 -----------**/
+        if (mConnectionPool.isFull()) {
+            BluetoothLeConnection evicted = mConnectionPool.evictIdle();
+            if (evicted == null) {
+                Log.w(TAG, "Connection pool is full, no idle connection to evict.");
+                return false;
+            }
+            evicted.close();
+            /**--------500毫秒后再连，定时执行，不阻塞调用线程---------**/
+            connection.connectDelayed(CLOSE_SETTLE_DELAY);
+        } else if (!connection.connect(context)) {
+            return false;
+        }
+//        Log.d(TAG, "Trying to create a new connection.----address=" + address);
+        mConnectionPool.put(connection);
         mBluetoothDeviceAddress = address;
         return true;
     }
 
+    /**
+     * 不扫描，直接连接首选设备（默认是最后连接成功的设备）。在onCreate中尽早调用，
+     * 连接和界面初始化同时进行；缓存了服务布局时连上后马上可以按UUID读写
+     *
+     * @param autoConnect false时直连，设备在附近时最快；true时后台等待设备出现
+     * @return 没有已知设备或无法发起连接时返回false
+     */
+    public boolean connectPreferred(boolean autoConnect) {
+        if (mKnownDevices == null) {
+            return false;
+        }
+        String address = mKnownDevices.getPreferred();
+        return address != null && connect(address, autoConnect);
+    }
+
+    /**
+     * 连接过的设备，initialize之前返回null
+     */
+    public KnownDeviceStore getKnownDevices() {
+        return mKnownDevices;
+    }
+
+    /**
+     * 不再自动连接该设备，同时清除它的布局缓存
+     */
+    public void forgetDevice(String address) {
+        if (mKnownDevices != null) {
+            mKnownDevices.forget(address);
+        }
+        invalidateLayoutCache(address);
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
@@ -231,11 +268,16 @@ public class BluetoothLeClass {
      * callback.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    public void disconnect(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
 //            Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.disconnect();
     }
 
     /**
@@ -243,38 +285,116 @@ public class BluetoothLeClass {
      * released properly.
      */
     public void close() {
-        disconnect();
-        if (mBluetoothGatt == null) {
+        close(mBluetoothDeviceAddress);
+    }
+
+    public void close(String address) {
+        if (address == null) {
             return;
         }
-//        Log.e(TAG, "BluetoothGatt is " + mBluetoothGatt);
-        /*try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            mBluetoothGatt.close();
-        }*/
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
-//        Log.e(TAG, "after close BluetoothGatt is " + mBluetoothGatt);
-
+        BluetoothLeConnection connection = mConnectionPool.remove(address);
+        if (connection == null) {
+            return;
+        }
+        connection.close();
 //        mCharacFFE4 = null;
 //        mCharacFFE9 = null;
     }
 
+    /**
+     * 关闭连接池中的所有连接
+     */
+    public void closeAll() {
+        for (BluetoothLeConnection connection : mConnectionPool.removeAll()) {
+            connection.close();
+        }
+    }
+
+    /**
+     * 设置同时连接的最大设备数
+     */
+    public void setMaxConnections(int maxConnections) {
+        mConnectionPool.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * 超过这个时间没有数据往来的连接，在连接数已满时可以被淘汰
+     */
+    public void setIdleTimeout(long idleMillis) {
+        mConnectionPool.setIdleTimeout(idleMillis);
+    }
+
+    /**
+     * 设置断线重连策略，传null关闭自动重连
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+        for (BluetoothLeConnection connection : mConnectionPool.getConnections()) {
+            connection.setReconnectPolicy(policy);
+        }
+    }
+
+    public BluetoothLeConnection getConnection(String address) {
+        if (address == null) {
+            return null;
+        }
+        return mConnectionPool.get(address);
+    }
+
+    /**
+     * 连接池中的所有连接，按最近最少使用排序
+     */
+    public List<BluetoothLeConnection> getConnections() {
+        return mConnectionPool.getConnections();
+    }
+
     /**
      * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
      * @param characteristic The characteristic to read from.
+     * @return The queued operation, or null if not connected.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-//            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.readCharacteristic(characteristic);
+    public GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return readCharacteristic(characteristic, null);
+    }
+
+    public GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic,
+                                            GattOperation.Callback callback) {
+        return readCharacteristic(mBluetoothDeviceAddress, characteristic, callback);
+    }
+
+    public GattOperation readCharacteristic(String address, BluetoothGattCharacteristic characteristic,
+                                            GattOperation.Callback callback) {
+        return enqueue(address, GattOperation.read(characteristic).setCallback(callback));
+    }
+
+    /**
+     * 按特征UUID读当前设备，从服务发现时建立的索引中查找，不遍历服务
+     */
+    public GattOperation readCharacteristic(UUID characteristic) {
+        return readCharacteristic(mBluetoothDeviceAddress, characteristic, null);
+    }
+
+    /**
+     * 按16位短UUID读，如readCharacteristic(0xFFE4)
+     */
+    public GattOperation readCharacteristic(int shortUuid) {
+        return readCharacteristic(GattCharacteristicIndex.fromShortUuid(shortUuid));
+    }
+
+    public GattOperation readCharacteristic(String address, UUID characteristic,
+                                            GattOperation.Callback callback) {
+        return enqueue(address, GattOperation.read(characteristic).setCallback(callback));
+    }
+
+    /**
+     * 按UUID读，服务发现完成前也可以调用，操作会排队到服务发现完成后执行
+     */
+    public GattOperation readCharacteristic(String address, UUID service, UUID characteristic,
+                                            GattOperation.Callback callback) {
+        return enqueue(address, GattOperation.read(service, characteristic).setCallback(callback));
     }
 
     /**
@@ -283,27 +403,279 @@ public class BluetoothLeClass {
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
-                                              boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-//            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public GattOperation setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                       boolean enabled) {
+        return setCharacteristicNotification(mBluetoothDeviceAddress, characteristic, enabled);
+    }
+
+    public GattOperation setCharacteristicNotification(String address,
+                                                       BluetoothGattCharacteristic characteristic,
+                                                       boolean enabled) {
+        return setCharacteristicNotification(address, characteristic.getUuid(), enabled);
+    }
+
+    /**
+     * Request a write on a given {@code BluetoothGattCharacteristic}. The current value of the
+     * characteristic is captured when the request is queued.
+     */
+    public GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic){
+        return writeCharacteristic(characteristic, null);
+    }
+
+    public GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic,
+                                             GattOperation.Callback callback){
+        return writeCharacteristic(mBluetoothDeviceAddress, characteristic, callback);
+    }
+
+    public GattOperation writeCharacteristic(String address, BluetoothGattCharacteristic characteristic,
+                                             GattOperation.Callback callback){
+        return enqueue(address, GattOperation.write(characteristic).setCallback(callback));
+    }
+
+    /**
+     * 按特征UUID写当前设备
+     */
+    public GattOperation writeCharacteristic(UUID characteristic, byte[] value){
+        return writeCharacteristic(mBluetoothDeviceAddress, characteristic, value, null);
+    }
+
+    public GattOperation writeCharacteristic(int shortUuid, byte[] value){
+        return writeCharacteristic(GattCharacteristicIndex.fromShortUuid(shortUuid), value);
+    }
+
+    /**
+     * 超过MTU-3的数据自动按协商后的MTU分包，依次写入；某一包失败时后面的包取消。
+     * 回调在最后一包完成或中途失败时触发
+     */
+    public GattOperation writeCharacteristic(String address, UUID characteristic, byte[] value,
+                                             GattOperation.Callback callback){
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
+            return null;
+        }
+        return connection.writeFragmented(characteristic, value, callback);
+    }
+
+    /**
+     * 写入不要求设备应答（WRITE_TYPE_NO_RESPONSE），一个连接间隔内可以发多包，适合控制量等允许丢包的数据。
+     * 协议栈接收后仍有onCharacteristicWrite回调，队列据此控制发送速度，不会塞满协议栈的缓冲
+     */
+    public GattOperation writeWithoutResponse(String address, UUID characteristic, byte[] value,
+                                              GattOperation.Callback callback) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
+            return null;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-       /* List<BluetoothGattDescriptor> descriptors = characteristic.getDescriptors();
-        for(BluetoothGattDescriptor dp : descriptors){
-            dp.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(dp);
-        }*/
+        return connection.writeFragmented(characteristic, value,
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, callback);
     }
 
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic){
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-//            Log.w(TAG, "writeCharacteristic failed BluetoothAdapter not initialized");
+    /**
+     * 合并写入：同一特征在合并窗口内的小命令拼成一包（不超过MTU-3）再写，
+     * 适合高频发送的短命令。设备端需要能拆分连在一起的命令
+     *
+     * @param withResponse false时使用WRITE_TYPE_NO_RESPONSE
+     * @param callback     命令所在的那一包写完时回调
+     */
+    public void writeCoalesced(String address, UUID characteristic, byte[] command, boolean withResponse,
+                               GattOperation.Callback callback) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
             return;
         }
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        connection.writeCoalesced(characteristic, command, withResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, callback);
+    }
+
+    public void writeCoalesced(String address, UUID characteristic, byte[] command) {
+        writeCoalesced(address, characteristic, command, true, null);
+    }
+
+    /**
+     * 立即发出合并窗口中的命令，不等窗口到期
+     */
+    public void flushWrites(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.flushWrites();
+        }
+    }
+
+    /**
+     * 合并窗口，毫秒，默认10；0表示不合并
+     */
+    public void setWriteCoalesceWindow(long windowMillis) {
+        mWriteCoalesceWindow = windowMillis;
+        for (BluetoothLeConnection connection : mConnectionPool.getConnections()) {
+            connection.setWriteCoalesceWindow(windowMillis);
+        }
+    }
+
+    /**
+     * 开始一个可靠写事务，见{@link GattTransaction}
+     *
+     * @return 未连接时返回null
+     */
+    public GattTransaction beginTransaction(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
+            return null;
+        }
+        return new GattTransaction(connection);
+    }
+
+    /**
+     * 批量上传（固件等），需要设备实现{@link BulkTransfer}中的协议
+     *
+     * @param data    数据特征，无应答写入
+     * @param control 控制特征，可写并支持通知
+     */
+    public BulkTransfer newBulkTransfer(String address, UUID data, UUID control) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
+            return null;
+        }
+        return new BulkTransfer(connection, data, control, context.getFilesDir());
+    }
+
+    /**
+     * 连接后自动协商的MTU，对之后的连接生效；小于等于23时不协商。需要5.0以上
+     */
+    public void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * 当前协商好的MTU，未连接时返回23
+     */
+    public int getMtu(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection == null ? BluetoothLeConnection.DEFAULT_MTU : connection.getMtu();
+    }
+
+    /**
+     * 主动协商MTU
+     */
+    public GattOperation requestMtu(String address, int mtu) {
+        return enqueue(address, GattOperation.requestMtu(mtu));
+    }
+
+    /**
+     * 切换连接优先级：大量传输时用BluetoothGatt.CONNECTION_PRIORITY_HIGH，
+     * 空闲时切回CONNECTION_PRIORITY_BALANCED省电。需要5.0以上
+     */
+    public GattOperation requestConnectionPriority(String address, int priority) {
+        return enqueue(address, GattOperation.requestConnectionPriority(priority));
+    }
+
+    /**
+     * 设置某个特征的通知重组规则，收到的分包拼成完整帧后再分发；传null取消
+     */
+    public void setFrameReassembler(String address, UUID characteristic, FrameReassembler reassembler) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (connection != null) {
+            connection.setFrameReassembler(characteristic, reassembler);
+        }
+    }
+
+    /**
+     * 按特征UUID打开或关闭当前设备的通知
+     */
+    public GattOperation setCharacteristicNotification(UUID characteristic, boolean enabled) {
+        return setCharacteristicNotification(mBluetoothDeviceAddress, characteristic, enabled);
+    }
+
+    public GattOperation setCharacteristicNotification(int shortUuid, boolean enabled) {
+        return setCharacteristicNotification(GattCharacteristicIndex.fromShortUuid(shortUuid), enabled);
+    }
+
+    /**
+     * 打开时写CCCD（优先通知，不支持时用指示），并记录下来，重连后自动恢复
+     */
+    public GattOperation setCharacteristicNotification(String address, UUID characteristic,
+                                                       boolean enabled) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (connection == null) {
+            return null;
+        }
+        return connection.getSubscriptions().set(characteristic,
+                enabled ? GattOperation.SUBSCRIBE_AUTO : GattOperation.SUBSCRIBE_DISABLE, null);
+    }
+
+    /**
+     * 按UUID写，服务发现完成前也可以调用
+     */
+    public GattOperation writeCharacteristic(String address, UUID service, UUID characteristic,
+                                             byte[] value, GattOperation.Callback callback){
+        return enqueue(address, GattOperation.write(service, characteristic, value).setCallback(callback));
+    }
+
+    /**
+     * 按UUID打开或关闭通知，服务发现完成前也可以调用。和上面一样记录下来，重连后自动恢复
+     */
+    public GattOperation setCharacteristicNotification(String address, UUID service, UUID characteristic,
+                                                       boolean enabled) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (connection == null) {
+            return null;
+        }
+        return connection.getSubscriptions().set(service, characteristic,
+                enabled ? GattOperation.SUBSCRIBE_AUTO : GattOperation.SUBSCRIBE_DISABLE, null);
     }
+
+    /**
+     * 一次打开一组特征的通知或指示，CCCD写入连续排队，全部完成后回调一次。
+     * 断线重连后自动恢复
+     *
+     * @param mode GattOperation.SUBSCRIBE_*
+     * @return 未连接过该设备时返回false
+     */
+    public boolean subscribe(String address, Collection<UUID> characteristics, int mode,
+                             GattSubscriptionManager.Callback callback) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection != null && connection.getSubscriptions().subscribe(characteristics, mode, callback);
+    }
+
+    public boolean unsubscribe(String address, Collection<UUID> characteristics,
+                               GattSubscriptionManager.Callback callback) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection != null && connection.getSubscriptions().unsubscribe(characteristics, callback);
+    }
+
+    public GattSubscriptionManager getSubscriptions(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection == null ? null : connection.getSubscriptions();
+    }
+
+    /**
+     * 把操作加入当前设备的队列，上一个操作的回调到达后才会执行
+     *
+     * @return 已入队的操作，未连接时返回null
+     */
+    public GattOperation enqueue(GattOperation operation) {
+        return enqueue(mBluetoothDeviceAddress, operation);
+    }
+
+    public GattOperation enqueue(String address, GattOperation operation) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (mBluetoothAdapter == null || connection == null) {
+//            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        return connection.enqueue(operation);
+    }
+
+    /**
+     * 设置操作默认超时时间，对之后建立的连接生效
+     */
+    public void setOperationTimeout(long timeoutMillis) {
+        mOperationTimeout = timeoutMillis;
+        for (BluetoothLeConnection connection : mConnectionPool.getConnections()) {
+            connection.setOperationTimeout(timeoutMillis);
+        }
+    }
+
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
@@ -311,25 +683,290 @@ public class BluetoothLeClass {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        return getSupportedGattServices(mBluetoothDeviceAddress);
+    }
 
-        return mBluetoothGatt.getServices();
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        if (connection == null) return null;
+
+        return connection.getSupportedGattServices();
+    }
+
+    /**
+     * 订阅某个characteristic的数据（读结果和通知），在进程内直接回调
+     */
+    public void registerDataListener(UUID uuid, NotificationDispatcher.Listener listener) {
+        mDispatcher.register(uuid, listener);
     }
 
-    private void sleep() {
-        try {
-            Thread.sleep(500);
-        } catch (Exception e) {
-//            Log.e(TAG, "----e--" + e);
+    /**
+     * 订阅所有characteristic的数据
+     */
+    public void registerDataListener(NotificationDispatcher.Listener listener) {
+        mDispatcher.register(listener);
+    }
+
+    /**
+     * 订阅某个characteristic的数据，监听器在executor上执行
+     *
+     * @return 实际注册的监听器，注销时使用
+     */
+    public NotificationDispatcher.Listener registerDataListener(UUID uuid, NotificationDispatcher.Listener listener,
+                                                                Executor executor) {
+        NotificationDispatcher.Listener wrapped = NotificationDispatcher.onExecutor(listener, executor);
+        mDispatcher.register(uuid, wrapped);
+        return wrapped;
+    }
+
+    public void unregisterDataListener(UUID uuid, NotificationDispatcher.Listener listener) {
+        mDispatcher.unregister(uuid, listener);
+    }
+
+    public void unregisterDataListener(NotificationDispatcher.Listener listener) {
+        mDispatcher.unregister(listener);
+    }
+
+    /**
+     * 带背压的订阅：订阅者在自己的Executor上按request(n)拉取数据，处理不过来时按strategy缓存或丢弃
+     *
+     * @param uuid     特征UUID，null表示所有特征
+     * @param strategy NotificationStream.STRATEGY_*
+     * @param capacity 缓存条数
+     */
+    public NotificationStream.Subscription subscribe(UUID uuid, NotificationStream.Subscriber subscriber,
+                                                     Executor executor, int strategy, int capacity) {
+        return mStream.subscribe(uuid, subscriber, executor, strategy, capacity, null);
+    }
+
+    /**
+     * 合并模式订阅：同一设备同一特征未处理的数据用conflater合并
+     */
+    public NotificationStream.Subscription subscribe(UUID uuid, NotificationStream.Subscriber subscriber,
+                                                     Executor executor, int capacity,
+                                                     NotificationStream.Conflater conflater) {
+        return mStream.subscribe(uuid, subscriber, executor, NotificationStream.STRATEGY_CONFLATE,
+                capacity, conflater);
+    }
+
+    /**
+     * 打开后数据同时通过ACTION_DATA_AVAILABLE广播，兼容旧的BroadcastReceiver用法。
+     * 广播每次都要构造Intent并跨进程发送，高频通知时不要打开
+     */
+    public void setDataBroadcastEnabled(boolean enabled) {
+        mDataBroadcastEnabled = enabled;
+    }
+
+    public boolean isDataBroadcastEnabled() {
+        return mDataBroadcastEnabled;
+    }
+
+    /**
+     * 打开环形缓冲区：每条数据复制到预分配的槽位，由消费者在自己的线程上取出
+     *
+     * @param slotCount 槽位数
+     * @param slotSize  每个槽位的字节数，一般不小于MTU-3
+     * @return 新建的缓冲区，之前的缓冲区不再写入
+     */
+    public NotificationRingBuffer enableRingBuffer(int slotCount, int slotSize) {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(slotCount, slotSize);
+        mRouter.setRingBuffer(buffer);
+        return buffer;
+    }
+
+    public void disableRingBuffer() {
+        mRouter.setRingBuffer(null);
+    }
+
+    public NotificationRingBuffer getRingBuffer() {
+        return mRouter.getRingBuffer();
+    }
+
+    /**
+     * 按UUID查找特征，服务发现完成前返回null
+     */
+    public BluetoothGattCharacteristic getCharacteristic(String address, UUID characteristic) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection == null ? null : connection.getIndex().get(characteristic);
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(String address, int shortUuid) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection == null ? null : connection.getIndex().get(shortUuid);
+    }
+
+    public BluetoothGattDescriptor getDescriptor(String address, UUID characteristic, UUID descriptor) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection == null ? null : connection.getIndex().getDescriptor(characteristic, descriptor);
+    }
+
+    /**
+     * 上次服务发现保存的布局，没有缓存时返回null
+     */
+    public GattLayoutCache.Layout getCachedLayout(String address) {
+        if (mLayoutCache == null || address == null) {
+            return null;
+        }
+        return mLayoutCache.get(address);
+    }
+
+    /**
+     * 设备固件升级等导致服务变化时清除缓存
+     */
+    public void invalidateLayoutCache(String address) {
+        if (mLayoutCache != null) {
+            mLayoutCache.invalidate(address);
+        }
+    }
+
+    /**
+     * 开始录制所有连接的GATT事件，保存在filesDir/gatt_sessions下
+     */
+    public GattSessionRecorder startRecording() {
+        return startRecording(new File(context.getFilesDir(), "gatt_sessions"));
+    }
+
+    public synchronized GattSessionRecorder startRecording(File dir) {
+        stopRecording();
+        mRecorder = new GattSessionRecorder(dir);
+        return mRecorder;
+    }
+
+    public synchronized void stopRecording() {
+        GattSessionRecorder recorder = mRecorder;
+        mRecorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    GattSessionRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * 设备的回调线程，在上面创建Handler可以和该设备的回调按顺序执行，
+     * 例如作为registerReceiver的scheduler。设备未连接时返回null
+     */
+    public Looper getCallbackLooper(String address) {
+        BluetoothLeConnection connection = getConnection(address);
+        return connection == null ? null : connection.getCallbackLooper();
+    }
+
+    /**
+     * 各设备连接、服务发现、读写耗时和通知吞吐的统计
+     */
+    public GattMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 在后台线程上回放录制的会话：读、通知事件走和真实数据相同的分发路径，
+     * 连接状态事件发出ACTION_GATT_CONNECTED/ACTION_GATT_DISCONNECTED广播。
+     * 不要回放正在录制的目录
+     *
+     * @param realTime true按录制时的间隔回放，false以最快速度回放
+     * @return 调用stop()可以提前结束
+     */
+    public GattSessionReplayer replaySession(File dir, boolean realTime) {
+        final GattSessionReplayer replayer = new GattSessionReplayer(dir, realTime);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long count = replayer.replay(new GattSessionReplayer.EventListener() {
+                        @Override
+                        public void onEvent(int event, long timeNanos, String address, UUID uuid,
+                                            int status, int arg, byte[] value) {
+                            replayEvent(event, address, uuid, status, arg, value);
+                        }
+                    });
+                    Log.d(TAG, "replayed " + count + " events");
+                } catch (IOException e) {
+                    Log.e(TAG, "replay failed", e);
+                }
+            }
+        }, "gatt-replay").start();
+        return replayer;
+    }
+
+    private void replayEvent(int event, String address, UUID uuid, int status, int arg, byte[] value) {
+        switch (event) {
+            case GattSessionRecorder.EVENT_READ:
+            case GattSessionRecorder.EVENT_NOTIFY:
+                if (uuid != null && status == BluetoothGatt.GATT_SUCCESS) {
+                    dispatchData(address, uuid, value);
+                }
+                break;
+            case GattSessionRecorder.EVENT_CONNECTION_STATE:
+                if (context == null) {
+                    break;
+                }
+                if (arg == BluetoothProfile.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+                    broadcastUpdate(ACTION_GATT_CONNECTED, address);
+                } else if (arg == BluetoothProfile.STATE_DISCONNECTED) {
+                    broadcastUpdate(ACTION_GATT_DISCONNECTED, address);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    Context getContext() {
+        return context;
+    }
+
+    /**
+     * 连接建立（服务发现完成）或失败，恢复被暂停的扫描
+     */
+    void onConnectionSetupFinished(String address) {
+        ScanScheduler.getInstance().resume(address);
+    }
+
+    /**
+     * 连接成功：记入已知设备
+     */
+    void onConnected(String address, BluetoothDevice device) {
+        KnownDeviceStore store = mKnownDevices;
+        if (store != null) {
+            store.remember(address, device.getName());
+        }
+    }
+
+    /**
+     * 服务发现完成：布局有变化时更新缓存并解析打印，没变化时直接通知
+     */
+    void onServicesDiscovered(String address, List<BluetoothGattService> gattServices) {
+        boolean changed = true;
+        if (mLayoutCache != null && gattServices != null) {
+            changed = mLayoutCache.put(GattLayoutCache.Layout.from(address, gattServices));
+        }
+        if (changed) {
+            displayGattServices(address, gattServices);
+        } else {
+            broadcastUpdateService(ACTION_GATT_SERVICESDISCOVERED, address);
+        }
+    }
+
+    /**
+     * 收到数据：先写入环形缓冲区、分发给进程内订阅者，兼容模式下再发广播
+     */
+    void dispatchData(String address, UUID uuid, byte[] value) {
+        mRouter.onData(address, uuid, value);
+        if (mDataBroadcastEnabled) {
+            broadcastUpdate(ACTION_DATA_AVAILABLE, address, uuid, value);
         }
     }
 
     /**
      * 连接、断开发送广播
      * @param action
+     * @param address
      */
-    private void broadcastUpdate(final String action) {
+    void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         context.sendBroadcast(intent);
     }
 
@@ -344,13 +981,12 @@ public class BluetoothLeClass {
         context.sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
-        String uuid = characteristic.getUuid().toString();
+    void broadcastUpdate(final String action, final String address, final UUID uuid, final byte[] data) {
         final Intent intent = new Intent(action);
-        intent.putExtra(EXTRA_UUID_CHAR, characteristic.getUuid().toString());
+        intent.putExtra(EXTRA_ADDRESS, address);
+        intent.putExtra(EXTRA_UUID_CHAR, uuid.toString());
 
         // Always try to add the RAW value
-        final byte[] data = characteristic.getValue();
         if (data != null && data.length > 0) {
             intent.putExtra(EXTRA_DATA_RAW, data);
         }
@@ -363,22 +999,25 @@ public class BluetoothLeClass {
      * 解析服务：循环打印uuid，针对项目的char uuid可找到后就停止解析
      * @param gattServices
      */
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
+    void displayGattServices(String address, List<BluetoothGattService> gattServices) {
         if (gattServices == null) {
             broadcastUpdateService(ACTION_GATT_SERVICESDISCOVERED, null);
             return;
         }
 
+        long addressBits = GattSessionRecorder.addressToLong(address);
         for (BluetoothGattService gattService : gattServices) {
             //-----Service的字段信息-----//
-            Log.e(TAG,"-->service uuid:"+gattService.getUuid());
+            List<BluetoothGattCharacteristic> characteristics = gattService.getCharacteristics();
+            GattTrace.trace(GattTrace.INFO, GattTrace.EVENT_SERVICE, addressBits, gattService.getUuid(),
+                    characteristics.size());
 
 //            String serviceUUID = gattService.getUuid().toString().toUpperCase();
 //            if (serviceUUID.contains("FFE0"))
 //            {
-                List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
-                for (final BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                    Log.e(TAG, "---->char uuid:" + gattCharacteristic.getUuid());
+                for (final BluetoothGattCharacteristic gattCharacteristic : characteristics) {
+                    GattTrace.trace(GattTrace.INFO, GattTrace.EVENT_CHARACTERISTIC, addressBits,
+                            gattCharacteristic.getUuid(), gattCharacteristic.getProperties());
 //                    String charUUID = gattCharacteristic.getUuid().toString().toUpperCase();
 //                    if (charUUID.contains("FFE4")) {
 //                        mCharacFFE4 = gattCharacteristic;
@@ -408,6 +1047,6 @@ public class BluetoothLeClass {
 //        } else {
 //            broadcastUpdateService(ACTION_GATT_SERVICESDISCOVERED, null);
 //        }
-        broadcastUpdateService(ACTION_GATT_SERVICESDISCOVERED, mBluetoothDeviceAddress);
+        broadcastUpdateService(ACTION_GATT_SERVICESDISCOVERED, address);
     }
 }
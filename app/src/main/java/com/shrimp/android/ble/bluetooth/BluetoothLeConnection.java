@@ -0,0 +1,656 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 单个设备的连接：持有自己的BluetoothGatt、回调线程、操作队列和连接状态，
+ *          由{@link BluetoothLeConnectionPool}统一管理
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class BluetoothLeConnection {
+    private final static String TAG = BluetoothLeConnection.class.getSimpleName();
+
+    /**
+     * ATT默认MTU，每包有效数据MTU-3=20字节
+     */
+    public static final int DEFAULT_MTU = 23;
+    public static final int DEFAULT_PREFERRED_MTU = 247;
+
+    private final BluetoothLeClass owner;
+    private final BluetoothDevice device;
+    private final String address;
+    // 录制时使用的地址，创建时转换一次
+    private final long addressBits;
+    private volatile BluetoothGatt mBluetoothGatt;
+    private final GattOperationQueue mOperationQueue;
+    private final WriteCoalescer coalescer;
+    private final GattSubscriptionManager subscriptions;
+    // 本连接的回调线程，回调处理、操作超时和重连都在这个线程上
+    private final HandlerThread thread;
+    private final Handler handler;
+    private volatile GattCharacteristicIndex mIndex = GattCharacteristicIndex.EMPTY;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile int preferredMtu = DEFAULT_PREFERRED_MTU;
+    private final NotificationPath notifications;
+    private final GattMetrics.DeviceMetrics metrics;
+    // 连接、服务发现开始的时间（System.nanoTime）
+    private volatile long connectStartTime;
+    private volatile long discoveryStartTime;
+
+    private volatile int state = BluetoothProfile.STATE_DISCONNECTED;
+    private volatile long lastActiveTime;
+
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile boolean userDisconnected;
+    private volatile boolean autoConnect;
+    private int reconnectAttempts;
+
+    BluetoothLeConnection(BluetoothLeClass owner, BluetoothDevice device) {
+        this.owner = owner;
+        this.device = device;
+        this.address = device.getAddress();
+        this.addressBits = GattSessionRecorder.addressToLong(address);
+        this.thread = new HandlerThread("gatt-" + address);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper(), callbackDispatcher);
+        this.mOperationQueue = new GattOperationQueue(handler);
+        this.coalescer = new WriteCoalescer(this, handler);
+        this.subscriptions = new GattSubscriptionManager(this);
+        this.metrics = owner.getMetrics().device(address);
+        this.notifications = new NotificationPath(address, metrics, new NotificationPath.Sink() {
+            @Override
+            public void onData(String address, UUID uuid, byte[] value) {
+                owner.dispatchData(address, uuid, value);
+            }
+        });
+        this.mOperationQueue.setMetrics(metrics);
+        this.lastActiveTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 定时重连，在本连接的线程上执行，不阻塞回调线程
+     */
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            if (userDisconnected) {
+                return;
+            }
+            if (!connect(owner.getContext(), false)) {
+                scheduleReconnect(ReconnectPolicy.GATT_ERROR);
+            }
+        }
+    };
+
+    private static final int MSG_CONNECTION_STATE = 1;
+    private static final int MSG_SERVICES_DISCOVERED = 2;
+    private static final int MSG_READ = 3;
+    private static final int MSG_CHANGED = 4;
+    private static final int MSG_WRITE = 5;
+    private static final int MSG_MTU = 6;
+    private static final int MSG_RELIABLE_WRITE = 7;
+    private static final int MSG_DESCRIPTOR_WRITE = 8;
+
+    private static final int EVENT_POOL_SIZE = 16;
+
+    /**
+     * 回调转到设备线程时携带的特征和值。BluetoothGatt每次回调都会给characteristic设置新的数组，
+     * 所以只保存引用不复制。处理完后回收到eventPool，稳定读写时不再分配
+     */
+    private static final class ValueEvent {
+        BluetoothGattCharacteristic characteristic;
+        byte[] value;
+    }
+
+    private final ValueEvent[] eventPool = new ValueEvent[EVENT_POOL_SIZE];
+    private int pooledEvents;
+
+    private ValueEvent obtainEvent(BluetoothGattCharacteristic characteristic, byte[] value) {
+        ValueEvent event = null;
+        synchronized (eventPool) {
+            if (pooledEvents > 0) {
+                event = eventPool[--pooledEvents];
+                eventPool[pooledEvents] = null;
+            }
+        }
+        if (event == null) {
+            event = new ValueEvent();
+        }
+        event.characteristic = characteristic;
+        event.value = value;
+        return event;
+    }
+
+    private void recycleEvent(ValueEvent event) {
+        event.characteristic = null;
+        event.value = null;
+        synchronized (eventPool) {
+            if (pooledEvents < EVENT_POOL_SIZE) {
+                eventPool[pooledEvents++] = event;
+            }
+        }
+    }
+
+    /**
+     * 回调：binder线程上只记录时间、录制和跟踪，其余处理按顺序转到本连接自己的线程，
+     * 慢的处理不会拖住后面的回调，也不会影响其他设备
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            GattTrace.trace(status == BluetoothGatt.GATT_SUCCESS ? GattTrace.INFO : GattTrace.WARN,
+                    GattTrace.EVENT_CONNECTION_STATE, addressBits, status, newState);
+            state = newState;
+            touch();
+            record(GattSessionRecorder.EVENT_CONNECTION_STATE, null, status, newState, null);
+            if (newState == BluetoothProfile.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+                long now = System.nanoTime();
+                if (connectStartTime != 0) {
+                    metrics.recordConnect(now - connectStartTime);
+                    connectStartTime = 0;
+                }
+                discoveryStartTime = now;
+            }
+            handler.sendMessage(handler.obtainMessage(MSG_CONNECTION_STATE, status, newState, gatt));
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            record(GattSessionRecorder.EVENT_SERVICES_DISCOVERED, null, status, 0, null);
+            if (status == BluetoothGatt.GATT_SUCCESS && discoveryStartTime != 0) {
+                metrics.recordDiscovery(System.nanoTime() - discoveryStartTime);
+                discoveryStartTime = 0;
+            }
+            handler.sendMessage(handler.obtainMessage(MSG_SERVICES_DISCOVERED, status, 0, gatt));
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            touch();
+            byte[] value = characteristic.getValue();
+            if (GattTrace.isEnabled(GattTrace.VERBOSE)) {
+                GattTrace.trace(GattTrace.VERBOSE, GattTrace.EVENT_READ, addressBits,
+                        characteristic.getUuid(), status);
+            }
+            record(GattSessionRecorder.EVENT_READ, characteristic.getUuid(), status, 0, value);
+            handler.sendMessage(handler.obtainMessage(MSG_READ, status, 0,
+                    obtainEvent(characteristic, value)));
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            touch();
+            handler.sendMessage(handler.obtainMessage(MSG_CHANGED, notifications.onNotification(
+                    characteristic.getUuid(), characteristic.getValue(), owner.getRecorder())));
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            record(GattSessionRecorder.EVENT_MTU, null, status, mtu, null);
+            GattTrace.trace(GattTrace.INFO, GattTrace.EVENT_MTU, addressBits, mtu, status);
+            handler.sendMessage(handler.obtainMessage(MSG_MTU, mtu, status, null));
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic, int status) {
+            touch();
+            byte[] value = characteristic.getValue();
+            if (GattTrace.isEnabled(GattTrace.VERBOSE)) {
+                GattTrace.trace(GattTrace.VERBOSE, GattTrace.EVENT_WRITE, addressBits,
+                        characteristic.getUuid(), status);
+            }
+            record(GattSessionRecorder.EVENT_WRITE, characteristic.getUuid(), status, 0, value);
+            handler.sendMessage(handler.obtainMessage(MSG_WRITE, status, 0,
+                    obtainEvent(characteristic, value)));
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            touch();
+            handler.sendMessage(handler.obtainMessage(MSG_RELIABLE_WRITE, status, 0, null));
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            touch();
+            handler.sendMessage(handler.obtainMessage(MSG_DESCRIPTOR_WRITE, status, 0,
+                    obtainEvent(descriptor.getCharacteristic(), descriptor.getValue())));
+        }
+    };
+
+    /**
+     * 在本连接的线程上按回调顺序处理
+     */
+    private final Handler.Callback callbackDispatcher = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CONNECTION_STATE:
+                    handleConnectionStateChange((BluetoothGatt) msg.obj, msg.arg1, msg.arg2);
+                    return true;
+                case MSG_SERVICES_DISCOVERED:
+                    handleServicesDiscovered((BluetoothGatt) msg.obj, msg.arg1);
+                    return true;
+                case MSG_READ: {
+                    ValueEvent event = (ValueEvent) msg.obj;
+                    BluetoothGattCharacteristic characteristic = event.characteristic;
+                    byte[] value = event.value;
+                    recycleEvent(event);
+                    owner.dispatchData(address, characteristic.getUuid(), value);
+                    mOperationQueue.onComplete(GattOperation.TYPE_READ, characteristic, msg.arg1, value);
+                    return true;
+                }
+                case MSG_CHANGED:
+                    notifications.deliver((NotificationPath.Event) msg.obj);
+                    return true;
+                case MSG_WRITE: {
+                    ValueEvent event = (ValueEvent) msg.obj;
+                    BluetoothGattCharacteristic characteristic = event.characteristic;
+                    byte[] value = event.value;
+                    recycleEvent(event);
+                    if (owner.isDataBroadcastEnabled()) {
+                        owner.broadcastUpdate(BluetoothLeClass.ACTION_DATA_AVAILABLE, address,
+                                characteristic.getUuid(), value);
+                    }
+                    mOperationQueue.onComplete(GattOperation.TYPE_WRITE, characteristic, msg.arg1, value);
+                    return true;
+                }
+                case MSG_MTU:
+                    if (msg.arg2 == BluetoothGatt.GATT_SUCCESS) {
+                        mtu = msg.arg1;
+                    }
+                    mOperationQueue.onComplete(GattOperation.TYPE_MTU, msg.arg2, msg.arg1);
+                    return true;
+                case MSG_RELIABLE_WRITE:
+                    mOperationQueue.onComplete(GattOperation.TYPE_EXECUTE_RELIABLE_WRITE, msg.arg1, 0);
+                    return true;
+                case MSG_DESCRIPTOR_WRITE: {
+                    ValueEvent event = (ValueEvent) msg.obj;
+                    BluetoothGattCharacteristic characteristic = event.characteristic;
+                    byte[] value = event.value;
+                    recycleEvent(event);
+                    mOperationQueue.onComplete(GattOperation.TYPE_WRITE_DESCRIPTOR, characteristic, msg.arg1,
+                            value);
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        }
+    };
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED && status == BluetoothGatt.GATT_SUCCESS) {
+            synchronized (this) {
+                reconnectAttempts = 0;
+            }
+            owner.onConnected(address, device);
+
+            if (owner.getCachedLayout(address) != null) {
+                // 布局已缓存，调用者可以马上按UUID排队读写，仍在服务发现完成后才执行
+                owner.broadcastUpdate(BluetoothLeClass.ACTION_GATT_SERVICES_CACHED, address);
+            }
+            // important, Attempts to discover services after successful connection.
+            // Android必须先发现服务才能拿到句柄，每次连接都要等服务发现，索引也从发现的结果重建
+            gatt.discoverServices();
+
+            owner.broadcastUpdate(BluetoothLeClass.ACTION_GATT_CONNECTED, address);
+
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            metrics.recordDisconnect();
+            mOperationQueue.setPaused(true);
+            mOperationQueue.clear(GattOperation.STATUS_DISCONNECTED);
+            subscriptions.onDisconnected();
+            resetLink();
+            owner.broadcastUpdate(BluetoothLeClass.ACTION_GATT_DISCONNECTED, address);
+        }
+        if (newState == BluetoothProfile.STATE_DISCONNECTED || status != BluetoothGatt.GATT_SUCCESS) {
+            owner.onConnectionSetupFinished(address);
+            // 133等状态码->需要清除原来的连接，按策略延时重连
+            scheduleReconnect(status);
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            // 建立UUID索引，之后读写不用再遍历服务
+            List<BluetoothGattService> services = gatt.getServices();
+            GattTrace.trace(GattTrace.INFO, GattTrace.EVENT_SERVICES_DISCOVERED, addressBits, status,
+                    services == null ? 0 : services.size());
+            mIndex = GattCharacteristicIndex.build(services);
+            mOperationQueue.setIndex(mIndex);
+            // 解析服务
+            owner.onServicesDiscovered(address, services);
+            // 恢复订阅，排在用户操作之前，重连后不会漏掉通知
+            subscriptions.restore();
+            // 先协商MTU再执行排队的读写，分包时按新的MTU
+            if (preferredMtu > mtu && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mOperationQueue.enqueueFirst(GattOperation.requestMtu(preferredMtu));
+            }
+        }
+        // 服务发现完成，开始执行排队的操作
+        mOperationQueue.setPaused(false);
+        owner.onConnectionSetupFinished(address);
+    }
+
+    /**
+     * 建立连接，已有BluetoothGatt时直接重连
+     */
+    boolean connect(Context context) {
+        return connect(context, true);
+    }
+
+    /**
+     * 延时建立连接，用于关闭旧连接后留出时间给协议栈释放资源
+     */
+    void connectDelayed(long delayMillis) {
+        userDisconnected = false;
+        state = BluetoothProfile.STATE_CONNECTING;
+        handler.removeCallbacks(reconnectTask);
+        handler.postDelayed(reconnectTask, delayMillis);
+    }
+
+    private synchronized boolean connect(Context context, boolean byUser) {
+        touch();
+        if (byUser) {
+            userDisconnected = false;
+            reconnectAttempts = 0;
+            handler.removeCallbacks(reconnectTask);
+        }
+        if (mBluetoothGatt != null && state == BluetoothProfile.STATE_CONNECTED && !mIndex.isEmpty()) {
+            // 已连接且服务发现已完成，不会再有回调来恢复队列，不能暂停
+            return true;
+        }
+        // 连接建立、服务发现完成之前只排队不执行
+        mOperationQueue.setPaused(true);
+        connectStartTime = System.nanoTime();
+        GattTrace.trace(GattTrace.DEBUG, GattTrace.EVENT_CONNECT, addressBits, byUser ? 1 : 0);
+        if (mBluetoothGatt != null) {
+//            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+            return mBluetoothGatt.connect();
+        }
+        // 默认直连，设备在附近时最快；autoConnect由协议栈在后台等设备出现，不会超时
+        mBluetoothGatt = device.connectGatt(context, autoConnect, mGattCallback);
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        state = BluetoothProfile.STATE_CONNECTING;
+        mOperationQueue.setGatt(mBluetoothGatt);
+        return true;
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection.
+     */
+    synchronized void disconnect() {
+        userDisconnected = true;
+        handler.removeCallbacks(reconnectTask);
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.disconnect();
+    }
+
+    /**
+     * 断开并释放BluetoothGatt
+     */
+    synchronized void close() {
+        userDisconnected = true;
+        handler.removeCallbacks(reconnectTask);
+        releaseGatt();
+        // 已经排队的回调处理完再退出
+        thread.quitSafely();
+    }
+
+    private synchronized void releaseGatt() {
+        if (mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.disconnect();
+        mOperationQueue.clear(GattOperation.STATUS_DISCONNECTED);
+        subscriptions.onDisconnected();
+        mOperationQueue.setGatt(null);
+        mOperationQueue.setIndex(null);
+        mIndex = GattCharacteristicIndex.EMPTY;
+        resetLink();
+        mBluetoothGatt.close();
+        mBluetoothGatt = null;
+        state = BluetoothProfile.STATE_DISCONNECTED;
+    }
+
+    GattOperation enqueue(GattOperation operation) {
+        if (mBluetoothGatt == null) {
+            return null;
+        }
+        touch();
+        return mOperationQueue.enqueue(operation);
+    }
+
+    GattOperation enqueueFirst(GattOperation operation) {
+        if (mBluetoothGatt == null) {
+            return null;
+        }
+        return mOperationQueue.enqueueFirst(operation);
+    }
+
+    /**
+     * 把一组操作按原顺序插到队列最前面
+     */
+    boolean enqueueAllFirst(List<GattOperation> operations) {
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        mOperationQueue.enqueueAllFirst(operations);
+        return true;
+    }
+
+    /**
+     * 连续加入一组操作，中间不会插入其他操作
+     */
+    boolean enqueueAll(List<GattOperation> operations) {
+        if (mBluetoothGatt == null) {
+            return false;
+        }
+        touch();
+        mOperationQueue.enqueueAll(operations);
+        return true;
+    }
+
+    /**
+     * 按策略安排下一次重连：只postDelayed，不在回调线程上等待
+     */
+    private synchronized void scheduleReconnect(int status) {
+        ReconnectPolicy policy = reconnectPolicy;
+        if (policy == null) {
+            return;
+        }
+        int action = policy.actionFor(status, userDisconnected);
+        if (action == ReconnectPolicy.ACTION_NONE) {
+            return;
+        }
+        if (reconnectAttempts >= policy.getMaxAttempts()) {
+            GattTrace.trace(GattTrace.WARN, GattTrace.EVENT_RECONNECT_GIVE_UP, addressBits, reconnectAttempts);
+            releaseGatt();
+            return;
+        }
+        if (action == ReconnectPolicy.ACTION_RECREATE) {
+            releaseGatt();
+        }
+        long delay = policy.delayFor(reconnectAttempts++);
+        GattTrace.trace(GattTrace.DEBUG, GattTrace.EVENT_RECONNECT, addressBits, reconnectAttempts, delay);
+        handler.removeCallbacks(reconnectTask);
+        handler.postDelayed(reconnectTask, delay);
+    }
+
+    /**
+     * 按当前MTU分包写入，某一包失败时取消剩下的包
+     */
+    GattOperation writeFragmented(UUID characteristic, byte[] payload, GattOperation.Callback callback) {
+        return writeFragmented(characteristic, payload, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, callback);
+    }
+
+    GattOperation writeFragmented(UUID characteristic, byte[] payload, int writeType,
+                                  GattOperation.Callback callback) {
+        int chunkSize = mtu - 3;
+        if (payload == null || payload.length <= chunkSize) {
+            return enqueue(GattOperation.write(characteristic, payload).setWriteType(writeType)
+                    .setCallback(callback));
+        }
+        List<GattOperation> chunks = GattOperation.writeFragments(characteristic, payload, chunkSize,
+                writeType, callback);
+        // 一次加入队列，其他调用者对同一特征的写入不会插到分包中间
+        return enqueueAll(chunks) ? chunks.get(chunks.size() - 1) : null;
+    }
+
+    /**
+     * 合并写入，见{@link WriteCoalescer}
+     */
+    void writeCoalesced(UUID characteristic, byte[] command, int writeType, GattOperation.Callback callback) {
+        coalescer.write(characteristic, command, writeType, callback);
+    }
+
+    void flushWrites() {
+        coalescer.flushAll();
+    }
+
+    void setWriteCoalesceWindow(long windowMillis) {
+        coalescer.setWindow(windowMillis);
+    }
+
+    void setFrameReassembler(UUID characteristic, FrameReassembler reassembler) {
+        notifications.setFrameReassembler(characteristic, reassembler);
+    }
+
+    void setPreferredMtu(int mtu) {
+        this.preferredMtu = mtu;
+    }
+
+    /**
+     * 当前协商好的MTU
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     * 断开后MTU恢复默认，丢弃未拼完的帧和未发出的合并写入
+     */
+    private void resetLink() {
+        mtu = DEFAULT_MTU;
+        coalescer.clear();
+        notifications.reset();
+    }
+
+    /**
+     * 下次创建BluetoothGatt时是否使用autoConnect
+     */
+    void setAutoConnect(boolean autoConnect) {
+        this.autoConnect = autoConnect;
+    }
+
+    void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    void setOperationTimeout(long timeoutMillis) {
+        mOperationQueue.setDefaultTimeout(timeoutMillis);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return BluetoothProfile.STATE_*
+     */
+    public int getState() {
+        return state;
+    }
+
+    public boolean isConnected() {
+        return state == BluetoothProfile.STATE_CONNECTED;
+    }
+
+    /**
+     * 最近一次连接、读写或收到数据的时间（elapsedRealtime）
+     */
+    public long getLastActiveTime() {
+        return lastActiveTime;
+    }
+
+    /**
+     * 没有未完成的操作，并且超过idleMillis没有数据往来
+     */
+    public boolean isIdle(long now, long idleMillis) {
+        return mOperationQueue.isIdle() && now - lastActiveTime >= idleMillis;
+    }
+
+    /**
+     * 服务发现完成前返回空索引
+     */
+    public GattCharacteristicIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * 本连接的通知订阅，断线后保留，重连时自动恢复
+     */
+    public GattSubscriptionManager getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * 本连接的回调线程，可以用来创建Handler，让监听器和回调在同一个线程上按顺序执行
+     */
+    public Looper getCallbackLooper() {
+        return thread.getLooper();
+    }
+
+    public List<BluetoothGattService> getSupportedGattServices() {
+        BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null) return null;
+
+        return gatt.getServices();
+    }
+
+    /**
+     * 打开录制时记录一条回调事件
+     */
+    private void record(int event, UUID uuid, int status, int arg, byte[] value) {
+        GattSessionRecorder recorder = owner.getRecorder();
+        if (recorder != null) {
+            recorder.record(event, addressBits, uuid, status, arg, value);
+        }
+    }
+
+    private void touch() {
+        lastActiveTime = SystemClock.elapsedRealtime();
+    }
+}
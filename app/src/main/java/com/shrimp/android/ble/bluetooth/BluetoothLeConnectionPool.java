@@ -0,0 +1,105 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 多设备连接池：按地址保存连接，限制同时连接数，满了以后按LRU淘汰空闲连接
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class BluetoothLeConnectionPool {
+
+    /**
+     * Android同时连接的BLE设备一般不超过7个
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    /**
+     * 超过这个时间没有数据往来的连接才算空闲，可以被淘汰
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 10 * 1000;
+
+    // accessOrder = true，迭代顺序即最近最少使用顺序
+    private final LinkedHashMap<String, BluetoothLeConnection> connections =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections < 1");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public synchronized void setIdleTimeout(long idleMillis) {
+        this.idleTimeout = idleMillis;
+    }
+
+    /**
+     * 取出连接并标记为最近使用
+     */
+    public synchronized BluetoothLeConnection get(String address) {
+        return connections.get(address);
+    }
+
+    public synchronized void put(BluetoothLeConnection connection) {
+        connections.put(connection.getAddress(), connection);
+    }
+
+    public synchronized BluetoothLeConnection remove(String address) {
+        return connections.remove(address);
+    }
+
+    public synchronized int size() {
+        return connections.size();
+    }
+
+    public synchronized boolean isFull() {
+        return connections.size() >= maxConnections;
+    }
+
+    /**
+     * 移除最久未使用的空闲连接，由调用者负责close
+     *
+     * @return 被移除的连接，没有空闲连接时返回null
+     */
+    public synchronized BluetoothLeConnection evictIdle() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<BluetoothLeConnection> it = connections.values().iterator();
+        while (it.hasNext()) {
+            BluetoothLeConnection connection = it.next();
+            if (connection.isIdle(now, idleTimeout)) {
+                it.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 当前所有连接，按最近最少使用排序
+     */
+    public synchronized List<BluetoothLeConnection> getConnections() {
+        return new ArrayList<>(connections.values());
+    }
+
+    /**
+     * 清空连接池，由调用者负责close
+     */
+    public synchronized List<BluetoothLeConnection> removeAll() {
+        List<BluetoothLeConnection> all = new ArrayList<>(connections.values());
+        connections.clear();
+        return all;
+    }
+}
@@ -1,26 +1,57 @@
 package com.shrimp.android.ble.bluetooth;
 
+import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 
 /**
  * 项目名称：BluetoothDemo
  * 包名称： com.shrimp.android.ble.bluetooth
- * 类描述： 蓝牙扫描类：搜索蓝牙，连接前取消搜索，加快连接
+ * 类描述： 蓝牙扫描类：搜索蓝牙，连接前取消搜索，加快连接。
+ *          支持两种方式：经典搜索{@link #scanDevice()}，以及只搜BLE设备的{@link #scanLeDevice(ScanConfig, BluetoothReceiver.IBluetoothDiscoverListener)}，
+ *          后者可以选择扫描模式、把过滤条件交给蓝牙芯片，并支持批量上报
  * author: ywq
  * 创建时间：2017/2/4
  */
 public class BluetoothLeScanner
 {
 
+	/**
+	 * 低功耗扫描，发现设备较慢
+	 */
+	public static final int SCAN_MODE_LOW_POWER = 0;
+	/**
+	 * 功耗和速度平衡
+	 */
+	public static final int SCAN_MODE_BALANCED = 1;
+	/**
+	 * 最快发现设备，功耗最高，只适合前台短时间扫描
+	 */
+	public static final int SCAN_MODE_LOW_LATENCY = 2;
+
 	private static BluetoothAdapter mBluetoothAdapter;
 	
-	// 默认扫描设备30s，之后停止扫描，可修改扫描时间
-//	private long					  SCAN_PERIOD = 60 * 1000;
+	// 扫描时长、占空比和找到目标后提前结束由ScanScheduler控制
 	private static boolean			  mScanning;
 	
+	// BLE扫描回调，5.0以上是ScanCallback，以下是LeScanCallback
+	private static Object			  mLeScanCallback;
+	
 	/**
 	 * 开启蓝牙设备
 	 */
@@ -69,6 +100,120 @@ public class BluetoothLeScanner
 		mBluetoothAdapter.startDiscovery();
 	}
 	
+	/**
+	 * 只搜索BLE设备。5.0以上使用BluetoothLeScanner，过滤条件交给芯片处理；
+	 * 以下使用startLeScan，服务UUID在协议栈过滤，名称和地址在回调里过滤。
+	 * config.isClassicFallback()为true且系统不支持BLE扫描时退回经典搜索，结果通过BluetoothReceiver上报
+	 *
+	 * @param config   扫描参数
+	 * @param listener 结果回调；实现了IBluetoothScanListener时同时上报rssi和广播数据
+	 * @return 是否开始扫描
+	 */
+	public static boolean scanLeDevice(ScanConfig config, BluetoothReceiver.IBluetoothDiscoverListener listener) {
+		return scanLeDevice(config, listener, config.isClassicFallback());
+	}
+	
+	/**
+	 * @param classicFallback 覆盖config中的设置，ScanScheduler调度的扫描不退回经典搜索
+	 */
+	static boolean scanLeDevice(ScanConfig config, BluetoothReceiver.IBluetoothDiscoverListener listener,
+								boolean classicFallback) {
+		if (mBluetoothAdapter == null) {
+			return false;
+		}
+		if (!mBluetoothAdapter.isEnabled())
+		{
+			mBluetoothAdapter.enable();
+		}
+		cancelScan();
+		boolean started;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+		{
+			started = LollipopScanner.start(mBluetoothAdapter, config, listener, classicFallback);
+		}
+		else
+		{
+			started = startLegacyLeScan(config, listener);
+		}
+		if (!started && classicFallback)
+		{
+			scanDevice();
+			return true;
+		}
+		mScanning = started;
+		return started;
+	}
+	
+	/**
+	 * 批量上报模式下立即取出芯片缓存的结果
+	 */
+	public static void flushPendingScanResults() {
+		if (mBluetoothAdapter == null || mLeScanCallback == null) {
+			return;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+		{
+			LollipopScanner.flush(mBluetoothAdapter);
+		}
+	}
+	
+	@SuppressWarnings("deprecation")
+	private static boolean startLegacyLeScan(final ScanConfig config,
+			final BluetoothReceiver.IBluetoothDiscoverListener listener) {
+		// 回调在binder线程上，每次扫描用自己的解析器
+		final AdvertisementParser parser = new AdvertisementParser();
+		BluetoothAdapter.LeScanCallback callback = new BluetoothAdapter.LeScanCallback()
+		{
+			@Override
+			public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+				if (config.acceptRecord(parser, device, rssi, scanRecord) && config.accept(device))
+				{
+					deliver(listener, device, rssi, scanRecord);
+				}
+			}
+		};
+		UUID[] uuids = config.serviceUuids.isEmpty() ? null
+				: config.serviceUuids.toArray(new UUID[config.serviceUuids.size()]);
+		boolean started = uuids == null ? mBluetoothAdapter.startLeScan(callback)
+				: mBluetoothAdapter.startLeScan(uuids, callback);
+		if (started)
+		{
+			mLeScanCallback = callback;
+		}
+		return started;
+	}
+	
+	@SuppressWarnings("deprecation")
+	private static void stopLeScan() {
+		if (mLeScanCallback == null) {
+			return;
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+		{
+			LollipopScanner.stop(mBluetoothAdapter);
+		}
+		else
+		{
+			mBluetoothAdapter.stopLeScan((BluetoothAdapter.LeScanCallback) mLeScanCallback);
+		}
+		mLeScanCallback = null;
+	}
+	
+	static void deliver(BluetoothReceiver.IBluetoothDiscoverListener listener, BluetoothDevice device,
+			int rssi, byte[] scanRecord) {
+		if (listener == null) {
+			return;
+		}
+		if (listener instanceof BluetoothReceiver.IBluetoothScanListener)
+		{
+			((BluetoothReceiver.IBluetoothScanListener) listener).onDeviceFound(device, rssi, scanRecord);
+		}
+		else
+		{
+			listener.onDeviceFound(device);
+		}
+	}
+	
 	/**
 	 * 取消搜索设备
 	 */
@@ -76,6 +221,11 @@ public class BluetoothLeScanner
 		if (mBluetoothAdapter == null) {
 			return;
 		}
+		if (mLeScanCallback != null)
+		{
+			stopLeScan();
+			mScanning = false;
+		}
 		if (mScanning || mBluetoothAdapter.isDiscovering())
 		{
 			mBluetoothAdapter.cancelDiscovery();
@@ -97,4 +247,258 @@ public class BluetoothLeScanner
 	public static BluetoothAdapter getBluetoothAdapter() {
 		return mBluetoothAdapter;
 	}
+	
+	/**
+	 * BLE扫描参数
+	 */
+	public static class ScanConfig
+	{
+		private int				scanMode	= SCAN_MODE_BALANCED;
+		private long			reportDelay;
+		private boolean			classicFallback = true;
+		private AdvertisementFilter	filter		= AdvertisementFilter.ACCEPT_ALL;
+		final Set<UUID>			serviceUuids = new HashSet<>();
+		final Set<String>		names		= new HashSet<>();
+		final Set<String>		addresses	= new HashSet<>();
+		
+		/**
+		 * @param scanMode SCAN_MODE_LOW_POWER、SCAN_MODE_BALANCED或SCAN_MODE_LOW_LATENCY
+		 */
+		public ScanConfig setScanMode(int scanMode) {
+			this.scanMode = scanMode;
+			return this;
+		}
+		
+		/**
+		 * 批量上报延时，大于0时芯片缓存结果，每隔reportDelay毫秒一次性上报；
+		 * 芯片不支持批量上报时忽略
+		 */
+		public ScanConfig setReportDelay(long reportDelayMillis) {
+			this.reportDelay = reportDelayMillis;
+			return this;
+		}
+		
+		/**
+		 * 不支持BLE扫描时是否退回经典搜索，默认true
+		 */
+		public ScanConfig setClassicFallback(boolean classicFallback) {
+			this.classicFallback = classicFallback;
+			return this;
+		}
+		
+		/**
+		 * 广播数据过滤，在扫描回调里执行，不满足的设备不会交给监听器
+		 */
+		public ScanConfig setFilter(AdvertisementFilter filter) {
+			this.filter = filter == null ? AdvertisementFilter.ACCEPT_ALL : filter;
+			return this;
+		}
+		
+		public AdvertisementFilter getFilter() {
+			return filter;
+		}
+		
+		public ScanConfig addServiceUuid(UUID uuid) {
+			serviceUuids.add(uuid);
+			return this;
+		}
+		
+		public ScanConfig addName(String name) {
+			names.add(name);
+			return this;
+		}
+		
+		public ScanConfig addAddress(String address) {
+			addresses.add(address);
+			return this;
+		}
+		
+		public int getScanMode() {
+			return scanMode;
+		}
+		
+		public long getReportDelay() {
+			return reportDelay;
+		}
+		
+		public boolean isClassicFallback() {
+			return classicFallback;
+		}
+		
+		/**
+		 * 解析广播数据并用filter过滤，parser由调用线程独占
+		 */
+		boolean acceptRecord(AdvertisementParser parser, BluetoothDevice device, int rssi, byte[] scanRecord) {
+			if (filter == AdvertisementFilter.ACCEPT_ALL)
+			{
+				return true;
+			}
+			parser.reset(scanRecord);
+			return filter.matches(parser, rssi, device);
+		}
+		
+		/**
+		 * 软件过滤名称和地址，用于芯片不支持过滤的情况
+		 */
+		boolean accept(BluetoothDevice device) {
+			if (!addresses.isEmpty() && !addresses.contains(device.getAddress()))
+			{
+				return false;
+			}
+			return names.isEmpty() || names.contains(device.getName());
+		}
+	}
+	
+	/**
+	 * 5.0以上的扫描实现，单独放在一个类里，低版本不会加载ScanCallback
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static class LollipopScanner
+	{
+		/**
+		 * startScan没有返回值，注册失败等错误在onScanFailed里异步报告
+		 *
+		 * @param classicFallback 异步失败时是否退回经典搜索，否则回调onDiscoveryFinish
+		 */
+		static boolean start(BluetoothAdapter adapter, final ScanConfig config,
+				final BluetoothReceiver.IBluetoothDiscoverListener listener, final boolean classicFallback) {
+			android.bluetooth.le.BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+			if (scanner == null) {
+				return false;
+			}
+			// 芯片不支持过滤时由回调里的accept过滤，避免漏掉条件
+			final boolean offloaded = adapter.isOffloadedFilteringSupported();
+			List<ScanFilter> filters = offloaded ? buildFilters(config) : new ArrayList<ScanFilter>();
+			ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(config.getScanMode());
+			final AdvertisementParser parser = new AdvertisementParser();
+			if (config.getReportDelay() > 0 && adapter.isOffloadedScanBatchingSupported())
+			{
+				settings.setReportDelay(config.getReportDelay());
+			}
+			ScanCallback callback = new ScanCallback()
+			{
+				@Override
+				public void onScanResult(int callbackType, ScanResult result) {
+					report(result);
+				}
+				
+				@Override
+				public void onBatchScanResults(List<ScanResult> results) {
+					for (int i = 0, size = results.size(); i < size; i++)
+					{
+						report(results.get(i));
+					}
+				}
+				
+				private void report(ScanResult result) {
+					BluetoothDevice device = result.getDevice();
+					if (!offloaded && !acceptUuid(config, result))
+					{
+						return;
+					}
+					byte[] scanRecord = result.getScanRecord() == null ? null : result.getScanRecord().getBytes();
+					if (!config.acceptRecord(parser, device, result.getRssi(), scanRecord))
+					{
+						return;
+					}
+					if (offloaded || config.accept(device))
+					{
+						deliver(listener, device, result.getRssi(), scanRecord);
+					}
+				}
+				
+				@Override
+				public void onScanFailed(int errorCode) {
+					if (mLeScanCallback != this)
+					{
+						// 已经取消或换成了新的扫描
+						return;
+					}
+					mLeScanCallback = null;
+					mScanning = false;
+					if (classicFallback)
+					{
+						scanDevice();
+					}
+					else if (listener != null)
+					{
+						listener.onDiscoveryFinish();
+					}
+				}
+			};
+			scanner.startScan(filters, settings.build(), callback);
+			mLeScanCallback = callback;
+			return true;
+		}
+		
+		static void stop(BluetoothAdapter adapter) {
+			android.bluetooth.le.BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+			if (scanner != null && mLeScanCallback instanceof ScanCallback)
+			{
+				scanner.stopScan((ScanCallback) mLeScanCallback);
+			}
+		}
+		
+		static void flush(BluetoothAdapter adapter) {
+			android.bluetooth.le.BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+			if (scanner != null && mLeScanCallback instanceof ScanCallback)
+			{
+				scanner.flushPendingScanResults((ScanCallback) mLeScanCallback);
+			}
+		}
+		
+		private static boolean acceptUuid(ScanConfig config, ScanResult result) {
+			if (config.serviceUuids.isEmpty())
+			{
+				return true;
+			}
+			if (result.getScanRecord() == null || result.getScanRecord().getServiceUuids() == null)
+			{
+				return false;
+			}
+			for (ParcelUuid uuid : result.getScanRecord().getServiceUuids())
+			{
+				if (config.serviceUuids.contains(uuid.getUuid()))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * 同一类条件之间是“或”，不同类之间是“与”，按组合展开成多个ScanFilter
+		 */
+		private static List<ScanFilter> buildFilters(ScanConfig config) {
+			List<ScanFilter> filters = new ArrayList<>();
+			if (config.serviceUuids.isEmpty() && config.names.isEmpty() && config.addresses.isEmpty())
+			{
+				return filters;
+			}
+			for (UUID uuid : orAny(config.serviceUuids))
+			{
+				for (String name : orAny(config.names))
+				{
+					for (String address : orAny(config.addresses))
+					{
+						ScanFilter.Builder builder = new ScanFilter.Builder();
+						if (uuid != null) builder.setServiceUuid(new ParcelUuid(uuid));
+						if (name != null) builder.setDeviceName(name);
+						if (address != null) builder.setDeviceAddress(address);
+						filters.add(builder.build());
+					}
+				}
+			}
+			return filters;
+		}
+		
+		private static <T> List<T> orAny(Set<T> values) {
+			List<T> list = new ArrayList<>(values);
+			if (list.isEmpty())
+			{
+				list.add(null);
+			}
+			return list;
+		}
+	}
 }
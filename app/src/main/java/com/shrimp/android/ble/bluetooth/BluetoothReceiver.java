@@ -21,6 +21,9 @@ public class BluetoothReceiver
 	
 	private static final String TAG = BluetoothReceiver.class.getSimpleName();
 	private IBluetoothDiscoverListener discoverListener;
+	private volatile AdvertisementFilter filter = AdvertisementFilter.ACCEPT_ALL;
+	// onReceive总在主线程上，共用一个解析器
+	private final AdvertisementParser parser = new AdvertisementParser();
 	
 	public BluetoothReceiver() {
 	}
@@ -29,6 +32,13 @@ public class BluetoothReceiver
 		this.discoverListener = listener;
 	}
 	
+	/**
+	 * 经典搜索没有广播数据，只有rssi和名称条件有效
+	 */
+	public void setFilter(AdvertisementFilter filter) {
+		this.filter = filter == null ? AdvertisementFilter.ACCEPT_ALL : filter;
+	}
+	
 	@Override
 	public void onReceive(Context context, Intent intent) {
 		String action = intent.getAction(); // android.bluetooth.adapter.action.STATE_CHANGED
@@ -55,7 +65,21 @@ public class BluetoothReceiver
 		{
 			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 			//	  Log.d(TAG, "scan bluetooth device " + device.getAddress());
-			if (discoverListener != null)
+			short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+			AdvertisementFilter f = filter;
+			if (f != AdvertisementFilter.ACCEPT_ALL)
+			{
+				parser.reset(null);
+				if (!f.matches(parser, rssi, device))
+				{
+					return;
+				}
+			}
+			if (discoverListener instanceof IBluetoothScanListener)
+			{
+				((IBluetoothScanListener) discoverListener).onDeviceFound(device, rssi, null);
+			}
+			else if (discoverListener != null)
 			{
 				discoverListener.onDeviceFound(device);
 			}
@@ -99,4 +123,16 @@ public class BluetoothReceiver
 		void onDiscoveryFinish();
 	}
 	
+	/**
+	 * 需要信号强度和广播数据时实现这个接口，代替onDeviceFound(BluetoothDevice)
+	 */
+	public interface IBluetoothScanListener extends IBluetoothDiscoverListener
+	{
+		/**
+		 * @param rssi       信号强度，经典搜索拿不到时为Short.MIN_VALUE
+		 * @param scanRecord 广播数据，经典搜索时为null
+		 */
+		void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord);
+	}
+	
 }
@@ -0,0 +1,625 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 批量上传（固件、大文件）：数据包用无应答写入连续发送，滑动窗口内不等设备确认；
+ *          设备通过控制特征的通知发放额度（CREDIT）、累计确认（ACK）和缺包列表（NACK），只重发缺的包；
+ *          确认进度定期保存，断线后用同一个id重新开始时从上次确认的位置继续。
+ *          数据直接从内存映射的文件读取，大文件不会整个放进Java堆。
+ *          所有状态只在连接的回调线程上修改，监听器也在这个线程上回调
+ * <p>
+ * 协议（多字节字段均为小端）：
+ * <pre>
+ * 数据特征，无应答写入：  [seq u16][数据，最多MTU-5字节]   seq从本次开始的位置算起，按65536回绕
+ * 控制特征，手机写：      START [0x01][offset u32][total u32][chunk u16]
+ *                         END   [0x02][crc32 u32]   整个文件的CRC32
+ *                         ABORT [0x03]
+ * 控制特征，设备通知：    CREDIT [0x10][count u16]  可以再发count包
+ *                         ACK    [0x11][seq u16]    seq之前的包都已收到
+ *                         NACK   [0x12][seq u16]... 缺少这些包
+ *                         DONE   [0x13][status u8]  0表示校验通过
+ * </pre>
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class BulkTransfer {
+    private final static String TAG = BulkTransfer.class.getSimpleName();
+
+    public static final int RESULT_SUCCESS = 0;
+    public static final int RESULT_CANCELLED = 1;
+    public static final int RESULT_DISCONNECTED = 2;
+    public static final int RESULT_TIMEOUT = 3;
+    /**
+     * 设备返回DONE但状态不为0，如校验失败
+     */
+    public static final int RESULT_REJECTED = 4;
+    /**
+     * 订阅控制特征或写START失败，或数据包连续多次没能交给协议栈
+     */
+    public static final int RESULT_FAILED = 5;
+
+    static final int CMD_START = 0x01;
+    static final int CMD_END = 0x02;
+    static final int CMD_ABORT = 0x03;
+    static final int EVT_CREDIT = 0x10;
+    static final int EVT_ACK = 0x11;
+    static final int EVT_NACK = 0x12;
+    static final int EVT_DONE = 0x13;
+
+    private static final int HEADER = 2;
+    // 2：加入整个文件的CRC32，旧版本的断点不再使用
+    private static final int FILE_VERSION = 2;
+    private static final String DIR_NAME = "bulk_transfer";
+
+    public static final int DEFAULT_WINDOW = 64;
+    // 同时放进GATT队列的数据包。队列每包都要等onCharacteristicWrite才发下一包，
+    // 预先排几包是为了回调一到就接着发，不用再绕一圈调度；也不会让控制命令排太久
+    private static final int MAX_QUEUED = 4;
+    private static final long ACK_TIMEOUT = 2000;
+    private static final int MAX_RETRIES = 5;
+    // 连续这么多包没能交给协议栈（特征找不到、writeCharacteristic返回false）就放弃
+    private static final int MAX_LOCAL_FAILURES = 8;
+    // 确认进度每前进这么多字节保存一次
+    private static final long CHECKPOINT_BYTES = 64 * 1024;
+
+    public interface Listener {
+        /**
+         * @param acked 设备已确认的字节数，包括之前断点保存的部分
+         */
+        void onProgress(long acked, long total);
+
+        /**
+         * @param result RESULT_*
+         */
+        void onComplete(int result);
+    }
+
+    private final BluetoothLeConnection connection;
+    private final String address;
+    private final UUID dataUuid;
+    private final UUID controlUuid;
+    private final File checkpointDir;
+    private final Handler handler;
+
+    private int window = DEFAULT_WINDOW;
+    private boolean creditBased;
+    private String checkpointId;
+
+    private Listener listener;
+    private ByteBuffer reader;
+    private long total;
+    private long startOffset;
+    private int chunkSize;
+    private int chunkCount;
+    // 第一个未确认的包、下一个新包，都从startOffset算起
+    private int base;
+    private int next;
+    private int credits;
+    private int queued;
+    private final ArrayDeque<Integer> retransmit = new ArrayDeque<>();
+    private final BitSet retransmitQueued = new BitSet();
+    private int retries;
+    private int localFailures;
+    // 整个文件的CRC32，start()时在后台线程算好
+    private long crc;
+    private long savedOffset;
+    private boolean running;
+    // start()之后、begin()之前（还在算CRC）调用了cancel()
+    private volatile boolean cancelRequested;
+    private boolean ended;
+    private boolean subscribedHere;
+
+    BulkTransfer(BluetoothLeConnection connection, UUID dataUuid, UUID controlUuid, File filesDir) {
+        this.connection = connection;
+        this.address = connection.getAddress();
+        this.dataUuid = dataUuid;
+        this.controlUuid = controlUuid;
+        this.checkpointDir = new File(filesDir, DIR_NAME);
+        this.handler = new Handler(connection.getCallbackLooper());
+    }
+
+    /**
+     * 设备未确认的包最多这么多，不超过32768
+     */
+    public BulkTransfer setWindow(int packets) {
+        this.window = Math.max(1, Math.min(packets, 0x8000));
+        return this;
+    }
+
+    /**
+     * true时只在设备发放额度后发送，设备缓冲小时使用；false时只受窗口限制
+     */
+    public BulkTransfer setCreditBased(boolean creditBased) {
+        this.creditBased = creditBased;
+        return this;
+    }
+
+    /**
+     * 断点续传的标识，如固件版本。同一设备同一id的传输从上次确认的位置继续，null时每次从头开始
+     */
+    public BulkTransfer setCheckpointId(String id) {
+        this.checkpointId = id;
+        return this;
+    }
+
+    /**
+     * 把文件映射到内存后发送，文件在传输结束前不要修改
+     */
+    public void start(FileChannel channel, Listener listener) throws IOException {
+        start(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), listener);
+    }
+
+    /**
+     * 发送data中position到limit的部分。先在后台线程算好CRC32，不占用连接的回调线程
+     */
+    public void start(ByteBuffer data, final Listener listener) {
+        final ByteBuffer source = data.slice();
+        cancelRequested = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // 取消时提前结束，结果不再使用
+                final long value = crc32(source.duplicate());
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        begin(source, value, listener);
+                    }
+                });
+            }
+        }, "bulk-crc").start();
+    }
+
+    private long crc32(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+        while (data.hasRemaining() && !cancelRequested) {
+            int n = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, n);
+            crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 中止传输，通知设备丢弃，已确认的进度仍然保存。还在算CRC时取消，不会开始传输，同样回调RESULT_CANCELLED
+     */
+    public void cancel() {
+        cancelRequested = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (running) {
+                    cancelRequested = false;
+                    writeControl(new byte[]{CMD_ABORT}, null);
+                    finish(RESULT_CANCELLED);
+                }
+            }
+        });
+    }
+
+    private void begin(ByteBuffer source, long crc, Listener listener) {
+        if (running) {
+            return;
+        }
+        if (cancelRequested) {
+            cancelRequested = false;
+            listener.onComplete(RESULT_CANCELLED);
+            return;
+        }
+        this.listener = listener;
+        this.reader = source;
+        this.crc = crc;
+        this.total = source.remaining();
+        this.startOffset = loadCheckpoint();
+        this.savedOffset = startOffset;
+        this.chunkSize = Math.max(1, connection.getMtu() - 3 - HEADER);
+        this.chunkCount = (int) ((total - startOffset + chunkSize - 1) / chunkSize);
+        base = 0;
+        next = 0;
+        credits = 0;
+        queued = 0;
+        retries = 0;
+        localFailures = 0;
+        ended = false;
+        retransmit.clear();
+        retransmitQueued.clear();
+        running = true;
+
+        BluetoothLeClass.getInstance().registerDataListener(controlUuid, controlListener);
+        // 传输期间用最短的连接间隔
+        connection.enqueue(GattOperation.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH));
+        GattSubscriptionManager subscriptions = connection.getSubscriptions();
+        // 别人也要这个通知时结束后不关闭
+        subscribedHere = !subscriptions.isRequested(controlUuid);
+        if (subscriptions.isSubscribed(controlUuid)) {
+            sendStart();
+            return;
+        }
+        List<UUID> control = Collections.singletonList(controlUuid);
+        // 未连接时也会以STATUS_DISCONNECTED回调
+        subscriptions.subscribe(control, GattOperation.SUBSCRIBE_NOTIFY,
+                new GattSubscriptionManager.Callback() {
+                    @Override
+                    public void onComplete(List<GattOperation> failed) {
+                        if (!running) {
+                            return;
+                        }
+                        if (!failed.isEmpty()) {
+                            finish(failed.get(0).getStatus() == GattOperation.STATUS_DISCONNECTED
+                                    ? RESULT_DISCONNECTED : RESULT_FAILED);
+                            return;
+                        }
+                        sendStart();
+                    }
+                });
+    }
+
+    private void sendStart() {
+        byte[] cmd = new byte[11];
+        cmd[0] = CMD_START;
+        putLe(cmd, 1, startOffset, 4);
+        putLe(cmd, 5, total, 4);
+        putLe(cmd, 9, chunkSize, 2);
+        writeControl(cmd, new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                if (!running) {
+                    return;
+                }
+                if (!operation.isSuccess()) {
+                    finish(operation.getStatus() == GattOperation.STATUS_DISCONNECTED
+                            ? RESULT_DISCONNECTED : RESULT_FAILED);
+                    return;
+                }
+                if (chunkCount == 0) {
+                    sendEnd();
+                } else {
+                    pump();
+                }
+            }
+        });
+    }
+
+    /**
+     * 把可以发送的包放进GATT队列：先发要重传的，再在窗口和额度内发新包
+     */
+    private void pump() {
+        while (running && !ended && queued < MAX_QUEUED) {
+            if (creditBased && credits <= 0) {
+                break;
+            }
+            int seq;
+            if (!retransmit.isEmpty()) {
+                seq = retransmit.poll();
+                retransmitQueued.clear(seq);
+                if (seq < base) {
+                    continue;
+                }
+            } else if (next < chunkCount && next - base < window) {
+                seq = next++;
+            } else {
+                break;
+            }
+            if (creditBased) {
+                credits--;
+            }
+            send(seq);
+        }
+        if (running && !ended && base < next) {
+            handler.removeCallbacks(ackTimeout);
+            handler.postDelayed(ackTimeout, ACK_TIMEOUT);
+        }
+    }
+
+    private void send(final int seq) {
+        long offset = startOffset + (long) seq * chunkSize;
+        int length = (int) Math.min(chunkSize, total - offset);
+        byte[] packet = new byte[HEADER + length];
+        putLe(packet, 0, seq, 2);
+        reader.position((int) offset);
+        reader.get(packet, HEADER, length);
+        GattOperation op = GattOperation.write(dataUuid, packet)
+                .setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+                .setCallback(new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation) {
+                        queued--;
+                        if (!running) {
+                            return;
+                        }
+                        if (operation.getStatus() == GattOperation.STATUS_DISCONNECTED) {
+                            finish(RESULT_DISCONNECTED);
+                            return;
+                        }
+                        if (operation.isSuccess()) {
+                            localFailures = 0;
+                            pump();
+                            return;
+                        }
+                        // 没有进入协议栈，按缺包处理。可能是在enqueue里同步失败的，
+                        // 不能在这里直接pump()，否则send->enqueue->回调->send会一直递归
+                        if (++localFailures > MAX_LOCAL_FAILURES) {
+                            finish(RESULT_FAILED);
+                            return;
+                        }
+                        if (creditBased) {
+                            // 设备没收到，额度还回来
+                            credits++;
+                        }
+                        queueRetransmit(seq);
+                        handler.removeCallbacks(pumpTask);
+                        handler.post(pumpTask);
+                    }
+                });
+        queued++;
+        if (connection.enqueue(op) == null) {
+            queued--;
+            finish(RESULT_DISCONNECTED);
+        }
+    }
+
+    private final Runnable pumpTask = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    private void queueRetransmit(int seq) {
+        if (seq >= base && seq < next && !retransmitQueued.get(seq)) {
+            retransmitQueued.set(seq);
+            retransmit.add(seq);
+        }
+    }
+
+    private void sendEnd() {
+        ended = true;
+        byte[] cmd = new byte[5];
+        cmd[0] = CMD_END;
+        putLe(cmd, 1, crc, 4);
+        writeControl(cmd, null);
+        handler.removeCallbacks(ackTimeout);
+        handler.postDelayed(ackTimeout, ACK_TIMEOUT);
+    }
+
+    private void writeControl(byte[] cmd, GattOperation.Callback callback) {
+        connection.enqueue(GattOperation.write(controlUuid, cmd).setCallback(callback));
+    }
+
+    /**
+     * 设备通知，在连接的回调线程上
+     */
+    private final NotificationDispatcher.Listener controlListener = new NotificationDispatcher.Listener() {
+        @Override
+        public void onCharacteristicData(String from, UUID uuid, byte[] value) {
+            if (!running || !address.equals(from) || value == null || value.length == 0) {
+                return;
+            }
+            switch (value[0]) {
+                case EVT_CREDIT:
+                    if (value.length >= 3) {
+                        credits += (int) getLe(value, 1, 2);
+                        pump();
+                    }
+                    break;
+                case EVT_ACK:
+                    if (value.length >= 3) {
+                        onAck(toSeq((int) getLe(value, 1, 2)));
+                    }
+                    break;
+                case EVT_NACK:
+                    for (int i = 1; i + 2 <= value.length; i += 2) {
+                        queueRetransmit(toSeq((int) getLe(value, i, 2)));
+                    }
+                    pump();
+                    break;
+                case EVT_DONE:
+                    if (value.length >= 2 && value[1] == 0) {
+                        finish(RESULT_SUCCESS);
+                    } else {
+                        finish(RESULT_REJECTED);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private void onAck(int seq) {
+        if (seq <= base || seq > next) {
+            return;
+        }
+        base = seq;
+        retries = 0;
+        handler.removeCallbacks(ackTimeout);
+        long acked = ackedBytes();
+        if (acked - savedOffset >= CHECKPOINT_BYTES) {
+            saveCheckpoint(acked);
+        }
+        listener.onProgress(acked, total);
+        if (base == chunkCount) {
+            sendEnd();
+        } else {
+            pump();
+        }
+    }
+
+    /**
+     * 线上的16位序号换算成本次传输的包序号，窗口不超过32768时不会混淆
+     */
+    private int toSeq(int wire) {
+        return base + ((wire - base) & 0xFFFF);
+    }
+
+    private long ackedBytes() {
+        return Math.min(total, startOffset + (long) base * chunkSize);
+    }
+
+    /**
+     * 超时没有进展：重发第一个未确认的包（或END），超过次数后失败
+     */
+    private final Runnable ackTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            if (++retries > MAX_RETRIES) {
+                finish(RESULT_TIMEOUT);
+                return;
+            }
+            if (ended) {
+                sendEnd();
+                return;
+            }
+            queueRetransmit(base);
+            if (creditBased && credits <= 0) {
+                // 额度通知可能丢了，借一个包的额度探测
+                credits = 1;
+            }
+            pump();
+        }
+    };
+
+    private void finish(int result) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(ackTimeout);
+        handler.removeCallbacks(pumpTask);
+        BluetoothLeClass.getInstance().unregisterDataListener(controlUuid, controlListener);
+        if (result == RESULT_SUCCESS) {
+            deleteCheckpoint();
+        } else {
+            saveCheckpoint(ackedBytes());
+        }
+        connection.enqueue(GattOperation.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED));
+        if (subscribedHere) {
+            connection.getSubscriptions().unsubscribe(Collections.singletonList(controlUuid), null);
+        }
+        retransmit.clear();
+        retransmitQueued.clear();
+        listener.onComplete(result);
+    }
+
+    private File checkpointFile() {
+        return new File(checkpointDir, address.replace(":", "") + "_"
+                + checkpointId.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * @return 上次确认到的位置，没有断点或文件大小、CRC32不符（同一id换了文件）时为0
+     */
+    private long loadCheckpoint() {
+        if (checkpointId == null) {
+            return 0;
+        }
+        File file = checkpointFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || in.readLong() != total || in.readLong() != crc) {
+                return 0;
+            }
+            long offset = in.readLong();
+            return offset >= 0 && offset <= total ? offset : 0;
+        } catch (IOException e) {
+            Log.w(TAG, "load " + file + " failed", e);
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void saveCheckpoint(long offset) {
+        if (checkpointId == null || offset == savedOffset) {
+            return;
+        }
+        savedOffset = offset;
+        File file = checkpointFile();
+        File tmp = new File(checkpointDir, file.getName() + ".tmp");
+        if (!checkpointDir.exists() && !checkpointDir.mkdirs()) {
+            Log.w(TAG, "mkdirs " + checkpointDir + " failed");
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(total);
+            out.writeLong(crc);
+            out.writeLong(offset);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "rename " + tmp + " failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "save " + file + " failed", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        if (checkpointId == null) {
+            return;
+        }
+        File file = checkpointFile();
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete " + file + " failed");
+        }
+    }
+
+    private static void putLe(byte[] buffer, int offset, long value, int size) {
+        for (int i = 0; i < size; i++) {
+            buffer[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long getLe(byte[] buffer, int offset, int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.shrimp.android.ble.bluetooth;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 帧校验算法，直接在原始缓冲区上计算，不分配内存
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class Checksum {
+
+    public static final int NONE = 0;
+    /**
+     * 逐字节累加取低8位
+     */
+    public static final int SUM8 = 1;
+    /**
+     * 逐字节异或
+     */
+    public static final int XOR8 = 2;
+    /**
+     * CRC-16/MODBUS：多项式0xA001（反射），初值0xFFFF，小端存放
+     */
+    public static final int CRC16_MODBUS = 3;
+    /**
+     * CRC-16/CCITT-FALSE：多项式0x1021，初值0xFFFF，大端存放
+     */
+    public static final int CRC16_CCITT = 4;
+
+    private static final int[] MODBUS_TABLE = new int[256];
+    private static final int[] CCITT_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+            MODBUS_TABLE[i] = crc;
+            crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CCITT_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private Checksum() {
+    }
+
+    /**
+     * 校验值占用的字节数
+     */
+    public static int size(int type) {
+        switch (type) {
+            case SUM8:
+            case XOR8:
+                return 1;
+            case CRC16_MODBUS:
+            case CRC16_CCITT:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 校验值按约定的字节序存放
+     */
+    public static boolean isLittleEndian(int type) {
+        return type == CRC16_MODBUS;
+    }
+
+    public static int compute(int type, byte[] data, int offset, int length) {
+        int end = offset + length;
+        switch (type) {
+            case SUM8: {
+                int sum = 0;
+                for (int i = offset; i < end; i++) {
+                    sum += data[i];
+                }
+                return sum & 0xff;
+            }
+            case XOR8: {
+                int x = 0;
+                for (int i = offset; i < end; i++) {
+                    x ^= data[i];
+                }
+                return x & 0xff;
+            }
+            case CRC16_MODBUS: {
+                int crc = 0xffff;
+                for (int i = offset; i < end; i++) {
+                    crc = (crc >>> 8) ^ MODBUS_TABLE[(crc ^ data[i]) & 0xff];
+                }
+                return crc;
+            }
+            case CRC16_CCITT: {
+                int crc = 0xffff;
+                for (int i = offset; i < end; i++) {
+                    crc = ((crc << 8) ^ CCITT_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+                }
+                return crc;
+            }
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 把{@link FrameSchema}接到通知分发上：收到数据后用同一个{@link FrameView}解码，
+ *          校验通过才回调，无效帧只计数。用法：
+ *          BluetoothLeClass.getInstance().registerDataListener(uuid, new FrameDecoder(schema, handler))
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class FrameDecoder implements NotificationDispatcher.Listener {
+
+    public interface FrameHandler {
+        /**
+         * frame只在回调期间有效，需要保存时请读出字段
+         */
+        void onFrame(String address, UUID uuid, FrameView frame);
+    }
+
+    private final FrameView view;
+    private final FrameHandler handler;
+    private long invalidCount;
+
+    public FrameDecoder(FrameSchema schema, FrameHandler handler) {
+        this.view = new FrameView(schema);
+        this.handler = handler;
+    }
+
+    /**
+     * 多个设备的回调可能在不同线程上，共用一个视图所以加锁
+     */
+    @Override
+    public synchronized void onCharacteristicData(String address, UUID uuid, byte[] value) {
+        if (view.wrap(value)) {
+            handler.onFrame(address, uuid, view);
+        } else {
+            invalidCount++;
+        }
+    }
+
+    /**
+     * 长度、帧头或校验不符被丢弃的帧数
+     */
+    public synchronized long getInvalidCount() {
+        return invalidCount;
+    }
+}
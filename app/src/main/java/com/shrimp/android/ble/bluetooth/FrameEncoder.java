@@ -0,0 +1,89 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 按{@link FrameSchema}组帧，用于写操作。固定值字段自动填入，校验在encode时计算。
+ *          编码器可以重复使用，不是线程安全的
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class FrameEncoder {
+
+    private final FrameSchema schema;
+    private final byte[] frame;
+
+    public FrameEncoder(FrameSchema schema) {
+        this.schema = schema;
+        this.frame = new byte[schema.size];
+        reset();
+    }
+
+    /**
+     * 清零所有字段，重新填入固定值
+     */
+    public FrameEncoder reset() {
+        Arrays.fill(frame, (byte) 0);
+        for (int i = 0; i < schema.constant.length; i++) {
+            if (schema.constant[i]) {
+                FrameSchema.writeRaw(frame, schema.offsets[i], schema.sizes[i],
+                        schema.littleEndian[i], schema.constantValues[i]);
+            }
+        }
+        return this;
+    }
+
+    public FrameEncoder setInt(int field, int value) {
+        return setLong(field, value);
+    }
+
+    public FrameEncoder setLong(int field, long value) {
+        if (schema.types[field] == FrameSchema.TYPE_BITS) {
+            int parent = schema.parents[field];
+            long mask = FrameSchema.mask(schema.widths[field]) << schema.shifts[field];
+            long old = FrameSchema.readRaw(frame, schema.offsets[parent], schema.sizes[parent],
+                    schema.littleEndian[parent]);
+            long bits = (value << schema.shifts[field]) & mask;
+            FrameSchema.writeRaw(frame, schema.offsets[parent], schema.sizes[parent],
+                    schema.littleEndian[parent], (old & ~mask) | bits);
+            return this;
+        }
+        FrameSchema.writeRaw(frame, schema.offsets[field], schema.sizes[field],
+                schema.littleEndian[field], value);
+        return this;
+    }
+
+    public FrameEncoder setFloat(int field, float value) {
+        return setLong(field, Float.floatToIntBits(value));
+    }
+
+    public FrameEncoder setBoolean(int field, boolean value) {
+        return setLong(field, value ? 1 : 0);
+    }
+
+    /**
+     * 计算校验并写入out，返回写入的字节数
+     */
+    public int encodeTo(byte[] out, int offset) {
+        int type = schema.checksumType;
+        if (type != Checksum.NONE) {
+            int sum = Checksum.compute(type, frame, schema.checksumFrom,
+                    schema.checksumOffset - schema.checksumFrom);
+            FrameSchema.writeRaw(frame, schema.checksumOffset, Checksum.size(type),
+                    Checksum.isLittleEndian(type), sum);
+        }
+        System.arraycopy(frame, 0, out, offset, frame.length);
+        return frame.length;
+    }
+
+    /**
+     * 返回新数组，可以直接交给写操作
+     */
+    public byte[] encode() {
+        byte[] out = new byte[frame.length];
+        encodeTo(out, 0);
+        return out;
+    }
+}
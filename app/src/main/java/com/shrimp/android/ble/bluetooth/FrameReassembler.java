@@ -0,0 +1,118 @@
+package com.shrimp.android.ble.bluetooth;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 通知分包重组：按帧头里的长度字段把多个通知拼成完整的应用帧。
+ *          帧长度 = lengthFieldOffset + lengthFieldSize + 长度字段的值 + lengthAdjustment。
+ *          缓冲区预先分配，拼包过程不分配内存；一个实例只对应一个设备的一个特征
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class FrameReassembler {
+
+    public interface FrameListener {
+        /**
+         * frame只在回调期间有效
+         */
+        void onFrame(byte[] frame, int offset, int length);
+    }
+
+    private final int lengthFieldOffset;
+    private final int lengthFieldSize;
+    private final boolean littleEndian;
+    private final int lengthAdjustment;
+    private final byte[] buffer;
+    private int size;
+    private long droppedBytes;
+
+    /**
+     * @param lengthFieldOffset 长度字段在帧中的偏移
+     * @param lengthFieldSize   长度字段字节数：1、2或4
+     * @param littleEndian      长度字段是否小端
+     * @param lengthAdjustment  帧长度的修正值，如长度字段包含帧头时为负数
+     * @param maxFrameLength    最大帧长度，超过时丢弃缓冲区内容重新同步
+     */
+    public FrameReassembler(int lengthFieldOffset, int lengthFieldSize, boolean littleEndian,
+                            int lengthAdjustment, int maxFrameLength) {
+        if (lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 4) {
+            throw new IllegalArgumentException("lengthFieldSize=" + lengthFieldSize);
+        }
+        this.lengthFieldOffset = lengthFieldOffset;
+        this.lengthFieldSize = lengthFieldSize;
+        this.littleEndian = littleEndian;
+        this.lengthAdjustment = lengthAdjustment;
+        this.buffer = new byte[maxFrameLength];
+    }
+
+    /**
+     * 输入一个分包，每拼出一个完整帧回调一次
+     */
+    public void feed(byte[] data, int offset, int length, FrameListener listener) {
+        while (length > 0) {
+            int n = Math.min(length, buffer.length - size);
+            System.arraycopy(data, offset, buffer, size, n);
+            size += n;
+            offset += n;
+            length -= n;
+            while (true) {
+                int frameLength = frameLength();
+                if (frameLength < 0) {
+                    break;
+                }
+                if (frameLength == 0 || frameLength > buffer.length) {
+                    // 长度非法，丢弃缓冲区重新同步
+                    droppedBytes += size;
+                    size = 0;
+                    break;
+                }
+                if (size < frameLength) {
+                    break;
+                }
+                listener.onFrame(buffer, 0, frameLength);
+                size -= frameLength;
+                if (size > 0) {
+                    System.arraycopy(buffer, frameLength, buffer, 0, size);
+                }
+            }
+            if (size == buffer.length) {
+                droppedBytes += size;
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * 丢弃未拼完的数据，连接断开时调用
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * 因长度非法或超长丢弃的字节数
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * @return 当前帧长度，帧头还没收全时返回-1
+     */
+    private int frameLength() {
+        int end = lengthFieldOffset + lengthFieldSize;
+        if (size < end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < lengthFieldSize; i++) {
+            int b = buffer[lengthFieldOffset + (littleEndian ? lengthFieldSize - 1 - i : i)] & 0xff;
+            value = (value << 8) | b;
+        }
+        long frameLength = end + value + lengthAdjustment;
+        if (frameLength <= 0 || frameLength > Integer.MAX_VALUE) {
+            return 0;
+        }
+        return (int) frameLength;
+    }
+}
@@ -0,0 +1,344 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 定长二进制帧的结构描述：字段按声明顺序紧密排列，每个字段可以单独指定大小端，
+ *          支持从整数字段中取位域、固定值字段（帧头）和帧尾校验。
+ *          建好后不可修改，可以在多个线程共用；按名字查字段只在初始化时做一次，
+ *          解码时用字段下标访问{@link FrameView}
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class FrameSchema {
+
+    public static final int TYPE_INT8 = 1;
+    public static final int TYPE_UINT8 = 2;
+    public static final int TYPE_INT16 = 3;
+    public static final int TYPE_UINT16 = 4;
+    public static final int TYPE_INT32 = 5;
+    public static final int TYPE_UINT32 = 6;
+    public static final int TYPE_INT64 = 7;
+    public static final int TYPE_FLOAT32 = 8;
+    /**
+     * 位域，取自前面声明的某个整数字段
+     */
+    public static final int TYPE_BITS = 9;
+
+    final String[] names;
+    final int[] types;
+    final int[] offsets;
+    final int[] sizes;
+    final boolean[] littleEndian;
+    // 位域：所属字段下标、起始位、位数
+    final int[] parents;
+    final int[] shifts;
+    final int[] widths;
+    // 固定值字段
+    final boolean[] constant;
+    final long[] constantValues;
+    final int checksumType;
+    final int checksumFrom;
+    final int checksumOffset;
+    final int size;
+    private final Map<String, Integer> indexes;
+
+    private FrameSchema(Builder builder) {
+        int n = builder.count;
+        names = Arrays.copyOf(builder.names, n);
+        types = Arrays.copyOf(builder.types, n);
+        offsets = Arrays.copyOf(builder.offsets, n);
+        sizes = Arrays.copyOf(builder.sizes, n);
+        littleEndian = Arrays.copyOf(builder.littleEndian, n);
+        parents = Arrays.copyOf(builder.parents, n);
+        shifts = Arrays.copyOf(builder.shifts, n);
+        widths = Arrays.copyOf(builder.widths, n);
+        constant = Arrays.copyOf(builder.constant, n);
+        constantValues = Arrays.copyOf(builder.constantValues, n);
+        checksumType = builder.checksumType;
+        checksumFrom = builder.checksumFrom;
+        checksumOffset = builder.offset;
+        size = builder.offset + Checksum.size(builder.checksumType);
+        indexes = new HashMap<>(builder.indexes);
+    }
+
+    /**
+     * 整帧长度，包括校验
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int getFieldCount() {
+        return names.length;
+    }
+
+    /**
+     * @return 字段下标，没有该字段时返回-1
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public String getName(int field) {
+        return names[field];
+    }
+
+    public int getType(int field) {
+        return types[field];
+    }
+
+    public int getOffset(int field) {
+        return offsets[field];
+    }
+
+    public int getChecksumType() {
+        return checksumType;
+    }
+
+    /**
+     * 按大小端读取无符号值
+     */
+    static long readRaw(byte[] data, int offset, int size, boolean littleEndian) {
+        long value = 0;
+        if (littleEndian) {
+            for (int i = size - 1; i >= 0; i--) {
+                value = (value << 8) | (data[offset + i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                value = (value << 8) | (data[offset + i] & 0xff);
+            }
+        }
+        return value;
+    }
+
+    static void writeRaw(byte[] data, int offset, int size, boolean littleEndian, long value) {
+        for (int i = 0; i < size; i++) {
+            int pos = littleEndian ? offset + i : offset + size - 1 - i;
+            data[pos] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * 低width位为1，width为64时是全1（1L << 64等于1，不能用来算掩码）
+     */
+    static long mask(int width) {
+        return -1L >>> (64 - width);
+    }
+
+    /**
+     * 读取字段的整数值，有符号类型做符号扩展
+     */
+    long read(byte[] data, int base, int field) {
+        int type = types[field];
+        if (type == TYPE_BITS) {
+            long parent = read(data, base, parents[field]);
+            return (parent >>> shifts[field]) & mask(widths[field]);
+        }
+        return extend(type, readRaw(data, base + offsets[field], sizes[field], littleEndian[field]));
+    }
+
+    /**
+     * 把按无符号读出的值转成字段类型的值，有符号类型做符号扩展
+     */
+    static long extend(int type, long raw) {
+        switch (type) {
+            case TYPE_INT8:
+                return (byte) raw;
+            case TYPE_INT16:
+                return (short) raw;
+            case TYPE_INT32:
+                return (int) raw;
+            default:
+                return raw;
+        }
+    }
+
+    public static class Builder {
+        private String[] names = new String[8];
+        private int[] types = new int[8];
+        private int[] offsets = new int[8];
+        private int[] sizes = new int[8];
+        private boolean[] littleEndian = new boolean[8];
+        private int[] parents = new int[8];
+        private int[] shifts = new int[8];
+        private int[] widths = new int[8];
+        private boolean[] constant = new boolean[8];
+        private long[] constantValues = new long[8];
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int count;
+        private int offset;
+        private boolean little = true;
+        private int checksumType = Checksum.NONE;
+        private int checksumFrom;
+
+        /**
+         * 之后声明的字段使用的字节序，默认小端
+         */
+        public Builder littleEndian(boolean littleEndian) {
+            this.little = littleEndian;
+            return this;
+        }
+
+        public Builder int8(String name) {
+            return field(name, TYPE_INT8, 1);
+        }
+
+        public Builder uint8(String name) {
+            return field(name, TYPE_UINT8, 1);
+        }
+
+        public Builder int16(String name) {
+            return field(name, TYPE_INT16, 2);
+        }
+
+        public Builder uint16(String name) {
+            return field(name, TYPE_UINT16, 2);
+        }
+
+        public Builder int32(String name) {
+            return field(name, TYPE_INT32, 4);
+        }
+
+        public Builder uint32(String name) {
+            return field(name, TYPE_UINT32, 4);
+        }
+
+        public Builder int64(String name) {
+            return field(name, TYPE_INT64, 8);
+        }
+
+        public Builder float32(String name) {
+            return field(name, TYPE_FLOAT32, 4);
+        }
+
+        /**
+         * 固定值字段，如帧头0xAA。解码时值不符的帧视为无效，编码时自动填入。
+         * value按有符号或无符号写都可以（int8的0xAA和-86相同），超出字段宽度时抛异常
+         */
+        public Builder constant(String name, int type, long value) {
+            int size = sizeOf(type);
+            if (size < 8 && (value < -(1L << (size * 8 - 1)) || value > mask(size * 8))) {
+                throw new IllegalArgumentException("constant " + name + " out of range: " + value);
+            }
+            field(name, type, size);
+            constant[count - 1] = true;
+            // 和read()的结果一致，解码时直接比较
+            constantValues[count - 1] = extend(type, value & mask(size * 8));
+            return this;
+        }
+
+        /**
+         * 保留字节
+         */
+        public Builder skip(int bytes) {
+            checkNoChecksum();
+            offset += bytes;
+            return this;
+        }
+
+        /**
+         * 从已声明的整数字段parent中取位域，不占用新的字节
+         *
+         * @param shift 起始位，0为最低位
+         * @param width 位数
+         */
+        public Builder bits(String name, String parent, int shift, int width) {
+            Integer p = indexes.get(parent);
+            if (p == null || types[p] == TYPE_BITS || types[p] == TYPE_FLOAT32) {
+                throw new IllegalArgumentException("bits parent " + parent);
+            }
+            if (width < 1 || shift < 0 || shift + width > sizes[p] * 8) {
+                throw new IllegalArgumentException("bits " + name + " out of range");
+            }
+            add(name, TYPE_BITS, offsets[p], 0);
+            parents[count - 1] = p;
+            shifts[count - 1] = shift;
+            widths[count - 1] = width;
+            return this;
+        }
+
+        /**
+         * 帧尾校验，覆盖[fromOffset, 校验字段)，必须最后声明
+         */
+        public Builder checksum(int type, int fromOffset) {
+            checkNoChecksum();
+            if (Checksum.size(type) == 0 || fromOffset < 0 || fromOffset > offset) {
+                throw new IllegalArgumentException("checksum type=" + type + " from=" + fromOffset);
+            }
+            checksumType = type;
+            checksumFrom = fromOffset;
+            return this;
+        }
+
+        public FrameSchema build() {
+            return new FrameSchema(this);
+        }
+
+        private Builder field(String name, int type, int size) {
+            checkNoChecksum();
+            add(name, type, offset, size);
+            offset += size;
+            return this;
+        }
+
+        private void add(String name, int type, int fieldOffset, int size) {
+            if (indexes.containsKey(name)) {
+                throw new IllegalArgumentException("duplicate field " + name);
+            }
+            if (count == names.length) {
+                int n = count * 2;
+                names = Arrays.copyOf(names, n);
+                types = Arrays.copyOf(types, n);
+                offsets = Arrays.copyOf(offsets, n);
+                sizes = Arrays.copyOf(sizes, n);
+                littleEndian = Arrays.copyOf(littleEndian, n);
+                parents = Arrays.copyOf(parents, n);
+                shifts = Arrays.copyOf(shifts, n);
+                widths = Arrays.copyOf(widths, n);
+                constant = Arrays.copyOf(constant, n);
+                constantValues = Arrays.copyOf(constantValues, n);
+            }
+            names[count] = name;
+            types[count] = type;
+            offsets[count] = fieldOffset;
+            sizes[count] = size;
+            littleEndian[count] = little;
+            parents[count] = -1;
+            indexes.put(name, count);
+            count++;
+        }
+
+        private void checkNoChecksum() {
+            if (checksumType != Checksum.NONE) {
+                throw new IllegalStateException("checksum must be the last field");
+            }
+        }
+
+        private static int sizeOf(int type) {
+            switch (type) {
+                case TYPE_INT8:
+                case TYPE_UINT8:
+                    return 1;
+                case TYPE_INT16:
+                case TYPE_UINT16:
+                    return 2;
+                case TYPE_INT32:
+                case TYPE_UINT32:
+                case TYPE_FLOAT32:
+                    return 4;
+                case TYPE_INT64:
+                    return 8;
+                default:
+                    throw new IllegalArgumentException("type " + type);
+            }
+        }
+    }
+}
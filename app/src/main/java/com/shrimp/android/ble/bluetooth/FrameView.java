@@ -0,0 +1,114 @@
+package com.shrimp.android.ble.bluetooth;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 按{@link FrameSchema}直接读取通知缓冲区的帧视图：wrap时只检查长度、帧头和校验，
+ *          字段在get时才从原始字节中读出，不复制数据也不装箱。
+ *          一个视图可以反复wrap不同的缓冲区，视图本身不是线程安全的
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class FrameView {
+
+    public static final int ERROR_NONE = 0;
+    /**
+     * 数据长度小于帧长度
+     */
+    public static final int ERROR_LENGTH = 1;
+    /**
+     * 固定值字段不符
+     */
+    public static final int ERROR_CONSTANT = 2;
+    /**
+     * 校验失败
+     */
+    public static final int ERROR_CHECKSUM = 3;
+
+    private final FrameSchema schema;
+    private byte[] data;
+    private int offset;
+    private int error = ERROR_LENGTH;
+
+    public FrameView(FrameSchema schema) {
+        this.schema = schema;
+    }
+
+    public FrameSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * 指向data[offset, offset+length)，缓冲区只在原回调期间有效时，视图也只在回调期间有效
+     *
+     * @return 帧是否有效，无效时见{@link #getError()}
+     */
+    public boolean wrap(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        error = validate(data, offset, length);
+        return error == ERROR_NONE;
+    }
+
+    public boolean wrap(byte[] data) {
+        return wrap(data, 0, data == null ? 0 : data.length);
+    }
+
+    public boolean isValid() {
+        return error == ERROR_NONE;
+    }
+
+    public int getError() {
+        return error;
+    }
+
+    public int getInt(int field) {
+        return (int) schema.read(data, offset, field);
+    }
+
+    /**
+     * UINT32、INT64字段用这个方法读取
+     */
+    public long getLong(int field) {
+        return schema.read(data, offset, field);
+    }
+
+    public float getFloat(int field) {
+        return Float.intBitsToFloat((int) schema.read(data, offset, field));
+    }
+
+    public boolean getBoolean(int field) {
+        return schema.read(data, offset, field) != 0;
+    }
+
+    public byte[] getBuffer() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    private int validate(byte[] data, int offset, int length) {
+        if (data == null || length < schema.size || offset + length > data.length) {
+            return ERROR_LENGTH;
+        }
+        boolean[] constant = schema.constant;
+        for (int i = 0; i < constant.length; i++) {
+            if (constant[i] && schema.read(data, offset, i) != schema.constantValues[i]) {
+                return ERROR_CONSTANT;
+            }
+        }
+        int type = schema.checksumType;
+        if (type != Checksum.NONE) {
+            int expected = Checksum.compute(type, data, offset + schema.checksumFrom,
+                    schema.checksumOffset - schema.checksumFrom);
+            long actual = FrameSchema.readRaw(data, offset + schema.checksumOffset,
+                    Checksum.size(type), Checksum.isLittleEndian(type));
+            if (expected != actual) {
+                return ERROR_CHECKSUM;
+            }
+        }
+        return ERROR_NONE;
+    }
+}
@@ -0,0 +1,115 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.SparseArray;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 服务发现完成后建立的UUID索引：characteristic UUID -> BluetoothGattCharacteristic，
+ *          以及16位短UUID（如0xFFE4）的别名，读写时不用再遍历服务树。
+ *          建好后不再修改，可以在任意线程读取
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattCharacteristicIndex {
+
+    /**
+     * 蓝牙基础UUID 00000000-0000-1000-8000-00805F9B34FB
+     */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    public static final GattCharacteristicIndex EMPTY = new GattCharacteristicIndex();
+
+    private final Map<UUID, BluetoothGattCharacteristic> characteristics = new HashMap<>();
+    private final SparseArray<BluetoothGattCharacteristic> shortAliases = new SparseArray<>();
+    private final Map<UUID, Map<UUID, BluetoothGattDescriptor>> descriptors = new HashMap<>();
+
+    private GattCharacteristicIndex() {
+    }
+
+    /**
+     * 建立索引。不同服务下有相同UUID的特征时，保留先出现的那个，
+     * 需要区分时请用服务UUID+特征UUID查找
+     */
+    public static GattCharacteristicIndex build(List<BluetoothGattService> gattServices) {
+        GattCharacteristicIndex index = new GattCharacteristicIndex();
+        if (gattServices == null) {
+            return index;
+        }
+        for (BluetoothGattService gattService : gattServices) {
+            for (BluetoothGattCharacteristic gattCharacteristic : gattService.getCharacteristics()) {
+                UUID uuid = gattCharacteristic.getUuid();
+                if (index.characteristics.containsKey(uuid)) {
+                    continue;
+                }
+                index.characteristics.put(uuid, gattCharacteristic);
+                int shortUuid = toShortUuid(uuid);
+                if (shortUuid >= 0) {
+                    index.shortAliases.put(shortUuid, gattCharacteristic);
+                }
+                List<BluetoothGattDescriptor> gattDescriptors = gattCharacteristic.getDescriptors();
+                if (gattDescriptors != null && !gattDescriptors.isEmpty()) {
+                    Map<UUID, BluetoothGattDescriptor> map = new HashMap<>();
+                    for (BluetoothGattDescriptor descriptor : gattDescriptors) {
+                        map.put(descriptor.getUuid(), descriptor);
+                    }
+                    index.descriptors.put(uuid, map);
+                }
+            }
+        }
+        return index;
+    }
+
+    public BluetoothGattCharacteristic get(UUID characteristic) {
+        return characteristics.get(characteristic);
+    }
+
+    /**
+     * 按16位短UUID查找，如get(0xFFE4)
+     */
+    public BluetoothGattCharacteristic get(int shortUuid) {
+        return shortAliases.get(shortUuid);
+    }
+
+    public BluetoothGattDescriptor getDescriptor(UUID characteristic, UUID descriptor) {
+        Map<UUID, BluetoothGattDescriptor> map = descriptors.get(characteristic);
+        return map == null ? null : map.get(descriptor);
+    }
+
+    public boolean isEmpty() {
+        return characteristics.isEmpty();
+    }
+
+    public int size() {
+        return characteristics.size();
+    }
+
+    /**
+     * 16位短UUID转换成完整的128位UUID
+     */
+    public static UUID fromShortUuid(int shortUuid) {
+        return new UUID(BASE_UUID_MSB | ((long) (shortUuid & 0xffff) << 32), BASE_UUID_LSB);
+    }
+
+    /**
+     * 基于蓝牙基础UUID的16位UUID返回短UUID，否则返回-1
+     */
+    public static int toShortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB
+                || (msb & 0xffffffffL) != BASE_UUID_MSB
+                || (msb >>> 48) != 0) {
+            return -1;
+        }
+        return (int) (msb >>> 32) & 0xffff;
+    }
+}
@@ -0,0 +1,311 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： GATT服务/特征布局缓存：按设备地址保存到文件，用布局哈希判断布局是否变化。
+ *          重连时在服务发现完成前就能知道设备有哪些服务和特征，调用者可以据此先按UUID排队读写，
+ *          但这些操作仍要等服务发现完成才执行（Android必须发现服务后才有特征对象），不会提前开始IO。
+ *          省下的只是布局没变时displayGattServices的遍历和打印；不读取Database Hash(0x2B2A)，
+ *          设备固件升级后需要调用方invalidate
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattLayoutCache {
+    private final static String TAG = GattLayoutCache.class.getSimpleName();
+
+    private static final int FILE_VERSION = 1;
+    private static final String DIR_NAME = "gatt_cache";
+
+    public static class CharacteristicEntry {
+        private final UUID uuid;
+        private final int properties;
+        private final List<UUID> descriptors;
+
+        CharacteristicEntry(UUID uuid, int properties, List<UUID> descriptors) {
+            this.uuid = uuid;
+            this.properties = properties;
+            this.descriptors = Collections.unmodifiableList(descriptors);
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        /**
+         * BluetoothGattCharacteristic.PROPERTY_*
+         */
+        public int getProperties() {
+            return properties;
+        }
+
+        public List<UUID> getDescriptors() {
+            return descriptors;
+        }
+    }
+
+    public static class ServiceEntry {
+        private final UUID uuid;
+        private final List<CharacteristicEntry> characteristics;
+
+        ServiceEntry(UUID uuid, List<CharacteristicEntry> characteristics) {
+            this.uuid = uuid;
+            this.characteristics = Collections.unmodifiableList(characteristics);
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public List<CharacteristicEntry> getCharacteristics() {
+            return characteristics;
+        }
+    }
+
+    public static class Layout {
+        private final String address;
+        private final long hash;
+        private final List<ServiceEntry> services;
+
+        Layout(String address, long hash, List<ServiceEntry> services) {
+            this.address = address;
+            this.hash = hash;
+            this.services = Collections.unmodifiableList(services);
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * 整个布局的哈希，服务、特征、属性、描述符有任何变化都会不同
+         */
+        public long getHash() {
+            return hash;
+        }
+
+        public List<ServiceEntry> getServices() {
+            return services;
+        }
+
+        /**
+         * 查找特征所在的服务
+         *
+         * @return 服务UUID，找不到返回null
+         */
+        public UUID findService(UUID characteristic) {
+            for (ServiceEntry service : services) {
+                for (CharacteristicEntry entry : service.characteristics) {
+                    if (entry.uuid.equals(characteristic)) {
+                        return service.uuid;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 从服务发现的结果生成布局
+         */
+        public static Layout from(String address, List<BluetoothGattService> gattServices) {
+            List<ServiceEntry> services = new ArrayList<>();
+            for (BluetoothGattService gattService : gattServices) {
+                List<CharacteristicEntry> characteristics = new ArrayList<>();
+                for (BluetoothGattCharacteristic gattCharacteristic : gattService.getCharacteristics()) {
+                    List<UUID> descriptors = new ArrayList<>();
+                    for (BluetoothGattDescriptor descriptor : gattCharacteristic.getDescriptors()) {
+                        descriptors.add(descriptor.getUuid());
+                    }
+                    characteristics.add(new CharacteristicEntry(gattCharacteristic.getUuid(),
+                            gattCharacteristic.getProperties(), descriptors));
+                }
+                services.add(new ServiceEntry(gattService.getUuid(), characteristics));
+            }
+            return new Layout(address, hash(services), services);
+        }
+
+        /**
+         * FNV-1a 64位哈希
+         */
+        private static long hash(List<ServiceEntry> services) {
+            long h = 0xcbf29ce484222325L;
+            for (ServiceEntry service : services) {
+                h = mix(mix(h, service.uuid.getMostSignificantBits()), service.uuid.getLeastSignificantBits());
+                for (CharacteristicEntry c : service.characteristics) {
+                    h = mix(mix(h, c.uuid.getMostSignificantBits()), c.uuid.getLeastSignificantBits());
+                    h = mix(h, c.properties);
+                    for (UUID d : c.descriptors) {
+                        h = mix(mix(h, d.getMostSignificantBits()), d.getLeastSignificantBits());
+                    }
+                }
+            }
+            return h;
+        }
+
+        private static long mix(long h, long value) {
+            for (int i = 0; i < 8; i++) {
+                h ^= (value >>> (i * 8)) & 0xff;
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Layout> layouts = new HashMap<>();
+
+    public GattLayoutCache(File filesDir) {
+        this.dir = new File(filesDir, DIR_NAME);
+    }
+
+    /**
+     * 取缓存的布局，内存中没有时从文件加载
+     */
+    public synchronized Layout get(String address) {
+        Layout layout = layouts.get(address);
+        if (layout == null) {
+            layout = load(address);
+            if (layout != null) {
+                layouts.put(address, layout);
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * 保存新的布局
+     *
+     * @return 布局是否有变化（没有缓存或哈希不同）
+     */
+    public synchronized boolean put(Layout layout) {
+        Layout old = get(layout.getAddress());
+        if (old != null && old.getHash() == layout.getHash()) {
+            return false;
+        }
+        layouts.put(layout.getAddress(), layout);
+        save(layout);
+        return true;
+    }
+
+    public synchronized void invalidate(String address) {
+        layouts.remove(address);
+        File file = fileOf(address);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "delete " + file + " failed");
+        }
+    }
+
+    private File fileOf(String address) {
+        return new File(dir, address.replace(":", ""));
+    }
+
+    private Layout load(String address) {
+        File file = fileOf(address);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION) {
+                return null;
+            }
+            long hash = in.readLong();
+            int serviceCount = in.readInt();
+            List<ServiceEntry> services = new ArrayList<>(serviceCount);
+            for (int i = 0; i < serviceCount; i++) {
+                UUID serviceUuid = new UUID(in.readLong(), in.readLong());
+                int charCount = in.readInt();
+                List<CharacteristicEntry> characteristics = new ArrayList<>(charCount);
+                for (int j = 0; j < charCount; j++) {
+                    UUID charUuid = new UUID(in.readLong(), in.readLong());
+                    int properties = in.readInt();
+                    int descCount = in.readInt();
+                    List<UUID> descriptors = new ArrayList<>(descCount);
+                    for (int k = 0; k < descCount; k++) {
+                        descriptors.add(new UUID(in.readLong(), in.readLong()));
+                    }
+                    characteristics.add(new CharacteristicEntry(charUuid, properties, descriptors));
+                }
+                services.add(new ServiceEntry(serviceUuid, characteristics));
+            }
+            Layout layout = new Layout(address, hash, services);
+            if (Layout.hash(services) != hash) {
+                Log.w(TAG, "corrupted cache " + file);
+                return null;
+            }
+            return layout;
+        } catch (IOException e) {
+            Log.w(TAG, "load " + file + " failed", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void save(Layout layout) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "mkdirs " + dir + " failed");
+            return;
+        }
+        File file = fileOf(layout.getAddress());
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FILE_VERSION);
+            out.writeLong(layout.getHash());
+            out.writeInt(layout.services.size());
+            for (ServiceEntry service : layout.services) {
+                writeUuid(out, service.uuid);
+                out.writeInt(service.characteristics.size());
+                for (CharacteristicEntry c : service.characteristics) {
+                    writeUuid(out, c.uuid);
+                    out.writeInt(c.properties);
+                    out.writeInt(c.descriptors.size());
+                    for (UUID d : c.descriptors) {
+                        writeUuid(out, d);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "save " + file + " failed", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 连接各阶段的耗时和吞吐统计，按设备、按特征分开：
+ *          连接（connect到STATE_CONNECTED）、服务发现、MTU协商、读写往返（入队到回调、提交到回调），
+ *          以及每个特征的通知条数和字节数。记录路径上只有查表和原子自增，已有的设备/特征不分配内存。
+ *          通过{@link #snapshot()}取出所有指标上报，或用{@link #dump(StringBuilder)}输出文本。
+ *          计数器是累计值，每项带采集时间和开始计数以来的时长，可以算出速率
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattMetrics {
+
+    public static final String CONNECT = "gatt.connect";
+    public static final String DISCOVERY = "gatt.discovery";
+    public static final String MTU = "gatt.mtu";
+    public static final String DISCONNECTS = "gatt.disconnects";
+    public static final String TIMEOUTS = "gatt.timeouts";
+    public static final String FAILURES = "gatt.failures";
+    /**
+     * 读写从入队到完成的耗时，包括排队等待
+     */
+    public static final String READ_TOTAL = "gatt.read.total";
+    public static final String WRITE_TOTAL = "gatt.write.total";
+    /**
+     * 读写从提交给BluetoothGatt到回调的耗时，即空口往返
+     */
+    public static final String READ_RTT = "gatt.read.rtt";
+    public static final String WRITE_RTT = "gatt.write.rtt";
+    public static final String NOTIFICATIONS = "gatt.notifications";
+    public static final String NOTIFICATION_BYTES = "gatt.notification.bytes";
+
+    /**
+     * 一个特征的统计
+     */
+    public static class CharacteristicMetrics {
+        // 开始计数的时间，System.nanoTime()
+        final long startNanos = System.nanoTime();
+        final LatencyHistogram readTotal = new LatencyHistogram();
+        final LatencyHistogram readRtt = new LatencyHistogram();
+        final LatencyHistogram writeTotal = new LatencyHistogram();
+        final LatencyHistogram writeRtt = new LatencyHistogram();
+        final AtomicLong notifications = new AtomicLong();
+        final AtomicLong notificationBytes = new AtomicLong();
+    }
+
+    /**
+     * 一个设备的统计
+     */
+    public static class DeviceMetrics {
+        final String address;
+        final long startNanos = System.nanoTime();
+        final LatencyHistogram connect = new LatencyHistogram();
+        final LatencyHistogram discovery = new LatencyHistogram();
+        final LatencyHistogram mtu = new LatencyHistogram();
+        final AtomicLong disconnects = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final ConcurrentHashMap<UUID, CharacteristicMetrics> characteristics = new ConcurrentHashMap<>();
+
+        DeviceMetrics(String address) {
+            this.address = address;
+        }
+
+        CharacteristicMetrics characteristic(UUID uuid) {
+            CharacteristicMetrics metrics = characteristics.get(uuid);
+            if (metrics == null) {
+                metrics = new CharacteristicMetrics();
+                CharacteristicMetrics old = characteristics.putIfAbsent(uuid, metrics);
+                if (old != null) {
+                    metrics = old;
+                }
+            }
+            return metrics;
+        }
+
+        public void recordConnect(long nanos) {
+            connect.recordNanos(nanos);
+        }
+
+        public void recordDiscovery(long nanos) {
+            discovery.recordNanos(nanos);
+        }
+
+        public void recordDisconnect() {
+            disconnects.incrementAndGet();
+        }
+
+        public void recordNotification(UUID uuid, int length) {
+            CharacteristicMetrics metrics = characteristic(uuid);
+            metrics.notifications.incrementAndGet();
+            metrics.notificationBytes.addAndGet(length);
+        }
+
+        /**
+         * 以下由{@link GattOperationQueue}在操作完成时调用，时间都是纳秒，rtt未知时为-1
+         */
+        void recordTimeout() {
+            timeouts.incrementAndGet();
+        }
+
+        void recordFailure() {
+            failures.incrementAndGet();
+        }
+
+        void recordRead(UUID uuid, long total, long rtt) {
+            CharacteristicMetrics metrics = characteristic(uuid);
+            metrics.readTotal.recordNanos(total);
+            metrics.readRtt.recordNanos(rtt);
+        }
+
+        void recordWrite(UUID uuid, long total, long rtt) {
+            CharacteristicMetrics metrics = characteristic(uuid);
+            metrics.writeTotal.recordNanos(total);
+            metrics.writeRtt.recordNanos(rtt);
+        }
+
+        void recordMtu(long rtt) {
+            mtu.recordNanos(rtt);
+        }
+    }
+
+    /**
+     * 导出的一项指标：直方图或计数器
+     */
+    public static class Metric {
+        private final String name;
+        private final String address;
+        private final UUID uuid;
+        private final LatencyHistogram.Snapshot histogram;
+        private final long value;
+        private final long timestamp;
+        private final long elapsedNanos;
+
+        Metric(String name, String address, UUID uuid, LatencyHistogram.Snapshot histogram, long value,
+               long timestamp, long elapsedNanos) {
+            this.name = name;
+            this.address = address;
+            this.uuid = uuid;
+            this.histogram = histogram;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * 设备级指标为null
+         */
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        /**
+         * 计数器为null
+         */
+        public LatencyHistogram.Snapshot getHistogram() {
+            return histogram;
+        }
+
+        /**
+         * 计数器的值，直方图为记录次数
+         */
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * 采集时间，System.currentTimeMillis()
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * 从开始计数（第一次记录这个设备/特征）到采集的时长，纳秒
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * 开始计数以来的平均每秒次数（或字节数），两次采集的差值除以时间差可得区间速率
+         */
+        public double getRatePerSecond() {
+            return elapsedNanos <= 0 ? 0 : value * 1e9 / elapsedNanos;
+        }
+    }
+
+    private final ConcurrentHashMap<String, DeviceMetrics> devices = new ConcurrentHashMap<>();
+
+    /**
+     * 取出设备的统计，没有时创建
+     */
+    public DeviceMetrics device(String address) {
+        DeviceMetrics metrics = devices.get(address);
+        if (metrics == null) {
+            metrics = new DeviceMetrics(address);
+            DeviceMetrics old = devices.putIfAbsent(address, metrics);
+            if (old != null) {
+                metrics = old;
+            }
+        }
+        return metrics;
+    }
+
+    public void remove(String address) {
+        devices.remove(address);
+    }
+
+    public void clear() {
+        devices.clear();
+    }
+
+    /**
+     * 所有设备、所有特征的指标，没有记录过的直方图不导出
+     */
+    public List<Metric> snapshot() {
+        List<Metric> result = new ArrayList<>();
+        long timestamp = System.currentTimeMillis();
+        long now = System.nanoTime();
+        for (DeviceMetrics device : devices.values()) {
+            String address = device.address;
+            long elapsed = now - device.startNanos;
+            addHistogram(result, CONNECT, address, null, device.connect, timestamp, elapsed);
+            addHistogram(result, DISCOVERY, address, null, device.discovery, timestamp, elapsed);
+            addHistogram(result, MTU, address, null, device.mtu, timestamp, elapsed);
+            result.add(new Metric(DISCONNECTS, address, null, null, device.disconnects.get(), timestamp, elapsed));
+            result.add(new Metric(TIMEOUTS, address, null, null, device.timeouts.get(), timestamp, elapsed));
+            result.add(new Metric(FAILURES, address, null, null, device.failures.get(), timestamp, elapsed));
+            for (Map.Entry<UUID, CharacteristicMetrics> entry : device.characteristics.entrySet()) {
+                UUID uuid = entry.getKey();
+                CharacteristicMetrics c = entry.getValue();
+                elapsed = now - c.startNanos;
+                addHistogram(result, READ_TOTAL, address, uuid, c.readTotal, timestamp, elapsed);
+                addHistogram(result, READ_RTT, address, uuid, c.readRtt, timestamp, elapsed);
+                addHistogram(result, WRITE_TOTAL, address, uuid, c.writeTotal, timestamp, elapsed);
+                addHistogram(result, WRITE_RTT, address, uuid, c.writeRtt, timestamp, elapsed);
+                result.add(new Metric(NOTIFICATIONS, address, uuid, null, c.notifications.get(),
+                        timestamp, elapsed));
+                result.add(new Metric(NOTIFICATION_BYTES, address, uuid, null, c.notificationBytes.get(),
+                        timestamp, elapsed));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * 每项一行：name{device=..,uuid=..} count=.. p50=.. p90=.. p99=.. max=..（微秒），
+     * 计数器为value=.. rate=..（每秒）
+     */
+    public void dump(StringBuilder out) {
+        for (Metric metric : snapshot()) {
+            out.append(metric.name).append("{device=").append(metric.address);
+            if (metric.uuid != null) {
+                out.append(",uuid=").append(metric.uuid);
+            }
+            out.append('}');
+            LatencyHistogram.Snapshot h = metric.histogram;
+            if (h == null) {
+                out.append(" value=").append(metric.value)
+                        .append(String.format(Locale.US, " rate=%.2f", metric.getRatePerSecond()));
+            } else {
+                out.append(" count=").append(h.getCount())
+                        .append(" min=").append(h.getMin())
+                        .append(" p50=").append(h.getValueAtPercentile(50))
+                        .append(" p90=").append(h.getValueAtPercentile(90))
+                        .append(" p99=").append(h.getValueAtPercentile(99))
+                        .append(" max=").append(h.getMax());
+            }
+            out.append('\n');
+        }
+    }
+
+    private static void addHistogram(List<Metric> result, String name, String address, UUID uuid,
+                                     LatencyHistogram histogram, long timestamp, long elapsedNanos) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        result.add(new Metric(name, address, uuid, snapshot, snapshot.getCount(), timestamp, elapsedNanos));
+    }
+}
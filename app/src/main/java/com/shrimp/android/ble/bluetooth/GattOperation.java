@@ -0,0 +1,563 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 一次GATT操作（读、写、通知），由{@link GattOperationQueue}串行执行，
+ *          结果通过{@link Callback}或{@link Future}返回
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattOperation implements Future<byte[]> {
+
+    public static final int TYPE_READ = 1;
+    public static final int TYPE_WRITE = 2;
+    public static final int TYPE_NOTIFY = 3;
+    public static final int TYPE_MTU = 4;
+    public static final int TYPE_CONNECTION_PRIORITY = 5;
+    public static final int TYPE_BEGIN_RELIABLE_WRITE = 6;
+    public static final int TYPE_EXECUTE_RELIABLE_WRITE = 7;
+    public static final int TYPE_ABORT_RELIABLE_WRITE = 8;
+    public static final int TYPE_WRITE_DESCRIPTOR = 9;
+
+    /**
+     * 客户端特征配置描述符（CCCD），写入后设备才会发送通知或指示
+     */
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    public static final int SUBSCRIBE_DISABLE = 0;
+    public static final int SUBSCRIBE_NOTIFY = 1;
+    public static final int SUBSCRIBE_INDICATE = 2;
+    /**
+     * 按特征属性选择，支持通知时用通知，否则用指示
+     */
+    public static final int SUBSCRIBE_AUTO = 3;
+
+    /**
+     * 操作超时，没有等到mGattCallback的回调
+     */
+    public static final int STATUS_TIMEOUT = -1;
+    /**
+     * BluetoothGatt拒绝了请求（返回false）
+     */
+    public static final int STATUS_FAILED = -2;
+    /**
+     * 操作在执行前被取消
+     */
+    public static final int STATUS_CANCELLED = -3;
+    /**
+     * 连接断开或关闭，队列中的操作全部作废
+     */
+    public static final int STATUS_DISCONNECTED = -4;
+
+    /**
+     * 执行结果：等待回调
+     */
+    static final int EXECUTE_PENDING = 0;
+    /**
+     * 执行结果：同步完成，不会有回调
+     */
+    static final int EXECUTE_DONE = 1;
+    /**
+     * 执行结果：提交失败
+     */
+    static final int EXECUTE_FAILED = 2;
+
+    public interface Callback {
+        /**
+         * 操作完成（成功、失败、超时或取消），运行在回调线程上
+         */
+        void onComplete(GattOperation operation);
+    }
+
+    private final int type;
+    // 按UUID创建的操作在执行时才解析出characteristic，服务发现前就可以排队
+    private BluetoothGattCharacteristic characteristic;
+    private final UUID serviceUuid;
+    private final UUID characteristicUuid;
+    private final byte[] writeValue;
+    private final boolean enable;
+    // 描述符写入：目标描述符；subscribe为true时按intValue（SUBSCRIBE_*）生成CCCD的值
+    private UUID descriptorUuid;
+    private boolean subscribe;
+    // MTU或连接优先级
+    private int intValue;
+    private int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    private long timeout;
+    private Callback callback;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile int status;
+    private volatile byte[] value;
+    private volatile boolean finished;
+
+    GattOperationQueue queue;
+    // 入队和提交给BluetoothGatt的时间（System.nanoTime），用于统计耗时
+    long enqueueTime;
+    long executeTime;
+    final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (queue != null) {
+                queue.onTimeout(GattOperation.this);
+            }
+        }
+    };
+
+    private GattOperation(int type, BluetoothGattCharacteristic characteristic, byte[] writeValue,
+                          boolean enable) {
+        this.type = type;
+        this.characteristic = characteristic;
+        this.serviceUuid = null;
+        this.characteristicUuid = characteristic.getUuid();
+        this.writeValue = writeValue;
+        this.enable = enable;
+    }
+
+    private GattOperation(int type, UUID serviceUuid, UUID characteristicUuid, byte[] writeValue,
+                          boolean enable) {
+        this.type = type;
+        this.serviceUuid = serviceUuid;
+        this.characteristicUuid = characteristicUuid;
+        this.writeValue = writeValue;
+        this.enable = enable;
+    }
+
+    public static GattOperation read(BluetoothGattCharacteristic characteristic) {
+        return new GattOperation(TYPE_READ, characteristic, null, false);
+    }
+
+    /**
+     * 写操作在入队时复制characteristic当前的值，排队期间再修改characteristic不会影响本次写入
+     */
+    public static GattOperation write(BluetoothGattCharacteristic characteristic) {
+        byte[] v = characteristic.getValue();
+        return new GattOperation(TYPE_WRITE, characteristic, v == null ? null : v.clone(), false);
+    }
+
+    public static GattOperation write(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return new GattOperation(TYPE_WRITE, characteristic, value, false);
+    }
+
+    public static GattOperation notify(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return new GattOperation(TYPE_NOTIFY, characteristic, null, enable);
+    }
+
+    public static GattOperation read(UUID service, UUID characteristic) {
+        return new GattOperation(TYPE_READ, service, characteristic, null, false);
+    }
+
+    public static GattOperation write(UUID service, UUID characteristic, byte[] value) {
+        return new GattOperation(TYPE_WRITE, service, characteristic, value, false);
+    }
+
+    public static GattOperation notify(UUID service, UUID characteristic, boolean enable) {
+        return new GattOperation(TYPE_NOTIFY, service, characteristic, null, enable);
+    }
+
+    /**
+     * 协商MTU，结果在onMtuChanged返回，getIntValue()为协商后的MTU。需要5.0以上
+     */
+    public static GattOperation requestMtu(int mtu) {
+        GattOperation op = new GattOperation(TYPE_MTU, null, null, null, false);
+        op.intValue = mtu;
+        return op;
+    }
+
+    /**
+     * 切换连接优先级，BluetoothGatt.CONNECTION_PRIORITY_*。需要5.0以上
+     */
+    public static GattOperation requestConnectionPriority(int priority) {
+        GattOperation op = new GattOperation(TYPE_CONNECTION_PRIORITY, null, null, null, false);
+        op.intValue = priority;
+        return op;
+    }
+
+    /**
+     * 开始可靠写事务，之后的写操作先缓存在设备端，{@link #executeReliableWrite()}时一起生效。
+     * 一般通过{@link GattTransaction}使用
+     */
+    public static GattOperation beginReliableWrite() {
+        return new GattOperation(TYPE_BEGIN_RELIABLE_WRITE, null, null, null, false);
+    }
+
+    /**
+     * 提交可靠写事务，结果在onReliableWriteCompleted返回
+     */
+    public static GattOperation executeReliableWrite() {
+        return new GattOperation(TYPE_EXECUTE_RELIABLE_WRITE, null, null, null, false);
+    }
+
+    /**
+     * 放弃可靠写事务，设备端丢弃缓存的写入
+     */
+    public static GattOperation abortReliableWrite() {
+        return new GattOperation(TYPE_ABORT_RELIABLE_WRITE, null, null, null, false);
+    }
+
+    /**
+     * 写描述符，结果在onDescriptorWrite返回
+     */
+    public static GattOperation writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+        GattOperation op = new GattOperation(TYPE_WRITE_DESCRIPTOR, null, characteristic, value, false);
+        op.descriptorUuid = descriptor;
+        return op;
+    }
+
+    /**
+     * 打开或关闭通知/指示：先打开本地开关，再写CCCD，设备确认后才算完成。
+     * 一般通过{@link GattSubscriptionManager}使用，断线重连后自动恢复
+     *
+     * @param mode SUBSCRIBE_*
+     */
+    public static GattOperation subscribe(UUID characteristic, int mode) {
+        return subscribe(null, characteristic, mode);
+    }
+
+    public static GattOperation subscribe(UUID service, UUID characteristic, int mode) {
+        GattOperation op = new GattOperation(TYPE_WRITE_DESCRIPTOR, service, characteristic, null,
+                mode != SUBSCRIBE_DISABLE);
+        op.descriptorUuid = CLIENT_CHARACTERISTIC_CONFIG;
+        op.subscribe = true;
+        op.intValue = mode;
+        return op;
+    }
+
+    /**
+     * 只按特征UUID，执行时从{@link GattCharacteristicIndex}中查找
+     */
+    public static GattOperation read(UUID characteristic) {
+        return new GattOperation(TYPE_READ, null, characteristic, null, false);
+    }
+
+    public static GattOperation write(UUID characteristic, byte[] value) {
+        return new GattOperation(TYPE_WRITE, null, characteristic, value, false);
+    }
+
+    /**
+     * 把超过一包的数据拆成多个写操作，需要用enqueueAll一次加入队列，中间不会插入其他写入。
+     * 任何一包失败时取消剩下的包，callback只回调一次：失败的那一包，或者全部成功时的最后一包
+     */
+    static List<GattOperation> writeFragments(UUID characteristic, byte[] payload, int chunkSize,
+                                              int writeType, final Callback callback) {
+        int count = Math.max(1, (payload.length + chunkSize - 1) / chunkSize);
+        final List<GattOperation> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int from = i * chunkSize;
+            chunks.add(write(characteristic,
+                    Arrays.copyOfRange(payload, from, Math.min(payload.length, from + chunkSize)))
+                    .setWriteType(writeType));
+        }
+        final GattOperation last = chunks.get(count - 1);
+        final boolean[] aborted = new boolean[1];
+        Callback abortOnFailure = new Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                if (operation.isSuccess()) {
+                    if (operation == last && callback != null) {
+                        callback.onComplete(operation);
+                    }
+                    return;
+                }
+                // 取消其他包时它们也会以STATUS_CANCELLED回到这里
+                synchronized (aborted) {
+                    if (aborted[0]) {
+                        return;
+                    }
+                    aborted[0] = true;
+                }
+                for (GattOperation chunk : chunks) {
+                    chunk.cancel(false);
+                }
+                if (callback != null) {
+                    callback.onComplete(operation);
+                }
+            }
+        };
+        for (GattOperation chunk : chunks) {
+            chunk.setCallback(abortOnFailure);
+        }
+        return chunks;
+    }
+
+    public static GattOperation notify(UUID characteristic, boolean enable) {
+        return new GattOperation(TYPE_NOTIFY, null, characteristic, null, enable);
+    }
+
+    /**
+     * 超时时间，0表示使用队列的默认值
+     */
+    public GattOperation setTimeout(long timeoutMillis) {
+        this.timeout = timeoutMillis;
+        return this;
+    }
+
+    public GattOperation setCallback(Callback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    /**
+     * 写操作的类型，BluetoothGattCharacteristic.WRITE_TYPE_*。
+     * WRITE_TYPE_NO_RESPONSE不等设备应答，数据交给协议栈后就回调，适合允许丢包的数据流
+     */
+    public GattOperation setWriteType(int writeType) {
+        this.writeType = writeType;
+        return this;
+    }
+
+    public int getWriteType() {
+        return writeType;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * 按UUID创建的操作在执行前返回null
+     */
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return characteristic;
+    }
+
+    public UUID getUuid() {
+        return characteristicUuid;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * MTU操作完成后为协商得到的MTU，订阅操作为SUBSCRIBE_*
+     */
+    public int getIntValue() {
+        return intValue;
+    }
+
+    /**
+     * @return BluetoothGatt.GATT_SUCCESS或回调中的GATT状态，或STATUS_*
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return finished && status == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * 读操作返回读到的值，写操作返回写入的值
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * 在队列线程上提交给BluetoothGatt
+     */
+    int execute(BluetoothGatt gatt, GattCharacteristicIndex index) {
+        if (gatt == null) {
+            return EXECUTE_FAILED;
+        }
+        if (type == TYPE_MTU || type == TYPE_CONNECTION_PRIORITY) {
+            return executeLinkRequest(gatt);
+        }
+        if (type == TYPE_BEGIN_RELIABLE_WRITE || type == TYPE_EXECUTE_RELIABLE_WRITE
+                || type == TYPE_ABORT_RELIABLE_WRITE) {
+            return executeReliableWrite(gatt);
+        }
+        if (characteristic == null && !resolve(gatt, index)) {
+            return EXECUTE_FAILED;
+        }
+        switch (type) {
+            case TYPE_READ:
+                return gatt.readCharacteristic(characteristic) ? EXECUTE_PENDING : EXECUTE_FAILED;
+            case TYPE_WRITE:
+                if (writeValue != null) {
+                    characteristic.setValue(writeValue);
+                }
+                characteristic.setWriteType(writeType);
+                return gatt.writeCharacteristic(characteristic) ? EXECUTE_PENDING : EXECUTE_FAILED;
+            case TYPE_NOTIFY:
+                // 只修改本地通知开关，没有回调
+                return gatt.setCharacteristicNotification(characteristic, enable)
+                        ? EXECUTE_DONE : EXECUTE_FAILED;
+            case TYPE_WRITE_DESCRIPTOR:
+                return executeDescriptorWrite(gatt);
+            default:
+                return EXECUTE_FAILED;
+        }
+    }
+
+    private int executeDescriptorWrite(BluetoothGatt gatt) {
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(descriptorUuid);
+        if (descriptor == null) {
+            return EXECUTE_FAILED;
+        }
+        byte[] v = writeValue;
+        if (subscribe) {
+            v = subscriptionValue(characteristic.getProperties(), intValue);
+            if (v == null || !gatt.setCharacteristicNotification(characteristic, enable)) {
+                return EXECUTE_FAILED;
+            }
+        }
+        descriptor.setValue(v);
+        // 7.0以前writeDescriptor沿用特征的写类型，特征设成无应答时描述符写入会收不到回调
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        return gatt.writeDescriptor(descriptor) ? EXECUTE_PENDING : EXECUTE_FAILED;
+    }
+
+    /**
+     * CCCD的值，特征不支持所选方式时返回null
+     */
+    static byte[] subscriptionValue(int properties, int mode) {
+        boolean notify = (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
+        boolean indicate = (properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0;
+        switch (mode) {
+            case SUBSCRIBE_DISABLE:
+                return BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+            case SUBSCRIBE_NOTIFY:
+                return notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : null;
+            case SUBSCRIBE_INDICATE:
+                return indicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : null;
+            default:
+                return notify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                        : indicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : null;
+        }
+    }
+
+    private int executeLinkRequest(BluetoothGatt gatt) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return EXECUTE_FAILED;
+        }
+        if (type == TYPE_MTU) {
+            return gatt.requestMtu(intValue) ? EXECUTE_PENDING : EXECUTE_FAILED;
+        }
+        // 连接优先级没有回调
+        return gatt.requestConnectionPriority(intValue) ? EXECUTE_DONE : EXECUTE_FAILED;
+    }
+
+    private int executeReliableWrite(BluetoothGatt gatt) {
+        switch (type) {
+            case TYPE_BEGIN_RELIABLE_WRITE:
+                // 只切换本地状态，没有回调
+                return gatt.beginReliableWrite() ? EXECUTE_DONE : EXECUTE_FAILED;
+            case TYPE_EXECUTE_RELIABLE_WRITE:
+                return gatt.executeReliableWrite() ? EXECUTE_PENDING : EXECUTE_FAILED;
+            default:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    gatt.abortReliableWrite();
+                } else {
+                    //noinspection deprecation
+                    gatt.abortReliableWrite(gatt.getDevice());
+                }
+                return EXECUTE_DONE;
+        }
+    }
+
+    /**
+     * 在服务发现的结果中查找characteristic，没有指定服务时查索引
+     */
+    boolean resolve(BluetoothGatt gatt, GattCharacteristicIndex index) {
+        if (serviceUuid == null) {
+            characteristic = index.get(characteristicUuid);
+            return characteristic != null;
+        }
+        BluetoothGattService service = gatt.getService(serviceUuid);
+        if (service == null) {
+            return false;
+        }
+        characteristic = service.getCharacteristic(characteristicUuid);
+        return characteristic != null;
+    }
+
+    /**
+     * 回调是否对应本操作
+     */
+    boolean matches(int type, BluetoothGattCharacteristic characteristic) {
+        if (this.type != type) {
+            return false;
+        }
+        if (characteristicUuid == null || characteristic == null) {
+            return characteristicUuid == null && characteristic == null;
+        }
+        return this.characteristic == characteristic
+                || characteristicUuid.equals(characteristic.getUuid());
+    }
+
+    void finish(int status, int intValue) {
+        this.intValue = intValue;
+        finish(status, null);
+    }
+
+    void finish(int status, byte[] value) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            this.status = status;
+            this.value = value;
+            this.finished = true;
+        }
+        done.countDown();
+        if (callback != null) {
+            callback.onComplete(this);
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return queue != null && queue.cancel(this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return finished && status == STATUS_CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return finished;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private byte[] result() throws ExecutionException {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            throw new ExecutionException(new IllegalStateException("gatt operation status=" + status));
+        }
+        return value;
+    }
+}
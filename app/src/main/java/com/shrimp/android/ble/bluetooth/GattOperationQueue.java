@@ -0,0 +1,331 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： GATT操作队列：BluetoothGatt同一时间只能处理一个请求，并发调用时后面的请求会被丢弃。
+ *          这里把请求排队，收到mGattCallback对应的回调后立即发出下一个，每个操作单独超时
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattOperationQueue {
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+    /**
+     * 操作超时后协议栈可能仍在处理它，最多再等这么久它的回调，期间不发出下一个操作
+     */
+    public static final long LATE_CALLBACK_WINDOW = 2000;
+
+    private final Handler handler;
+    private final LinkedList<GattOperation> pending = new LinkedList<>();
+    private GattOperation current;
+    // 已超时但回调还没到的操作，晚到的回调由它吸收，不会被当成下一个同类操作的结果
+    private GattOperation timedOut;
+    private volatile BluetoothGatt gatt;
+    private volatile GattCharacteristicIndex index = GattCharacteristicIndex.EMPTY;
+    private long defaultTimeout = DEFAULT_TIMEOUT;
+    private boolean paused;
+    private volatile GattMetrics.DeviceMetrics metrics;
+
+    /**
+     * @param handler 超时计时所在的Handler
+     */
+    public GattOperationQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    public void setGatt(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    /**
+     * 服务发现后设置，用于按UUID解析操作
+     */
+    public void setIndex(GattCharacteristicIndex index) {
+        this.index = index == null ? GattCharacteristicIndex.EMPTY : index;
+    }
+
+    public void setDefaultTimeout(long timeoutMillis) {
+        this.defaultTimeout = timeoutMillis;
+    }
+
+    /**
+     * 设置后记录每个操作的耗时和失败次数
+     */
+    public void setMetrics(GattMetrics.DeviceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 加入队列，队列空闲时立即执行
+     */
+    public GattOperation enqueue(GattOperation operation) {
+        operation.queue = this;
+        operation.enqueueTime = System.nanoTime();
+        synchronized (this) {
+            pending.add(operation);
+        }
+        drive();
+        return operation;
+    }
+
+    /**
+     * 插到队列最前面，用于MTU协商等需要先于用户操作执行的请求
+     */
+    public GattOperation enqueueFirst(GattOperation operation) {
+        operation.queue = this;
+        operation.enqueueTime = System.nanoTime();
+        synchronized (this) {
+            pending.addFirst(operation);
+        }
+        drive();
+        return operation;
+    }
+
+    /**
+     * 一次加入多个操作，中间不会插入其他调用者的操作，用于可靠写事务
+     */
+    public void enqueueAll(List<GattOperation> operations) {
+        long now = System.nanoTime();
+        for (GattOperation operation : operations) {
+            operation.queue = this;
+            operation.enqueueTime = now;
+        }
+        synchronized (this) {
+            pending.addAll(operations);
+        }
+        drive();
+    }
+
+    /**
+     * 一次插到队列最前面，保持原来的顺序，用于重连后恢复订阅
+     */
+    public void enqueueAllFirst(List<GattOperation> operations) {
+        long now = System.nanoTime();
+        for (GattOperation operation : operations) {
+            operation.queue = this;
+            operation.enqueueTime = now;
+        }
+        synchronized (this) {
+            for (int i = operations.size() - 1; i >= 0; i--) {
+                pending.addFirst(operations.get(i));
+            }
+        }
+        drive();
+    }
+
+    /**
+     * 暂停时只排队不执行，用于连接建立、服务发现完成之前
+     */
+    public void setPaused(boolean paused) {
+        synchronized (this) {
+            this.paused = paused;
+        }
+        if (!paused) {
+            drive();
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized boolean isIdle() {
+        return current == null && timedOut == null && pending.isEmpty();
+    }
+
+    /**
+     * mGattCallback收到读、写等完成回调时调用
+     */
+    public void onComplete(int type, BluetoothGattCharacteristic characteristic, int status, byte[] value) {
+        if (absorbLateCallback(type, characteristic)) {
+            return;
+        }
+        GattOperation op;
+        synchronized (this) {
+            op = current;
+            if (op == null || !op.matches(type, characteristic)) {
+                return;
+            }
+            current = null;
+        }
+        handler.removeCallbacks(op.timeoutTask);
+        long now = System.nanoTime();
+        op.finish(status, value);
+        record(op, now);
+        drive();
+    }
+
+    /**
+     * MTU等没有characteristic的操作完成
+     */
+    public void onComplete(int type, int status, int intValue) {
+        if (absorbLateCallback(type, null)) {
+            return;
+        }
+        GattOperation op;
+        synchronized (this) {
+            op = current;
+            if (op == null || !op.matches(type, null)) {
+                return;
+            }
+            current = null;
+        }
+        handler.removeCallbacks(op.timeoutTask);
+        long now = System.nanoTime();
+        op.finish(status, intValue);
+        record(op, now);
+        drive();
+    }
+
+    /**
+     * 连接断开或关闭时作废所有未完成的操作
+     */
+    public void clear(int status) {
+        List<GattOperation> dropped = new ArrayList<>();
+        boolean waitingLateCallback;
+        synchronized (this) {
+            if (current != null) {
+                dropped.add(current);
+                current = null;
+            }
+            waitingLateCallback = timedOut != null;
+            timedOut = null;
+            dropped.addAll(pending);
+            pending.clear();
+        }
+        if (waitingLateCallback) {
+            handler.removeCallbacks(lateCallbackExpired);
+        }
+        for (GattOperation op : dropped) {
+            handler.removeCallbacks(op.timeoutTask);
+            op.finish(status, null);
+        }
+    }
+
+    boolean cancel(GattOperation operation) {
+        synchronized (this) {
+            if (!pending.remove(operation)) {
+                return false;
+            }
+        }
+        operation.finish(GattOperation.STATUS_CANCELLED, null);
+        return true;
+    }
+
+    void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (current != operation) {
+                return;
+            }
+            current = null;
+            timedOut = operation;
+        }
+        handler.postDelayed(lateCallbackExpired, LATE_CALLBACK_WINDOW);
+        operation.finish(GattOperation.STATUS_TIMEOUT, null);
+        record(operation, System.nanoTime());
+    }
+
+    /**
+     * 回调属于已超时的操作时丢弃它，继续执行队列
+     */
+    private boolean absorbLateCallback(int type, BluetoothGattCharacteristic characteristic) {
+        synchronized (this) {
+            if (timedOut == null || !timedOut.matches(type, characteristic)) {
+                return false;
+            }
+            timedOut = null;
+        }
+        handler.removeCallbacks(lateCallbackExpired);
+        drive();
+        return true;
+    }
+
+    private final Runnable lateCallbackExpired = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (timedOut == null) {
+                    return;
+                }
+                timedOut = null;
+            }
+            drive();
+        }
+    };
+
+    /**
+     * 依次执行队列中的操作，直到有一个需要等待回调
+     */
+    private void drive() {
+        while (true) {
+            GattOperation op;
+            synchronized (this) {
+                if (paused || current != null || timedOut != null || pending.isEmpty()) {
+                    return;
+                }
+                op = pending.poll();
+                current = op;
+            }
+            op.executeTime = System.nanoTime();
+            int result = op.execute(gatt, index);
+            if (result == GattOperation.EXECUTE_PENDING) {
+                synchronized (this) {
+                    // 回调可能已经先到了
+                    if (current == op) {
+                        long timeout = op.getTimeout() > 0 ? op.getTimeout() : defaultTimeout;
+                        handler.postDelayed(op.timeoutTask, timeout);
+                    }
+                }
+                return;
+            }
+            synchronized (this) {
+                if (current == op) {
+                    current = null;
+                }
+            }
+            long now = System.nanoTime();
+            op.finish(result == GattOperation.EXECUTE_DONE
+                    ? BluetoothGatt.GATT_SUCCESS : GattOperation.STATUS_FAILED, null);
+            record(op, now);
+        }
+    }
+
+    private void record(GattOperation op, long now) {
+        GattMetrics.DeviceMetrics m = metrics;
+        if (m == null) {
+            return;
+        }
+        if (op.getStatus() == GattOperation.STATUS_TIMEOUT) {
+            m.recordTimeout();
+            return;
+        }
+        if (!op.isSuccess()) {
+            m.recordFailure();
+            return;
+        }
+        long total = now - op.enqueueTime;
+        long rtt = op.executeTime == 0 ? -1 : now - op.executeTime;
+        switch (op.getType()) {
+            case GattOperation.TYPE_READ:
+                m.recordRead(op.getUuid(), total, rtt);
+                break;
+            case GattOperation.TYPE_WRITE:
+                m.recordWrite(op.getUuid(), total, rtt);
+                break;
+            case GattOperation.TYPE_MTU:
+                m.recordMtu(rtt);
+                break;
+            default:
+                break;
+        }
+    }
+}
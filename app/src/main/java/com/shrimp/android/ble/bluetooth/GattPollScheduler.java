@@ -0,0 +1,426 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 特征轮询调度：只能读不能通知的特征统一由这里定时读，各模块不再各开线程抢着读。
+ *          每个（设备，特征）按目标周期和优先级登记，同一个特征的多个请求合并成一次读，结果分发给所有请求者；
+ *          每个设备同时只有一个轮询读在队列里，设备之间轮流发起；
+ *          按实测读延迟估算链路能承受的读次数，超出时先降低低优先级特征的频率。所有调度在自己的线程上执行
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattPollScheduler {
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * 轮询读占用链路时间的上限，留出余量给其他读写
+     */
+    private static final double MAX_UTILIZATION = 0.8;
+    /**
+     * 降频的上限，带宽不够时低优先级特征也至少按目标周期的这个倍数读一次
+     */
+    private static final double MAX_SCALE = 32;
+    // 延迟的指数平均系数
+    private static final double LATENCY_ALPHA = 0.2;
+    // 设备未连接或未完成服务发现时，隔多久再检查
+    private static final long NOT_READY_RETRY = 1000;
+    // 同时在途的轮询读，默认每个设备一个，最多4个设备同时读
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    public interface Listener {
+        void onSample(String address, UUID characteristic, byte[] value);
+
+        /**
+         * @param status GattOperation.getStatus()
+         */
+        void onError(String address, UUID characteristic, int status);
+    }
+
+    /**
+     * 一次登记，cancel()后不再回调
+     */
+    public static final class Request {
+        private final String address;
+        private final UUID characteristic;
+        private final long period;
+        private final int priority;
+        private final Listener listener;
+
+        Request(String address, UUID characteristic, long period, int priority, Listener listener) {
+            this.address = address;
+            this.characteristic = characteristic;
+            this.period = period;
+            this.priority = priority;
+            this.listener = listener;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public UUID getCharacteristic() {
+            return characteristic;
+        }
+
+        public long getPeriod() {
+            return period;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public void cancel() {
+            getInstance().cancel(this);
+        }
+    }
+
+    /**
+     * 合并后的一个特征：周期取所有请求中最短的，优先级取最高的
+     */
+    static final class Entry {
+        final UUID characteristic;
+        final List<Request> requests = new ArrayList<>(2);
+        long period;
+        int priority;
+        // 按链路负载调整后的实际周期
+        long effectivePeriod;
+        long nextDue;
+        long lastStart;
+
+        Entry(UUID characteristic) {
+            this.characteristic = characteristic;
+        }
+
+        void merge() {
+            period = Long.MAX_VALUE;
+            priority = Integer.MIN_VALUE;
+            for (Request request : requests) {
+                period = Math.min(period, request.period);
+                priority = Math.max(priority, request.priority);
+            }
+        }
+    }
+
+    static final class Device {
+        final String address;
+        final List<Entry> entries = new ArrayList<>();
+        // 读延迟的平均值（毫秒），还没测到时为0
+        double latency;
+        Entry inFlight;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        Entry find(UUID characteristic) {
+            for (Entry entry : entries) {
+                if (entry.characteristic.equals(characteristic)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final Comparator<Entry> BY_PRIORITY = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return b.priority - a.priority;
+        }
+    };
+
+    private static GattPollScheduler mInstance;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    // 按登记顺序轮流
+    private final Map<String, Device> devices = new LinkedHashMap<>();
+    private int cursor;
+    private int inFlight;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    private GattPollScheduler() {
+        thread = new HandlerThread("gatt-poll");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    public static synchronized GattPollScheduler getInstance() {
+        if (mInstance == null) {
+            mInstance = new GattPollScheduler();
+        }
+        return mInstance;
+    }
+
+    /**
+     * 定时读一个特征，同一设备同一特征的多个请求合并
+     *
+     * @param periodMillis 目标周期，链路忙时实际周期会变长
+     * @param priority     PRIORITY_*，数值越大越优先，降频时最后降
+     */
+    public Request poll(String address, UUID characteristic, long periodMillis, int priority,
+                        Listener listener) {
+        Request request = new Request(address, characteristic, Math.max(1, periodMillis), priority, listener);
+        synchronized (this) {
+            Device device = devices.get(address);
+            if (device == null) {
+                device = new Device(address);
+                devices.put(address, device);
+            }
+            Entry entry = device.find(characteristic);
+            if (entry == null) {
+                entry = new Entry(characteristic);
+                entry.nextDue = SystemClock.elapsedRealtime();
+                device.entries.add(entry);
+            }
+            entry.requests.add(request);
+            entry.merge();
+            rebalance(device);
+            entry.nextDue = Math.min(entry.nextDue, entry.lastStart + entry.effectivePeriod);
+        }
+        schedule();
+        return request;
+    }
+
+    public synchronized void cancel(Request request) {
+        Device device = devices.get(request.address);
+        Entry entry = device == null ? null : device.find(request.characteristic);
+        if (entry == null || !entry.requests.remove(request)) {
+            return;
+        }
+        if (entry.requests.isEmpty()) {
+            device.entries.remove(entry);
+            if (device.entries.isEmpty() && device.inFlight == null) {
+                devices.remove(device.address);
+            }
+        } else {
+            entry.merge();
+        }
+        rebalance(device);
+    }
+
+    /**
+     * 取消该设备的所有轮询
+     */
+    public synchronized void cancelAll(String address) {
+        Device device = devices.get(address);
+        if (device == null) {
+            return;
+        }
+        device.entries.clear();
+        if (device.inFlight == null) {
+            devices.remove(address);
+        }
+    }
+
+    /**
+     * 所有设备同时在途的轮询读上限，每个设备最多一个
+     */
+    public synchronized void setMaxInFlight(int max) {
+        this.maxInFlight = Math.max(1, max);
+    }
+
+    /**
+     * 当前实际的轮询周期，没有登记时返回0
+     */
+    public synchronized long getEffectivePeriod(String address, UUID characteristic) {
+        Device device = devices.get(address);
+        Entry entry = device == null ? null : device.find(characteristic);
+        return entry == null ? 0 : entry.effectivePeriod;
+    }
+
+    /**
+     * 平均读延迟（毫秒），还没测到时为0
+     */
+    public synchronized long getLatency(String address) {
+        Device device = devices.get(address);
+        return device == null ? 0 : Math.round(device.latency);
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(tick);
+        handler.post(tick);
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            long delay;
+            synchronized (GattPollScheduler.this) {
+                delay = dispatch(SystemClock.elapsedRealtime());
+            }
+            handler.removeCallbacks(tick);
+            if (delay >= 0) {
+                handler.postDelayed(tick, delay);
+            }
+        }
+    };
+
+    /**
+     * 从上次停下的设备开始轮流，每个空闲设备发起一个到期的读
+     *
+     * @return 距下一次到期的毫秒数，没有轮询时返回-1
+     */
+    private long dispatch(long now) {
+        int size = devices.size();
+        if (size == 0) {
+            return -1;
+        }
+        List<Device> order = new ArrayList<>(devices.values());
+        long next = Long.MAX_VALUE;
+        int start = cursor;
+        for (int i = 0; i < size; i++) {
+            Device device = order.get((start + i) % size);
+            if (device.inFlight != null || device.entries.isEmpty()) {
+                continue;
+            }
+            if (!isReady(device.address)) {
+                next = Math.min(next, now + NOT_READY_RETRY);
+                continue;
+            }
+            Entry due = null;
+            for (Entry entry : device.entries) {
+                if (entry.nextDue <= now) {
+                    if (due == null || entry.priority > due.priority
+                            || (entry.priority == due.priority && entry.nextDue < due.nextDue)) {
+                        due = entry;
+                    }
+                } else {
+                    next = Math.min(next, entry.nextDue);
+                }
+            }
+            if (due == null) {
+                continue;
+            }
+            if (inFlight >= maxInFlight) {
+                // 下一个读完成时会重新调度
+                continue;
+            }
+            if (read(device, due, now)) {
+                cursor = (start + i + 1) % size;
+            } else {
+                next = Math.min(next, due.nextDue);
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            return inFlight > 0 ? -1 : NOT_READY_RETRY;
+        }
+        return Math.max(0, next - now);
+    }
+
+    private static boolean isReady(String address) {
+        BluetoothLeConnection connection = BluetoothLeClass.getInstance().getConnection(address);
+        return connection != null && connection.isConnected() && !connection.getIndex().isEmpty();
+    }
+
+    private boolean read(final Device device, final Entry entry, final long start) {
+        device.inFlight = entry;
+        entry.lastStart = start;
+        inFlight++;
+        GattOperation op = BluetoothLeClass.getInstance().readCharacteristic(device.address,
+                entry.characteristic, new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(final GattOperation operation) {
+                        // 在连接的回调线程上，转到调度线程
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onReadComplete(device, entry, start, operation);
+                            }
+                        });
+                    }
+                });
+        if (op == null) {
+            device.inFlight = null;
+            inFlight--;
+            entry.nextDue = start + NOT_READY_RETRY;
+            return false;
+        }
+        return true;
+    }
+
+    private void onReadComplete(Device device, Entry entry, long start, GattOperation operation) {
+        long now = SystemClock.elapsedRealtime();
+        List<Request> requests;
+        synchronized (this) {
+            device.inFlight = null;
+            inFlight--;
+            // 断开时的失败不代表链路慢
+            if (operation.getStatus() != GattOperation.STATUS_DISCONNECTED
+                    && operation.getStatus() != GattOperation.STATUS_CANCELLED) {
+                long sample = now - start;
+                device.latency = device.latency == 0 ? sample
+                        : device.latency + LATENCY_ALPHA * (sample - device.latency);
+                rebalance(device);
+            }
+            entry.nextDue = Math.max(now, start + entry.effectivePeriod);
+            if (device.entries.isEmpty()) {
+                devices.remove(device.address);
+            }
+            requests = device.entries.contains(entry)
+                    ? new ArrayList<>(entry.requests) : Collections.<Request>emptyList();
+        }
+        byte[] value = operation.getValue();
+        for (Request request : requests) {
+            if (operation.isSuccess()) {
+                request.listener.onSample(device.address, entry.characteristic, value);
+            } else {
+                request.listener.onError(device.address, entry.characteristic, operation.getStatus());
+            }
+        }
+        tick.run();
+    }
+
+    /**
+     * 按延迟估算每个特征占用的链路时间（延迟/周期），从高优先级开始分配，
+     * 超出MAX_UTILIZATION的部分按比例拉长周期
+     */
+    static void rebalance(Device device) {
+        if (device.entries.isEmpty()) {
+            return;
+        }
+        if (device.latency <= 0) {
+            for (Entry entry : device.entries) {
+                entry.effectivePeriod = entry.period;
+            }
+            return;
+        }
+        List<Entry> sorted = new ArrayList<>(device.entries);
+        Collections.sort(sorted, BY_PRIORITY);
+        double budget = MAX_UTILIZATION;
+        int i = 0;
+        while (i < sorted.size()) {
+            int priority = sorted.get(i).priority;
+            int end = i;
+            double demand = 0;
+            while (end < sorted.size() && sorted.get(end).priority == priority) {
+                demand += device.latency / sorted.get(end).period;
+                end++;
+            }
+            double scale = demand <= budget ? 1
+                    : budget <= 0 ? MAX_SCALE : Math.min(MAX_SCALE, demand / budget);
+            budget = Math.max(0, budget - demand / scale);
+            for (; i < end; i++) {
+                Entry entry = sorted.get(i);
+                entry.effectivePeriod = (long) Math.ceil(entry.period * scale);
+            }
+        }
+    }
+}
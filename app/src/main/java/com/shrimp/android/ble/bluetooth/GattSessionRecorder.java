@@ -0,0 +1,345 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： GATT会话录制：把mGattCallback收到的事件追加写入内存映射的二进制文件，
+ *          写入只是内存拷贝，可以一直开着。单个文件写满后换成后台线程预先创建好的下一个，
+ *          旧文件的刷盘、关闭和删除也在后台线程上，回调线程上不做磁盘IO。只保留最近maxSegments个。
+ *          文件格式见{@link #HEADER_SIZE}，用{@link GattSessionReplayer}回放
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattSessionRecorder {
+
+    public static final int EVENT_CONNECTION_STATE = 1;
+    public static final int EVENT_SERVICES_DISCOVERED = 2;
+    public static final int EVENT_READ = 3;
+    public static final int EVENT_WRITE = 4;
+    public static final int EVENT_NOTIFY = 5;
+    public static final int EVENT_MTU = 6;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    static final int MAGIC = 0x47524543; // "GREC"
+    // 2：文件头加了会话标识
+    static final int FILE_VERSION = 2;
+    /**
+     * 文件头：MAGIC4 + 版本4 + 会话标识8。记录里的时间是System.nanoTime()，只在同一会话内可比，
+     * 回放时遇到新的会话标识重新对齐时间
+     */
+    static final int FILE_HEADER_SIZE = 4 + 4 + 8;
+    /**
+     * 每条记录：类型1 + 纳秒时间8 + 地址6 + UUID16 + status4 + 参数4 + 长度4，后面跟数据。
+     * 类型为0表示本文件后面没有记录（映射文件初始全为0）
+     */
+    static final int HEADER_SIZE = 1 + 8 + 6 + 16 + 4 + 4 + 4;
+    static final String FILE_PREFIX = "session-";
+    static final String FILE_SUFFIX = ".rec";
+
+    /**
+     * 一个映射好的文件，已写入文件头
+     */
+    private static final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buffer;
+
+        Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    // 本次录制开始的墙上时间（毫秒），写进每个文件头作为会话标识
+    private final long session;
+    // 创建、刷盘、关闭和删除文件都在这个线程上
+    private final ExecutorService io;
+    private Segment current;
+    // 预先创建的下一个文件
+    private Segment spare;
+    private boolean preparing;
+    private long sequence;
+    private long droppedEvents;
+    private boolean closed;
+
+    public GattSessionRecorder(File dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * 第一个文件在调用线程上创建，之后的在后台线程上
+     *
+     * @param segmentSize 单个文件大小
+     * @param maxSegments 最多保留的文件数
+     */
+    public GattSessionRecorder(File dir, int segmentSize, int maxSegments) {
+        if (segmentSize < FILE_HEADER_SIZE + HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize=" + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.session = System.currentTimeMillis();
+        long[] existing = listSegments(dir);
+        this.sequence = existing.length == 0 ? 0 : existing[existing.length - 1] + 1;
+        this.io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "gatt-recorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.current = openSegment(sequence++);
+        requestSpare();
+    }
+
+    /**
+     * 追加一条记录，可以在多个回调线程上调用
+     *
+     * @param address 设备地址，见{@link #addressToLong(String)}
+     * @param uuid    没有时传null
+     * @param value   没有时传null，超过单个文件容量时截断
+     */
+    public synchronized void record(int event, long address, UUID uuid, int status, int arg, byte[] value) {
+        if (closed) {
+            return;
+        }
+        int length = value == null ? 0 : value.length;
+        if (current == null || current.buffer.remaining() < HEADER_SIZE + length) {
+            if (!rotate()) {
+                droppedEvents++;
+                return;
+            }
+            length = Math.min(length, current.buffer.remaining() - HEADER_SIZE);
+        }
+        MappedByteBuffer b = current.buffer;
+        b.put((byte) event);
+        b.putLong(System.nanoTime());
+        b.putShort((short) (address >>> 32));
+        b.putInt((int) address);
+        b.putLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+        b.putLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+        b.putInt(status);
+        b.putInt(arg);
+        b.putInt(length);
+        if (length > 0) {
+            b.put(value, 0, length);
+        }
+    }
+
+    /**
+     * 写满、下一个文件还没准备好或空间不足而丢弃的记录数
+     */
+    public synchronized long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * 停止录制，已写入的内容在后台线程上刷到磁盘
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        retire(current, false);
+        current = null;
+        // 预先创建的文件还没写过，直接删除
+        retire(spare, true);
+        spare = null;
+        io.shutdown();
+    }
+
+    /**
+     * 换到预先创建好的文件，旧文件交给后台线程关闭，并开始准备再下一个。
+     * 还没准备好时返回false，这条记录丢弃
+     */
+    private boolean rotate() {
+        Segment next = spare;
+        if (next == null) {
+            requestSpare();
+            return false;
+        }
+        spare = null;
+        retire(current, false);
+        current = next;
+        requestSpare();
+        return true;
+    }
+
+    private void requestSpare() {
+        if (preparing || spare != null || closed) {
+            return;
+        }
+        preparing = true;
+        io.execute(prepareTask);
+    }
+
+    private final Runnable prepareTask = new Runnable() {
+        @Override
+        public void run() {
+            long next;
+            synchronized (GattSessionRecorder.this) {
+                next = sequence++;
+            }
+            Segment segment = openSegment(next);
+            deleteOldSegments();
+            synchronized (GattSessionRecorder.this) {
+                preparing = false;
+                if (!closed) {
+                    spare = segment;
+                    return;
+                }
+            }
+            if (segment != null) {
+                closeSegment(segment, true);
+            }
+        }
+    };
+
+    private void retire(final Segment segment, final boolean delete) {
+        if (segment == null) {
+            return;
+        }
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeSegment(segment, delete);
+            }
+        });
+    }
+
+    /**
+     * 创建并映射一个文件，写入文件头，失败时返回null
+     */
+    private Segment openSegment(long sequence) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+        File path = segmentFile(dir, sequence);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(path, "rw");
+            raf.setLength(segmentSize);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FILE_VERSION);
+            buffer.putLong(session);
+            return new Segment(path, raf, buffer);
+        } catch (IOException e) {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void closeSegment(Segment segment, boolean delete) {
+        if (!delete) {
+            segment.buffer.force();
+        }
+        try {
+            segment.raf.close();
+        } catch (IOException ignored) {
+        }
+        if (delete) {
+            //noinspection ResultOfMethodCallIgnored
+            segment.file.delete();
+        }
+    }
+
+    private void deleteOldSegments() {
+        long[] segments = listSegments(dir);
+        // 预先创建的空文件不算在内
+        for (int i = 0; i < segments.length - maxSegments - 1; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            segmentFile(dir, segments[i]).delete();
+        }
+    }
+
+    static File segmentFile(File dir, long sequence) {
+        return new File(dir, String.format("%s%08d%s", FILE_PREFIX, sequence, FILE_SUFFIX));
+    }
+
+    /**
+     * 目录下的文件序号，从旧到新
+     */
+    static long[] listSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] result = new long[names.length];
+        int n = 0;
+        for (String name : names) {
+            if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                result[n++] = Long.parseLong(name.substring(FILE_PREFIX.length(),
+                        name.length() - FILE_SUFFIX.length()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        result = Arrays.copyOf(result, n);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * "AA:BB:CC:DD:EE:FF"转成48位整数，每个连接只需要转换一次
+     */
+    public static long addressToLong(String address) {
+        long value = 0;
+        if (address == null) {
+            return value;
+        }
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                value = (value << 4) | digit;
+            }
+        }
+        return value & 0xffffffffffffL;
+    }
+
+    public static String longToAddress(long address) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (address >>> shift) & 0xff;
+            if (sb.length() > 0) {
+                sb.append(':');
+            }
+            sb.append(Character.toUpperCase(Character.forDigit(b >>> 4, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+        }
+        return sb.toString();
+    }
+}
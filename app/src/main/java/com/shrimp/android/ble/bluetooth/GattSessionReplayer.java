@@ -0,0 +1,145 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 回放{@link GattSessionRecorder}录下的文件：按时间顺序读出每条事件交给EventListener，
+ *          可以按原始时间间隔（1倍速）或不等待（最快速度）回放，用于离线复现问题和压测。
+ *          不同录制会话之间没有可比的时间，1倍速回放时新会话的第一条事件紧接着上一条
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattSessionReplayer {
+
+    public interface EventListener {
+        /**
+         * @param event GattSessionRecorder.EVENT_*
+         * @param uuid  录制时没有UUID则为null
+         * @param value 每条事件单独分配
+         */
+        void onEvent(int event, long timeNanos, String address, UUID uuid, int status, int arg,
+                     byte[] value);
+    }
+
+    private final File dir;
+    private final boolean realTime;
+    private volatile boolean stopped;
+    private final Map<Long, String> addresses = new HashMap<>();
+
+    /**
+     * @param realTime true按录制时的间隔回放，false不等待
+     */
+    public GattSessionReplayer(File dir, boolean realTime) {
+        this.dir = dir;
+        this.realTime = realTime;
+    }
+
+    /**
+     * 在当前线程上回放目录下所有文件，timeNanos只在同一会话内可比
+     *
+     * @return 回放的事件数
+     */
+    public long replay(EventListener listener) throws IOException {
+        stopped = false;
+        long count = 0;
+        long firstEventTime = 0;
+        long startTime = 0;
+        long session = 0;
+        boolean newSession = true;
+        for (long sequence : GattSessionRecorder.listSegments(dir)) {
+            File file = GattSessionRecorder.segmentFile(dir, sequence);
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, "r");
+            } catch (FileNotFoundException e) {
+                // 录制中的旧文件被后台线程删掉了
+                continue;
+            }
+            try {
+                MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                b.order(ByteOrder.LITTLE_ENDIAN);
+                if (b.remaining() < GattSessionRecorder.FILE_HEADER_SIZE
+                        || b.getInt() != GattSessionRecorder.MAGIC
+                        || b.getInt() != GattSessionRecorder.FILE_VERSION) {
+                    continue;
+                }
+                long fileSession = b.getLong();
+                if (fileSession != session) {
+                    session = fileSession;
+                    newSession = true;
+                }
+                while (!stopped && b.remaining() >= GattSessionRecorder.HEADER_SIZE) {
+                    int event = b.get();
+                    if (event == 0) {
+                        break;
+                    }
+                    long time = b.getLong();
+                    long address = ((long) (b.getShort() & 0xffff) << 32) | (b.getInt() & 0xffffffffL);
+                    long msb = b.getLong();
+                    long lsb = b.getLong();
+                    int status = b.getInt();
+                    int arg = b.getInt();
+                    int length = b.getInt();
+                    if (length < 0 || length > b.remaining()) {
+                        break;
+                    }
+                    byte[] value = new byte[length];
+                    b.get(value);
+                    if (newSession) {
+                        // 以本会话的第一条事件为时间基准
+                        newSession = false;
+                        firstEventTime = time;
+                        startTime = System.nanoTime();
+                    } else if (realTime) {
+                        waitUntil(startTime + (time - firstEventTime));
+                    }
+                    listener.onEvent(event, time, addressOf(address),
+                            msb == 0 && lsb == 0 ? null : new UUID(msb, lsb), status, arg, value);
+                    count++;
+                }
+            } finally {
+                raf.close();
+            }
+            if (stopped) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 在其他线程上调用，当前事件回调完后停止
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private String addressOf(long address) {
+        String s = addresses.get(address);
+        if (s == null) {
+            s = GattSessionRecorder.longToAddress(address);
+            addresses.put(address, s);
+        }
+        return s;
+    }
+
+    private void waitUntil(long deadline) {
+        long remaining;
+        while (!stopped && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+    }
+}
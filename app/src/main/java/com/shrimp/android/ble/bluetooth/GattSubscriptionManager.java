@@ -0,0 +1,272 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 一个连接的通知订阅：记录每个特征期望的订阅方式，一次调用就能打开或关闭一组特征，
+ *          所有CCCD写入连续进入队列，一个接一个地执行，中间不插入其他操作，也不用等调用方逐个回调。
+ *          断线重连、服务发现完成后按记录的状态自动重新订阅，排在用户操作之前。
+ *          期望的订阅和设备已确认的CCCD状态分开记录，CCCD写入成功才算已订阅
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattSubscriptionManager {
+
+    public interface Callback {
+        /**
+         * 这一批全部完成
+         *
+         * @param failed 失败的操作，全部成功时为空
+         */
+        void onComplete(List<GattOperation> failed);
+    }
+
+    private final BluetoothLeConnection connection;
+    // 期望的订阅方式，按加入顺序恢复
+    private final Map<UUID, Integer> subscriptions = new LinkedHashMap<>();
+    // 指定了服务的订阅，特征UUID到服务UUID，恢复时按服务查找特征
+    private final Map<UUID, UUID> services = new HashMap<>();
+    // 已经在队列中的订阅操作，恢复时跳过，避免服务发现前就排队的订阅重复写入
+    private final Map<UUID, GattOperation> inFlight = new HashMap<>();
+    // 设备已确认的CCCD状态，写入成功后更新，断开后清空
+    private final Map<UUID, Integer> confirmed = new HashMap<>();
+
+    GattSubscriptionManager(BluetoothLeConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * 打开一组特征的通知或指示
+     *
+     * @param mode GattOperation.SUBSCRIBE_NOTIFY、SUBSCRIBE_INDICATE或SUBSCRIBE_AUTO
+     * @return 是否已经进入队列。未连接时只记录，callback以STATUS_DISCONNECTED的失败回调，连上后自动订阅
+     */
+    public boolean subscribe(Collection<UUID> characteristics, int mode, Callback callback) {
+        if (mode == GattOperation.SUBSCRIBE_DISABLE) {
+            return unsubscribe(characteristics, callback);
+        }
+        synchronized (subscriptions) {
+            for (UUID uuid : characteristics) {
+                subscriptions.put(uuid, mode);
+                services.remove(uuid);
+            }
+        }
+        return submit(characteristics, mode, callback);
+    }
+
+    /**
+     * 关闭一组特征的通知，重连后也不再恢复
+     */
+    public boolean unsubscribe(Collection<UUID> characteristics, Callback callback) {
+        synchronized (subscriptions) {
+            for (UUID uuid : characteristics) {
+                subscriptions.remove(uuid);
+                services.remove(uuid);
+            }
+        }
+        return submit(characteristics, GattOperation.SUBSCRIBE_DISABLE, callback);
+    }
+
+    /**
+     * 单个特征
+     *
+     * @return 已入队的操作，未连接时返回null，callback以STATUS_DISCONNECTED回调
+     */
+    public GattOperation set(UUID characteristic, int mode, GattOperation.Callback callback) {
+        return set(null, characteristic, mode, callback);
+    }
+
+    /**
+     * 单个特征，指定服务（不同服务下有相同UUID的特征时用）
+     *
+     * @param service 为null时按特征UUID查找
+     * @return 已入队的操作，未连接时返回null，callback以STATUS_DISCONNECTED回调
+     */
+    public GattOperation set(UUID service, UUID characteristic, int mode, GattOperation.Callback callback) {
+        GattOperation op;
+        synchronized (subscriptions) {
+            if (mode == GattOperation.SUBSCRIBE_DISABLE) {
+                subscriptions.remove(characteristic);
+                services.remove(characteristic);
+            } else {
+                subscriptions.put(characteristic, mode);
+                if (service == null) {
+                    services.remove(characteristic);
+                } else {
+                    services.put(characteristic, service);
+                }
+            }
+            op = track(GattOperation.subscribe(service, characteristic, mode), mode, callback);
+        }
+        if (connection.enqueue(op) == null) {
+            // 未连接：记录保留，连上后由restore()订阅
+            op.finish(GattOperation.STATUS_DISCONNECTED, (byte[]) null);
+            return null;
+        }
+        return op;
+    }
+
+    /**
+     * 当前记录的订阅，特征UUID到SUBSCRIBE_*
+     */
+    public Map<UUID, Integer> getSubscriptions() {
+        synchronized (subscriptions) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(subscriptions));
+        }
+    }
+
+    /**
+     * 是否记录了要订阅，不表示设备已经确认
+     */
+    public boolean isRequested(UUID characteristic) {
+        synchronized (subscriptions) {
+            return subscriptions.containsKey(characteristic);
+        }
+    }
+
+    /**
+     * 本次连接中CCCD是否已写入成功，写入失败、还在队列中或断开后为false
+     */
+    public boolean isSubscribed(UUID characteristic) {
+        synchronized (subscriptions) {
+            return confirmed.containsKey(characteristic);
+        }
+    }
+
+    /**
+     * 连接断开时调用，设备会复位CCCD（除非已绑定），重连后由restore()重新确认
+     */
+    void onDisconnected() {
+        synchronized (subscriptions) {
+            confirmed.clear();
+        }
+    }
+
+    /**
+     * 忘掉所有记录，不写CCCD（设备断开后CCCD会被设备复位，除非已绑定）
+     */
+    public void clear() {
+        synchronized (subscriptions) {
+            subscriptions.clear();
+            services.clear();
+        }
+    }
+
+    /**
+     * 服务发现完成后在回调线程上调用：按记录重新订阅，插在队列最前面
+     */
+    void restore() {
+        List<GattOperation> operations;
+        synchronized (subscriptions) {
+            if (subscriptions.isEmpty()) {
+                return;
+            }
+            operations = new ArrayList<>(subscriptions.size());
+            for (Map.Entry<UUID, Integer> entry : subscriptions.entrySet()) {
+                if (!inFlight.containsKey(entry.getKey())) {
+                    operations.add(track(GattOperation.subscribe(services.get(entry.getKey()),
+                            entry.getKey(), entry.getValue()), entry.getValue(), null));
+                }
+            }
+        }
+        if (!operations.isEmpty()) {
+            connection.enqueueAllFirst(operations);
+        }
+    }
+
+    private boolean submit(Collection<UUID> characteristics, int mode, Callback callback) {
+        if (characteristics.isEmpty()) {
+            if (callback != null) {
+                callback.onComplete(Collections.<GattOperation>emptyList());
+            }
+            return true;
+        }
+        BatchCallback batch = callback == null ? null : new BatchCallback(characteristics.size(), callback);
+        List<GattOperation> operations = new ArrayList<>(characteristics.size());
+        synchronized (subscriptions) {
+            for (UUID uuid : characteristics) {
+                operations.add(track(GattOperation.subscribe(uuid, mode), mode, batch));
+            }
+        }
+        if (!connection.enqueueAll(operations)) {
+            // 未连接：记录保留，连上后由restore()订阅；这一批按断开失败回调
+            for (GattOperation op : operations) {
+                op.finish(GattOperation.STATUS_DISCONNECTED, (byte[]) null);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 登记为进行中，完成后移除、成功时更新已确认的状态，再交给callback
+     */
+    private GattOperation track(final GattOperation operation, final int mode,
+                                final GattOperation.Callback callback) {
+        synchronized (subscriptions) {
+            inFlight.put(operation.getUuid(), operation);
+        }
+        return operation.setCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation op) {
+                synchronized (subscriptions) {
+                    untrack(op);
+                    if (op.isSuccess()) {
+                        if (mode == GattOperation.SUBSCRIBE_DISABLE) {
+                            confirmed.remove(op.getUuid());
+                        } else {
+                            confirmed.put(op.getUuid(), mode);
+                        }
+                    }
+                }
+                if (callback != null) {
+                    callback.onComplete(op);
+                }
+            }
+        });
+    }
+
+    private void untrack(GattOperation operation) {
+        if (inFlight.get(operation.getUuid()) == operation) {
+            inFlight.remove(operation.getUuid());
+        }
+    }
+
+    /**
+     * 收齐一批操作的结果后回调一次
+     */
+    private static final class BatchCallback implements GattOperation.Callback {
+        private final Callback callback;
+        private final List<GattOperation> failed = new ArrayList<>();
+        private int remaining;
+
+        BatchCallback(int count, Callback callback) {
+            this.remaining = count;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onComplete(GattOperation operation) {
+            List<GattOperation> result;
+            synchronized (this) {
+                if (!operation.isSuccess()) {
+                    failed.add(operation);
+                }
+                if (--remaining > 0) {
+                    return;
+                }
+                result = Collections.unmodifiableList(failed);
+            }
+            callback.onComplete(result);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 蓝牙回调路径上的轻量跟踪：只记录事件编号和几个long参数到固定大小的无锁环形缓冲，
+ *          不拼字符串、不分配内存、不调Log。关闭的级别只多一次静态字段比较，调用前用
+ *          if (GattTrace.isEnabled(level))判断可以连参数计算一起省掉。
+ *          需要时用{@link #dump(Appendable)}格式化输出，或{@link #installCrashHandler(File)}在崩溃时写文件
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public final class GattTrace {
+
+    // 级别和android.util.Log一致
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int OFF = Integer.MAX_VALUE;
+
+    public static final int EVENT_CONNECT = 1;
+    public static final int EVENT_CONNECTION_STATE = 2;
+    public static final int EVENT_SERVICES_DISCOVERED = 3;
+    public static final int EVENT_SERVICE = 4;
+    public static final int EVENT_CHARACTERISTIC = 5;
+    public static final int EVENT_RECONNECT = 6;
+    public static final int EVENT_RECONNECT_GIVE_UP = 7;
+    public static final int EVENT_READ = 8;
+    public static final int EVENT_WRITE = 9;
+    public static final int EVENT_NOTIFY = 10;
+    public static final int EVENT_MTU = 11;
+
+    /**
+     * 事件名和参数格式：名字:类型，类型d十进制，x十六进制，u表示这个参数和下一个参数组成UUID
+     */
+    private static final String[][] EVENTS = new String[32][];
+
+    static {
+        define(EVENT_CONNECT, "connect", "byUser:d");
+        define(EVENT_CONNECTION_STATE, "connectionState", "status:d", "newState:d");
+        define(EVENT_SERVICES_DISCOVERED, "servicesDiscovered", "status:d", "services:d");
+        define(EVENT_SERVICE, "service", "uuid:u", "", "characteristics:d");
+        define(EVENT_CHARACTERISTIC, "characteristic", "uuid:u", "", "properties:x");
+        define(EVENT_RECONNECT, "reconnect", "attempt:d", "delay:d");
+        define(EVENT_RECONNECT_GIVE_UP, "reconnectGiveUp", "attempts:d");
+        define(EVENT_READ, "read", "uuid:u", "", "status:d");
+        define(EVENT_WRITE, "write", "uuid:u", "", "status:d");
+        define(EVENT_NOTIFY, "notify", "uuid:u", "", "length:d");
+        define(EVENT_MTU, "mtu", "mtu:d", "status:d");
+    }
+
+    // 每条记录：序号、时间、级别<<32|事件、地址、a、b、c
+    private static final int FIELDS = 7;
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private static int level = INFO;
+    private static volatile Ring ring = new Ring(DEFAULT_CAPACITY);
+
+    private GattTrace() {
+    }
+
+    /**
+     * 添加自定义事件，id小于32且不和已有事件重复
+     */
+    public static synchronized void define(int event, String name, String... args) {
+        String[] def = new String[args.length + 1];
+        def[0] = name;
+        System.arraycopy(args, 0, def, 1, args.length);
+        EVENTS[event] = def;
+    }
+
+    /**
+     * 低于这个级别的事件不记录，默认INFO。不保证其他线程立即看到新的级别
+     */
+    public static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+
+    public static boolean isEnabled(int eventLevel) {
+        return eventLevel >= level;
+    }
+
+    /**
+     * 重新分配缓冲区，已有记录丢弃
+     *
+     * @param capacity 记录条数，向上取2的幂
+     */
+    public static void setCapacity(int capacity) {
+        ring = new Ring(capacity);
+    }
+
+    public static void trace(int eventLevel, int event, long address) {
+        if (eventLevel >= level) {
+            ring.add(eventLevel, event, address, 0, 0, 0);
+        }
+    }
+
+    public static void trace(int eventLevel, int event, long address, long a) {
+        if (eventLevel >= level) {
+            ring.add(eventLevel, event, address, a, 0, 0);
+        }
+    }
+
+    public static void trace(int eventLevel, int event, long address, long a, long b) {
+        if (eventLevel >= level) {
+            ring.add(eventLevel, event, address, a, b, 0);
+        }
+    }
+
+    public static void trace(int eventLevel, int event, long address, long a, long b, long c) {
+        if (eventLevel >= level) {
+            ring.add(eventLevel, event, address, a, b, c);
+        }
+    }
+
+    /**
+     * 带UUID的事件，UUID占a、b两个参数
+     */
+    public static void trace(int eventLevel, int event, long address, UUID uuid, long c) {
+        if (eventLevel >= level) {
+            ring.add(eventLevel, event, address,
+                    uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), c);
+        }
+    }
+
+    /**
+     * 按时间顺序输出缓冲区中的记录，每条一行。正在被覆盖的记录跳过
+     */
+    public static void dump(Appendable out) throws IOException {
+        ring.dump(out);
+    }
+
+    /**
+     * 未捕获异常时先把跟踪记录写入file，再交给原来的处理器
+     */
+    public static void installCrashHandler(final File file) {
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                Writer writer = null;
+                try {
+                    writer = new FileWriter(file);
+                    writer.append("crash in ").append(thread.getName()).append(": ")
+                            .append(String.valueOf(throwable)).append('\n');
+                    dump(writer);
+                } catch (IOException ignored) {
+                } finally {
+                    if (writer != null) {
+                        try {
+                            writer.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                if (previous != null) {
+                    previous.uncaughtException(thread, throwable);
+                }
+            }
+        });
+    }
+
+    private static final class Ring {
+        private final AtomicLongArray data;
+        private final AtomicLong position = new AtomicLong();
+        private final int mask;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            data = new AtomicLongArray(size * FIELDS);
+            mask = size - 1;
+        }
+
+        void add(int eventLevel, int event, long address, long a, long b, long c) {
+            long pos = position.getAndIncrement();
+            int base = (int) (pos & mask) * FIELDS;
+            // 写入期间序号为负，读取时跳过
+            data.set(base, -(pos + 1));
+            data.lazySet(base + 1, System.nanoTime());
+            data.lazySet(base + 2, ((long) eventLevel << 32) | event);
+            data.lazySet(base + 3, address);
+            data.lazySet(base + 4, a);
+            data.lazySet(base + 5, b);
+            data.lazySet(base + 6, c);
+            data.lazySet(base, pos + 1);
+        }
+
+        void dump(Appendable out) throws IOException {
+            long end = position.get();
+            long start = Math.max(0, end - (mask + 1));
+            long[] record = new long[FIELDS];
+            for (long pos = start; pos < end; pos++) {
+                int base = (int) (pos & mask) * FIELDS;
+                long seq = data.get(base);
+                for (int i = 1; i < FIELDS; i++) {
+                    record[i] = data.get(base + i);
+                }
+                if (seq != pos + 1 || data.get(base) != seq) {
+                    continue;
+                }
+                format(out, record);
+            }
+        }
+    }
+
+    private static void format(Appendable out, long[] record) throws IOException {
+        int eventLevel = (int) (record[2] >>> 32);
+        int event = (int) record[2];
+        out.append(String.valueOf(record[1])).append(' ').append(levelName(eventLevel)).append(' ');
+        String[] def = event >= 0 && event < EVENTS.length ? EVENTS[event] : null;
+        out.append(def == null ? "event" + event : def[0]);
+        if (record[3] != 0) {
+            out.append(' ').append(GattSessionRecorder.longToAddress(record[3]));
+        }
+        if (def != null) {
+            for (int i = 1; i < def.length && i <= 3; i++) {
+                String arg = def[i];
+                if (arg.isEmpty()) {
+                    continue;
+                }
+                int colon = arg.indexOf(':');
+                char type = colon < 0 ? 'd' : arg.charAt(colon + 1);
+                long value = record[3 + i];
+                out.append(' ').append(colon < 0 ? arg : arg.substring(0, colon)).append('=');
+                if (type == 'u' && i < 3) {
+                    out.append(new UUID(value, record[4 + i]).toString());
+                } else if (type == 'x') {
+                    out.append("0x").append(Long.toHexString(value));
+                } else {
+                    out.append(String.valueOf(value));
+                }
+            }
+        }
+        out.append('\n');
+    }
+
+    private static String levelName(int eventLevel) {
+        switch (eventLevel) {
+            case VERBOSE:
+                return "V";
+            case DEBUG:
+                return "D";
+            case INFO:
+                return "I";
+            case WARN:
+                return "W";
+            case ERROR:
+                return "E";
+            default:
+                return String.valueOf(eventLevel);
+        }
+    }
+}
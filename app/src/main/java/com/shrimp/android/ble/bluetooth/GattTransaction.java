@@ -0,0 +1,109 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 可靠写事务：把对多个特征的写入包在beginReliableWrite/executeReliableWrite之间，
+ *          设备端要么全部生效要么全部丢弃。提交时整组操作连续进入队列，中间不会插入其他操作；
+ *          某一次写入失败或回显不符时取消剩下的写入并abortReliableWrite。
+ *          用法：BluetoothLeClass.getInstance().beginTransaction(address).write(a, v1).write(b, v2).commit(cb)
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class GattTransaction {
+
+    private final BluetoothLeConnection connection;
+    private final List<GattOperation> writes = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private boolean committed;
+
+    GattTransaction(BluetoothLeConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * 加入一次写入，value长度不要超过MTU-5（准备写请求的头占5字节）
+     */
+    public GattTransaction write(UUID characteristic, byte[] value) {
+        if (committed) {
+            throw new IllegalStateException("transaction already committed");
+        }
+        byte[] copy = value.clone();
+        writes.add(GattOperation.write(characteristic, copy));
+        values.add(copy);
+        return this;
+    }
+
+    public int size() {
+        return writes.size();
+    }
+
+    /**
+     * 提交事务
+     *
+     * @param callback 成功时收到executeReliableWrite操作，失败时收到第一个失败的操作
+     * @return 是否已经进入队列
+     */
+    public boolean commit(final GattOperation.Callback callback) {
+        if (committed) {
+            throw new IllegalStateException("transaction already committed");
+        }
+        committed = true;
+        final List<GattOperation> operations = new ArrayList<>(writes.size() + 2);
+        final GattOperation begin = GattOperation.beginReliableWrite();
+        final GattOperation execute = GattOperation.executeReliableWrite();
+        operations.add(begin);
+        operations.addAll(writes);
+        operations.add(execute);
+
+        final boolean[] aborted = new boolean[1];
+        final GattOperation.Callback abortOnFailure = new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                int index = writes.indexOf(operation);
+                boolean ok = operation.isSuccess()
+                        && (index < 0 || operation.getValue() == null
+                        || Arrays.equals(operation.getValue(), values.get(index)));
+                if (ok) {
+                    return;
+                }
+                synchronized (aborted) {
+                    if (aborted[0]) {
+                        return;
+                    }
+                    aborted[0] = true;
+                }
+                for (GattOperation op : operations) {
+                    op.cancel(false);
+                }
+                // 已经进入可靠写模式时需要放弃，否则后面的写入都会被缓存
+                if (operation != begin && operation.getStatus() != GattOperation.STATUS_DISCONNECTED) {
+                    connection.enqueueFirst(GattOperation.abortReliableWrite());
+                }
+                if (callback != null) {
+                    callback.onComplete(operation);
+                }
+            }
+        };
+        begin.setCallback(abortOnFailure);
+        for (GattOperation write : writes) {
+            write.setCallback(abortOnFailure);
+        }
+        execute.setCallback(new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation) {
+                if (!operation.isSuccess()) {
+                    abortOnFailure.onComplete(operation);
+                } else if (callback != null) {
+                    callback.onComplete(operation);
+                }
+            }
+        });
+        return connection.enqueueAll(operations);
+    }
+}
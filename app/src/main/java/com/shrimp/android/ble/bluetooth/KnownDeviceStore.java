@@ -0,0 +1,223 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 连接过的设备：地址、名称、最近的信号强度和最后连接时间，保存在SharedPreferences中。
+ *          启动时不用扫描就能直接连接上次的设备、预先填充设备列表；服务布局由{@link GattLayoutCache}按地址保存
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class KnownDeviceStore {
+
+    private static final String PREFS_NAME = "known_devices";
+    // 设备以地址为键，首选设备单独保存；地址中没有下划线，不会冲突
+    private static final String KEY_PREFERRED = "_preferred";
+    /**
+     * 信号强度变化超过这个值才写回，扫描回调很频繁
+     */
+    private static final int RSSI_PERSIST_DELTA = 5;
+
+    public static class KnownDevice {
+        private final String address;
+        private String name;
+        private int rssi = BluetoothDeviceRegistry.RSSI_UNKNOWN;
+        private int persistedRssi = BluetoothDeviceRegistry.RSSI_UNKNOWN;
+        private long lastConnected;
+
+        KnownDevice(String address) {
+            this.address = address;
+        }
+
+        KnownDevice(KnownDevice other) {
+            this.address = other.address;
+            this.name = other.name;
+            this.rssi = other.rssi;
+            this.persistedRssi = other.persistedRssi;
+            this.lastConnected = other.lastConnected;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 最近一次扫描到的信号强度，没有时为RSSI_UNKNOWN
+         */
+        public int getRssi() {
+            return rssi;
+        }
+
+        /**
+         * 最后一次连接成功的时间（System.currentTimeMillis）
+         */
+        public long getLastConnected() {
+            return lastConnected;
+        }
+
+        String encode() {
+            // 名字放最后，里面可能有分隔符
+            return rssi + "|" + lastConnected + "|" + (name == null ? "" : name);
+        }
+
+        static KnownDevice decode(String address, String value) {
+            int first = value.indexOf('|');
+            int second = first < 0 ? -1 : value.indexOf('|', first + 1);
+            if (second < 0) {
+                return null;
+            }
+            KnownDevice device = new KnownDevice(address);
+            try {
+                device.rssi = Integer.parseInt(value.substring(0, first));
+                device.lastConnected = Long.parseLong(value.substring(first + 1, second));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            device.persistedRssi = device.rssi;
+            String name = value.substring(second + 1);
+            device.name = name.isEmpty() ? null : name;
+            return device;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private Map<String, KnownDevice> devices;
+    private String preferred;
+
+    public KnownDeviceStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 第一次访问时读出全部设备
+     */
+    private Map<String, KnownDevice> devices() {
+        if (devices == null) {
+            devices = new HashMap<>();
+            for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                String key = entry.getKey();
+                if (KEY_PREFERRED.equals(key)) {
+                    preferred = (String) entry.getValue();
+                } else if (entry.getValue() instanceof String) {
+                    KnownDevice device = KnownDevice.decode(key, (String) entry.getValue());
+                    if (device != null) {
+                        devices.put(key, device);
+                    }
+                }
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * 按最后连接时间从新到旧
+     */
+    public synchronized List<KnownDevice> getAll() {
+        List<KnownDevice> result = new ArrayList<>(devices().size());
+        for (KnownDevice device : devices.values()) {
+            result.add(new KnownDevice(device));
+        }
+        Collections.sort(result, new Comparator<KnownDevice>() {
+            @Override
+            public int compare(KnownDevice a, KnownDevice b) {
+                return a.lastConnected < b.lastConnected ? 1 : (a.lastConnected == b.lastConnected ? 0 : -1);
+            }
+        });
+        return result;
+    }
+
+    public synchronized KnownDevice get(String address) {
+        KnownDevice device = devices().get(address);
+        return device == null ? null : new KnownDevice(device);
+    }
+
+    public synchronized boolean contains(String address) {
+        return devices().containsKey(address);
+    }
+
+    /**
+     * 连接成功时记录，name为null时保留原来的名字
+     */
+    public synchronized void remember(String address, String name) {
+        KnownDevice device = devices().get(address);
+        if (device == null) {
+            device = new KnownDevice(address);
+            devices.put(address, device);
+        }
+        if (name != null) {
+            device.name = name;
+        }
+        device.lastConnected = System.currentTimeMillis();
+        device.persistedRssi = device.rssi;
+        prefs.edit().putString(address, device.encode()).apply();
+    }
+
+    /**
+     * 扫描到已知设备时更新信号强度，不是已知设备时忽略
+     */
+    public synchronized void updateRssi(String address, int rssi) {
+        KnownDevice device = devices().get(address);
+        if (device == null || rssi == BluetoothDeviceRegistry.RSSI_UNKNOWN) {
+            return;
+        }
+        device.rssi = rssi;
+        if (Math.abs(rssi - device.persistedRssi) >= RSSI_PERSIST_DELTA) {
+            device.persistedRssi = rssi;
+            prefs.edit().putString(address, device.encode()).apply();
+        }
+    }
+
+    /**
+     * 启动时自动连接的设备，传null恢复为最后连接的设备
+     */
+    public synchronized void setPreferred(String address) {
+        devices();
+        preferred = address;
+        if (address == null) {
+            prefs.edit().remove(KEY_PREFERRED).apply();
+        } else {
+            prefs.edit().putString(KEY_PREFERRED, address).apply();
+        }
+    }
+
+    /**
+     * 指定的首选设备，没有指定时为最后连接的设备；都没有返回null
+     */
+    public synchronized String getPreferred() {
+        Map<String, KnownDevice> all = devices();
+        if (preferred != null && all.containsKey(preferred)) {
+            return preferred;
+        }
+        KnownDevice latest = null;
+        for (KnownDevice device : all.values()) {
+            if (latest == null || device.lastConnected > latest.lastConnected) {
+                latest = device;
+            }
+        }
+        return latest == null ? null : latest.address;
+    }
+
+    public synchronized void forget(String address) {
+        devices().remove(address);
+        SharedPreferences.Editor editor = prefs.edit().remove(address);
+        if (address.equals(preferred)) {
+            preferred = null;
+            editor.remove(KEY_PREFERRED);
+        }
+        editor.apply();
+    }
+}
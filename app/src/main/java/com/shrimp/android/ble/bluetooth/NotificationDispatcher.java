@@ -0,0 +1,154 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 进程内数据分发：按characteristic UUID索引订阅者，收到数据后直接回调，
+ *          不构造Intent也不走sendBroadcast。分发过程不分配内存
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class NotificationDispatcher {
+
+    public interface Listener {
+        /**
+         * 默认运行在设备的回调线程上（见BluetoothLeConnection.getCallbackLooper()），
+         * 需要在其他线程上执行时用{@link #onExecutor(Listener, Executor)}包装。
+         * value只在回调期间有效，需要保存时请自行复制
+         *
+         * @param address 设备地址
+         * @param uuid    characteristic UUID
+         * @param value   characteristic的值
+         */
+        void onCharacteristicData(String address, UUID uuid, byte[] value);
+    }
+
+    private static final Listener[] EMPTY = new Listener[0];
+
+    // 写时复制：分发时只读数组引用，不加锁、不创建迭代器
+    private volatile Map<UUID, Listener[]> listeners = new HashMap<>();
+    private volatile Listener[] allListeners = EMPTY;
+
+    /**
+     * 订阅某个characteristic的数据
+     */
+    public synchronized void register(UUID uuid, Listener listener) {
+        Map<UUID, Listener[]> copy = new HashMap<>(listeners);
+        Listener[] old = copy.get(uuid);
+        copy.put(uuid, append(old == null ? EMPTY : old, listener));
+        listeners = copy;
+    }
+
+    /**
+     * 订阅所有characteristic的数据
+     */
+    public synchronized void register(Listener listener) {
+        allListeners = append(allListeners, listener);
+    }
+
+    public synchronized void unregister(UUID uuid, Listener listener) {
+        Listener[] old = listeners.get(uuid);
+        if (old == null) {
+            return;
+        }
+        Map<UUID, Listener[]> copy = new HashMap<>(listeners);
+        Listener[] updated = remove(old, listener);
+        if (updated.length == 0) {
+            copy.remove(uuid);
+        } else {
+            copy.put(uuid, updated);
+        }
+        listeners = copy;
+    }
+
+    /**
+     * 从所有订阅中移除
+     */
+    public synchronized void unregister(Listener listener) {
+        allListeners = remove(allListeners, listener);
+        Map<UUID, Listener[]> copy = new HashMap<>();
+        for (Map.Entry<UUID, Listener[]> entry : listeners.entrySet()) {
+            Listener[] updated = remove(entry.getValue(), listener);
+            if (updated.length > 0) {
+                copy.put(entry.getKey(), updated);
+            }
+        }
+        listeners = copy;
+    }
+
+    /**
+     * 包装成在executor上执行的监听器：复制一份value后提交，不占用设备的回调线程。
+     * 注销时使用返回的监听器
+     */
+    public static Listener onExecutor(final Listener listener, final Executor executor) {
+        return new Listener() {
+            @Override
+            public void onCharacteristicData(final String address, final UUID uuid, byte[] value) {
+                final byte[] copy = value == null ? null : value.clone();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCharacteristicData(address, uuid, copy);
+                    }
+                });
+            }
+        };
+    }
+
+    public boolean hasListeners() {
+        return allListeners.length > 0 || !listeners.isEmpty();
+    }
+
+    /**
+     * 分发一条数据
+     */
+    public void dispatch(String address, UUID uuid, byte[] value) {
+        Listener[] byUuid = listeners.get(uuid);
+        if (byUuid != null) {
+            for (Listener listener : byUuid) {
+                listener.onCharacteristicData(address, uuid, value);
+            }
+        }
+        Listener[] all = allListeners;
+        for (Listener listener : all) {
+            listener.onCharacteristicData(address, uuid, value);
+        }
+    }
+
+    private static Listener[] append(Listener[] array, Listener listener) {
+        for (Listener l : array) {
+            if (l == listener) {
+                return array;
+            }
+        }
+        Listener[] result = new Listener[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = listener;
+        return result;
+    }
+
+    private static Listener[] remove(Listener[] array, Listener listener) {
+        int index = -1;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == listener) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return array;
+        }
+        if (array.length == 1) {
+            return EMPTY;
+        }
+        Listener[] result = new Listener[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+}
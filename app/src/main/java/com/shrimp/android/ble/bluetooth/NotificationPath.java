@@ -0,0 +1,144 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 一个连接上通知的处理步骤，不依赖Android，连接和JVM基准测试调用的是同一份代码：
+ *          binder线程上{@link #onNotification}录制、计数、跟踪，生成一个事件；
+ *          事件转到连接的线程后{@link #deliver}按特征重组分包或直接交给{@link Sink}
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class NotificationPath {
+
+    private static final int POOL_SIZE = 32;
+
+    /**
+     * 收到完整数据后的去处，应用里是BluetoothLeClass.dispatchData
+     */
+    public interface Sink {
+        void onData(String address, UUID uuid, byte[] value);
+    }
+
+    /**
+     * binder线程交给连接线程的一条通知，{@link #deliver}之后回收重用
+     */
+    public static final class Event {
+        UUID uuid;
+        byte[] value;
+    }
+
+    /**
+     * 一个特征的重组状态，拼出的帧复制一份后按原UUID分发
+     */
+    private final class Reassembly implements FrameReassembler.FrameListener {
+        final UUID uuid;
+        final FrameReassembler reassembler;
+
+        Reassembly(UUID uuid, FrameReassembler reassembler) {
+            this.uuid = uuid;
+            this.reassembler = reassembler;
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            sink.onData(address, uuid, Arrays.copyOfRange(frame, offset, offset + length));
+        }
+    }
+
+    private final String address;
+    private final long addressBits;
+    private final GattMetrics.DeviceMetrics metrics;
+    private final Sink sink;
+    private final Map<UUID, Reassembly> reassemblers = new ConcurrentHashMap<>();
+    // 回收的事件，稳定收发时不再分配；积压超过容量的部分照常分配
+    private final Event[] pool = new Event[POOL_SIZE];
+    private int pooled;
+
+    public NotificationPath(String address, GattMetrics.DeviceMetrics metrics, Sink sink) {
+        this.address = address;
+        this.addressBits = GattSessionRecorder.addressToLong(address);
+        this.metrics = metrics;
+        this.sink = sink;
+    }
+
+    /**
+     * 设置后该特征的通知先重组成完整的帧再分发，传null取消
+     */
+    public void setFrameReassembler(UUID uuid, FrameReassembler reassembler) {
+        if (reassembler == null) {
+            reassemblers.remove(uuid);
+        } else {
+            reassemblers.put(uuid, new Reassembly(uuid, reassembler));
+        }
+    }
+
+    /**
+     * 断开后丢弃未拼完的帧
+     */
+    public void reset() {
+        for (Reassembly reassembly : reassemblers.values()) {
+            reassembly.reassembler.reset();
+        }
+    }
+
+    /**
+     * binder线程上调用：只做录制、计数和跟踪，返回的事件交给{@link #deliver}
+     *
+     * @param recorder 没有录制时为null
+     */
+    public Event onNotification(UUID uuid, byte[] value, GattSessionRecorder recorder) {
+        int length = value == null ? 0 : value.length;
+        if (recorder != null) {
+            // status为GATT_SUCCESS
+            recorder.record(GattSessionRecorder.EVENT_NOTIFY, addressBits, uuid, 0, 0, value);
+        }
+        metrics.recordNotification(uuid, length);
+        GattTrace.trace(GattTrace.VERBOSE, GattTrace.EVENT_NOTIFY, addressBits, uuid, length);
+        Event event = obtain();
+        event.uuid = uuid;
+        event.value = value;
+        return event;
+    }
+
+    /**
+     * 连接的线程上调用，按收到的顺序。调用后event被回收，不能再使用
+     */
+    public void deliver(Event event) {
+        UUID uuid = event.uuid;
+        byte[] value = event.value;
+        recycle(event);
+        Reassembly reassembly = reassemblers.isEmpty() ? null : reassemblers.get(uuid);
+        if (reassembly == null) {
+            sink.onData(address, uuid, value);
+        } else if (value != null) {
+            reassembly.reassembler.feed(value, 0, value.length, reassembly);
+        }
+    }
+
+    private Event obtain() {
+        synchronized (pool) {
+            if (pooled > 0) {
+                Event event = pool[--pooled];
+                pool[pooled] = null;
+                return event;
+            }
+        }
+        return new Event();
+    }
+
+    private void recycle(Event event) {
+        event.uuid = null;
+        event.value = null;
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = event;
+            }
+        }
+    }
+}
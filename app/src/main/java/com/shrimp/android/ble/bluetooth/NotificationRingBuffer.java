@@ -0,0 +1,214 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 预分配的通知数据环形缓冲区。蓝牙回调线程把数据复制进空闲槽位，
+ *          消费者在自己的线程上取出、处理、归还，稳定运行时不分配内存。
+ *          多个设备的回调可能来自不同线程，写入端无锁支持多生产者；读取端只允许一个消费者。
+ *
+ *          使用方式：
+ *          <pre>
+ *          NotificationRingBuffer.Slot slot;
+ *          while ((slot = buffer.poll()) != null) {
+ *              handle(slot.getData(), slot.getLength());
+ *              buffer.release(slot);
+ *          }
+ *          </pre>
+ *          release之后槽位会被覆盖，不能再访问slot里的数据
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class NotificationRingBuffer {
+
+    public static final class Slot {
+        private final byte[] data;
+        private int length;
+        private String address;
+        private UUID uuid;
+        private long timestamp;
+        private long position;
+
+        Slot(int size) {
+            data = new byte[size];
+        }
+
+        /**
+         * 槽位的数据区，有效长度为{@link #getLength()}
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        /**
+         * 写入时的System.nanoTime()
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    public interface SlotHandler {
+        /**
+         * slot只在回调期间有效，返回后自动归还
+         */
+        void onSlot(Slot slot);
+    }
+
+    private final Slot[] slots;
+    // 每个槽位的序号：等于写位置时可写，等于写位置+1时可读
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final int slotSize;
+
+    private final AtomicLong writePosition = new AtomicLong();
+    private long readPosition;
+
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong oversizeCount = new AtomicLong();
+
+    /**
+     * @param slotCount 槽位数，向上取整为2的幂
+     * @param slotSize  每个槽位的字节数，超过的数据会被丢弃并计数
+     */
+    public NotificationRingBuffer(int slotCount, int slotSize) {
+        if (slotCount < 1 || slotSize < 1) {
+            throw new IllegalArgumentException("slotCount=" + slotCount + ", slotSize=" + slotSize);
+        }
+        int capacity = Integer.highestOneBit(slotCount);
+        if (capacity < slotCount) {
+            capacity <<= 1;
+        }
+        this.slots = new Slot[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(slotSize);
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * 复制一条数据到空闲槽位，可在任意线程调用
+     *
+     * @return 缓冲区已满或数据超长时返回false
+     */
+    public boolean publish(String address, UUID uuid, byte[] value) {
+        int length = value == null ? 0 : value.length;
+        if (length > slotSize) {
+            oversizeCount.incrementAndGet();
+            return false;
+        }
+        long position;
+        int index;
+        while (true) {
+            position = writePosition.get();
+            index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (writePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                overflowCount.incrementAndGet();
+                return false;
+            }
+        }
+        Slot slot = slots[index];
+        if (length > 0) {
+            System.arraycopy(value, 0, slot.data, 0, length);
+        }
+        slot.length = length;
+        slot.address = address;
+        slot.uuid = uuid;
+        slot.timestamp = System.nanoTime();
+        slot.position = position;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * 取出下一条数据，没有数据时返回null。
+     * 只能在消费者线程调用；处理完必须{@link #release(Slot)}，否则一直返回同一个槽位
+     */
+    public Slot poll() {
+        long position = readPosition;
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        return slots[index];
+    }
+
+    /**
+     * 归还槽位给生产者
+     */
+    public void release(Slot slot) {
+        long position = readPosition;
+        if (slot.position != position) {
+            throw new IllegalStateException("release out of order");
+        }
+        slot.address = null;
+        slot.uuid = null;
+        readPosition = position + 1;
+        sequences.lazySet((int) (position & mask), position + slots.length);
+    }
+
+    /**
+     * 依次处理当前所有数据，最多max条
+     *
+     * @return 处理的条数
+     */
+    public int drain(SlotHandler handler, int max) {
+        int count = 0;
+        Slot slot;
+        while (count < max && (slot = poll()) != null) {
+            try {
+                handler.onSlot(slot);
+            } finally {
+                release(slot);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * 缓冲区满被丢弃的条数
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * 超过槽位大小被丢弃的条数
+     */
+    public long getOversizeCount() {
+        return oversizeCount.get();
+    }
+}
@@ -0,0 +1,42 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 收到的数据先写入环形缓冲区（设置了的话），再交给进程内订阅者。
+ *          不依赖Android，BluetoothLeClass和基准测试共用
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class NotificationRouter implements NotificationPath.Sink {
+
+    private final NotificationDispatcher dispatcher;
+    private volatile NotificationRingBuffer ringBuffer;
+
+    public NotificationRouter(NotificationDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public NotificationDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public void setRingBuffer(NotificationRingBuffer ringBuffer) {
+        this.ringBuffer = ringBuffer;
+    }
+
+    public NotificationRingBuffer getRingBuffer() {
+        return ringBuffer;
+    }
+
+    @Override
+    public void onData(String address, UUID uuid, byte[] value) {
+        NotificationRingBuffer buffer = ringBuffer;
+        if (buffer != null) {
+            buffer.publish(address, uuid, value);
+        }
+        dispatcher.dispatch(address, uuid, value);
+    }
+}
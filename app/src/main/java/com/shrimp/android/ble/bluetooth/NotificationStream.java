@@ -0,0 +1,280 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 带背压的通知数据流，接口仿照java.util.concurrent.Flow：
+ *          订阅者通过Subscription.request(n)声明能处理多少条，数据在订阅者自己的Executor上回调。
+ *          处理不过来时按订阅时选择的策略缓存或丢弃，慢的订阅者不会拖住蓝牙回调线程和其他订阅者
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class NotificationStream {
+
+    /**
+     * 最多缓存capacity条，满了丢弃新数据
+     */
+    public static final int STRATEGY_BUFFER = 0;
+    /**
+     * 最多缓存capacity条，满了丢弃最旧的数据
+     */
+    public static final int STRATEGY_DROP_OLDEST = 1;
+    /**
+     * 每个设备的每个特征只保留最新一条
+     */
+    public static final int STRATEGY_LATEST = 2;
+    /**
+     * 同一设备同一特征未处理的数据用Conflater合并成一条
+     */
+    public static final int STRATEGY_CONFLATE = 3;
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * value是独立的副本，可以保存
+         */
+        void onNext(String address, UUID uuid, byte[] value);
+
+        /**
+         * onNext抛出异常或request参数非法时回调，之后订阅自动取消
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * 取消订阅后回调，和onError只会回调其中一个
+         */
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * 再接收n条数据，Long.MAX_VALUE表示不限
+         */
+        void request(long n);
+
+        void cancel();
+
+        /**
+         * 按策略丢弃的条数
+         */
+        long getDroppedCount();
+    }
+
+    public interface Conflater {
+        /**
+         * 合并尚未处理的数据和新数据
+         */
+        byte[] conflate(byte[] pending, byte[] next);
+    }
+
+    private final NotificationDispatcher dispatcher;
+
+    public NotificationStream(NotificationDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * 订阅
+     *
+     * @param uuid       特征UUID，null表示所有特征
+     * @param subscriber 订阅者
+     * @param executor   回调所在的Executor，建议每个订阅者一个串行Executor
+     * @param strategy   STRATEGY_*
+     * @param capacity   缓存条数
+     * @param conflater  STRATEGY_CONFLATE时使用，为null时等同STRATEGY_LATEST
+     */
+    public Subscription subscribe(UUID uuid, Subscriber subscriber, Executor executor,
+                                  int strategy, int capacity, Conflater conflater) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity < 1");
+        }
+        StreamSubscription subscription = new StreamSubscription(uuid, subscriber, executor,
+                strategy, capacity, conflater);
+        subscriber.onSubscribe(subscription);
+        if (uuid == null) {
+            dispatcher.register(subscription);
+        } else {
+            dispatcher.register(uuid, subscription);
+        }
+        return subscription;
+    }
+
+    private static final class Item {
+        final String address;
+        final UUID uuid;
+        byte[] value;
+
+        Item(String address, UUID uuid, byte[] value) {
+            this.address = address;
+            this.uuid = uuid;
+            this.value = value;
+        }
+    }
+
+    private final class StreamSubscription
+            implements Subscription, NotificationDispatcher.Listener, Runnable {
+        private final UUID uuid;
+        private final Subscriber subscriber;
+        private final Executor executor;
+        private final int strategy;
+        private final int capacity;
+        private final Conflater conflater;
+
+        private final ArrayDeque<Item> queue = new ArrayDeque<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        StreamSubscription(UUID uuid, Subscriber subscriber, Executor executor, int strategy,
+                           int capacity, Conflater conflater) {
+            this.uuid = uuid;
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.strategy = strategy;
+            this.capacity = capacity;
+            this.conflater = conflater;
+        }
+
+        @Override
+        public void onCharacteristicData(String address, UUID uuid, byte[] value) {
+            if (cancelled) {
+                return;
+            }
+            byte[] copy = value == null ? new byte[0] : value.clone();
+            synchronized (queue) {
+                offer(address, uuid, copy);
+            }
+            schedule();
+        }
+
+        private void offer(String address, UUID uuid, byte[] value) {
+            if (strategy == STRATEGY_LATEST || strategy == STRATEGY_CONFLATE) {
+                for (Item item : queue) {
+                    if (item.uuid.equals(uuid) && item.address.equals(address)) {
+                        item.value = strategy == STRATEGY_CONFLATE && conflater != null
+                                ? conflater.conflate(item.value, value) : value;
+                        if (strategy == STRATEGY_LATEST) {
+                            dropped.incrementAndGet();
+                        }
+                        return;
+                    }
+                }
+            }
+            if (queue.size() >= capacity) {
+                dropped.incrementAndGet();
+                if (strategy == STRATEGY_BUFFER) {
+                    return;
+                }
+                queue.pollFirst();
+            }
+            queue.addLast(new Item(address, uuid, value));
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("request " + n);
+                cancel();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    break;
+                }
+                next = current + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (uuid == null) {
+                dispatcher.unregister(this);
+            } else {
+                dispatcher.unregister(uuid, this);
+            }
+            schedule();
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * 在订阅者的Executor上把数据交给订阅者，同一时间只有一个线程在执行
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    synchronized (queue) {
+                        queue.clear();
+                    }
+                    Throwable t = error;
+                    if (t != null) {
+                        subscriber.onError(t);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                long r = requested.get();
+                long emitted = 0;
+                while (emitted != r && !cancelled) {
+                    Item item;
+                    synchronized (queue) {
+                        item = queue.pollFirst();
+                    }
+                    if (item == null) {
+                        break;
+                    }
+                    try {
+                        subscriber.onNext(item.address, item.uuid, item.value);
+                    } catch (Throwable t) {
+                        error = t;
+                        cancel();
+                        break;
+                    }
+                    emitted++;
+                }
+                if (emitted != 0 && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (cancelled) {
+                    continue;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
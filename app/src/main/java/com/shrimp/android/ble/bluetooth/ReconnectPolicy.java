@@ -0,0 +1,126 @@
+package com.shrimp.android.ble.bluetooth;
+
+import java.util.Random;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 重连策略：根据断开时的GATT状态码决定是否重连、怎么重连，
+ *          重连间隔按指数退避并加随机抖动，超过次数上限后放弃
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class ReconnectPolicy {
+
+    /**
+     * 不重连
+     */
+    public static final int ACTION_NONE = 0;
+    /**
+     * 复用原来的BluetoothGatt，调用connect()
+     */
+    public static final int ACTION_RECONNECT = 1;
+    /**
+     * 关闭原来的BluetoothGatt，重新connectGatt
+     */
+    public static final int ACTION_RECREATE = 2;
+
+    /**
+     * 常见的断开原因（hci/gatt状态码，BluetoothGatt中没有公开）
+     */
+    public static final int GATT_CONN_TIMEOUT = 8;
+    public static final int GATT_CONN_TERMINATE_PEER_USER = 19;
+    public static final int GATT_CONN_TERMINATE_LOCAL_HOST = 22;
+    public static final int GATT_CONN_LMP_TIMEOUT = 34;
+    public static final int GATT_CONN_FAIL_ESTABLISH = 62;
+    public static final int GATT_ERROR = 133;
+
+    private long baseDelay = 500;
+    private long maxDelay = 30 * 1000;
+    private float multiplier = 2f;
+    private float jitter = 0.2f;
+    private int maxAttempts = 8;
+    private final Random random = new Random();
+
+    /**
+     * 第一次重连前的等待时间
+     */
+    public ReconnectPolicy setBaseDelay(long delayMillis) {
+        this.baseDelay = delayMillis;
+        return this;
+    }
+
+    public ReconnectPolicy setMaxDelay(long delayMillis) {
+        this.maxDelay = delayMillis;
+        return this;
+    }
+
+    public ReconnectPolicy setMultiplier(float multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * 随机抖动比例，0.2表示在计算出的间隔上下浮动20%，避免多个设备同时重连
+     */
+    public ReconnectPolicy setJitter(float jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * 连续重连次数上限，0表示不重连
+     */
+    public ReconnectPolicy setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 断开后怎么重连
+     *
+     * @param status            onConnectionStateChange的status
+     * @param userDisconnected  是否是主动调用disconnect/close断开的
+     */
+    public int actionFor(int status, boolean userDisconnected) {
+        if (userDisconnected) {
+            return ACTION_NONE;
+        }
+        switch (status) {
+            case GATT_CONN_TERMINATE_LOCAL_HOST:
+                // 本机主动断开
+                return ACTION_NONE;
+            case 0:
+            case GATT_CONN_TIMEOUT:
+            case GATT_CONN_TERMINATE_PEER_USER:
+            case GATT_CONN_LMP_TIMEOUT:
+                // 链路超时或对方断开，原来的BluetoothGatt还能用
+                return ACTION_RECONNECT;
+            case GATT_CONN_FAIL_ESTABLISH:
+            case GATT_ERROR:
+            default:
+                // 133等错误需要清除原来的连接再连
+                return ACTION_RECREATE;
+        }
+    }
+
+    /**
+     * 第attempt次（从0开始）重连前的等待时间
+     */
+    public long delayFor(int attempt) {
+        double delay = baseDelay * Math.pow(multiplier, attempt);
+        if (delay > maxDelay) {
+            delay = maxDelay;
+        }
+        if (jitter > 0) {
+            synchronized (random) {
+                delay *= 1 + jitter * (2 * random.nextFloat() - 1);
+            }
+        }
+        return (long) delay;
+    }
+}
@@ -0,0 +1,281 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 扫描调度：在{@link BluetoothLeScanner}外面加上时间控制。
+ *          按窗口/间隔占空比扫描（每个间隔只扫window毫秒），总时长到期或找到足够的目标设备后提前结束，
+ *          {@link BluetoothLeClass#connect(String)}发起直连时自动暂停，连接建立、服务发现完成后恢复，
+ *          连接时射频不用和扫描抢时间。所有调度在主线程上执行
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+public class ScanScheduler {
+
+    /**
+     * 默认连续扫描：窗口等于间隔
+     */
+    public static final long DEFAULT_WINDOW = 10 * 1000;
+    public static final long DEFAULT_INTERVAL = 10 * 1000;
+    /**
+     * 连接迟迟没有结果时，最多暂停这么久就恢复扫描
+     */
+    private static final long SUSPEND_TIMEOUT = 15 * 1000;
+
+    /**
+     * 判断扫描到的设备是不是要找的目标
+     */
+    public interface Target {
+        boolean matches(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    private static ScanScheduler mInstance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long window = DEFAULT_WINDOW;
+    private long interval = DEFAULT_INTERVAL;
+    private long duration;
+    private Target target;
+    private int targetCount = 1;
+
+    private BluetoothLeScanner.ScanConfig config;
+    private BluetoothReceiver.IBluetoothDiscoverListener listener;
+    private boolean running;
+    private boolean scanning;
+    private final Set<String> matched = new HashSet<>();
+    // 正在建立连接的设备，不为空时暂停扫描
+    private final Set<String> connecting = new HashSet<>();
+
+    private ScanScheduler() {
+    }
+
+    public static synchronized ScanScheduler getInstance() {
+        if (mInstance == null) {
+            mInstance = new ScanScheduler();
+        }
+        return mInstance;
+    }
+
+    /**
+     * 占空比：每interval毫秒扫描window毫秒，window不小于interval时连续扫描。
+     * 7.0以上30秒内最多启动5次扫描，间隔太短时系统会静默停止扫描，间隔建议不小于6秒
+     */
+    public synchronized ScanScheduler setDutyCycle(long windowMillis, long intervalMillis) {
+        this.window = windowMillis;
+        this.interval = Math.max(windowMillis, intervalMillis);
+        return this;
+    }
+
+    /**
+     * 总扫描时长，到期后结束并回调onDiscoveryFinish；0表示不限
+     */
+    public synchronized ScanScheduler setDuration(long durationMillis) {
+        this.duration = durationMillis;
+        return this;
+    }
+
+    /**
+     * 找到count个不同的目标设备后提前结束，传null关闭
+     */
+    public synchronized ScanScheduler setTarget(Target target, int count) {
+        this.target = target;
+        this.targetCount = Math.max(1, count);
+        return this;
+    }
+
+    /**
+     * 开始调度扫描，已经在扫描时先停止上一次。
+     * 忽略config.isClassicFallback()，不支持BLE扫描时返回false，不退回经典搜索
+     */
+    public boolean start(BluetoothLeScanner.ScanConfig config,
+                         BluetoothReceiver.IBluetoothDiscoverListener listener) {
+        synchronized (this) {
+            stopWindow();
+            handler.removeCallbacks(finishTask);
+            this.config = config;
+            this.listener = listener;
+            this.running = true;
+            matched.clear();
+            if (duration > 0) {
+                handler.postDelayed(finishTask, duration);
+            }
+            if (!connecting.isEmpty()) {
+                // 等连接完成后再开始
+                return true;
+            }
+            if (!startWindow()) {
+                // 没有开始就不再重试，也不回调onDiscoveryFinish
+                running = false;
+                this.listener = null;
+                handler.removeCallbacks(finishTask);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 停止扫描，不回调onDiscoveryFinish
+     */
+    public synchronized void stop() {
+        running = false;
+        listener = null;
+        handler.removeCallbacks(finishTask);
+        stopWindow();
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 暂停扫描，直到resume(address)或超时。没有调度时也会停掉直接用BluetoothLeScanner开始的扫描
+     */
+    synchronized void suspend(String address) {
+        if (address == null) {
+            return;
+        }
+        connecting.add(address);
+        if (running) {
+            stopWindow();
+        } else if (BluetoothLeScanner.isScanning()) {
+            BluetoothLeScanner.cancelScan();
+        }
+        handler.removeCallbacks(suspendTimeout);
+        handler.postDelayed(suspendTimeout, SUSPEND_TIMEOUT);
+    }
+
+    /**
+     * 连接建立完成或失败，所有连接都完成后恢复扫描
+     */
+    synchronized void resume(String address) {
+        if (!connecting.remove(address) || !connecting.isEmpty()) {
+            return;
+        }
+        handler.removeCallbacks(suspendTimeout);
+        if (running && !scanning) {
+            handler.removeCallbacks(windowStart);
+            startWindow();
+        }
+    }
+
+    private boolean startWindow() {
+        handler.removeCallbacks(windowStart);
+        // 经典搜索的结果经BluetoothReceiver上报，不经过relay，占空比和目标判断都管不到，所以不退回
+        scanning = BluetoothLeScanner.scanLeDevice(config, relay, false);
+        if (scanning && window < interval) {
+            handler.postDelayed(windowEnd, window);
+        }
+        return scanning;
+    }
+
+    private void stopWindow() {
+        handler.removeCallbacks(windowStart);
+        handler.removeCallbacks(windowEnd);
+        if (scanning) {
+            scanning = false;
+            BluetoothLeScanner.cancelScan();
+        }
+    }
+
+    private final Runnable windowStart = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (running && connecting.isEmpty()) {
+                    startWindow();
+                }
+            }
+        }
+    };
+
+    private final Runnable windowEnd = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                if (!running) {
+                    return;
+                }
+                stopWindow();
+                handler.postDelayed(windowStart, interval - window);
+            }
+        }
+    };
+
+    private final Runnable finishTask = new Runnable() {
+        @Override
+        public void run() {
+            BluetoothReceiver.IBluetoothDiscoverListener l;
+            synchronized (ScanScheduler.this) {
+                if (!running) {
+                    return;
+                }
+                l = listener;
+                stop();
+            }
+            if (l != null) {
+                l.onDiscoveryFinish();
+            }
+        }
+    };
+
+    private final Runnable suspendTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ScanScheduler.this) {
+                connecting.clear();
+                if (running && !scanning) {
+                    startWindow();
+                }
+            }
+        }
+    };
+
+    /**
+     * 转发扫描结果，检查是否已经找到目标。5.0以下的回调在binder线程上
+     */
+    private final BluetoothReceiver.IBluetoothScanListener relay = new BluetoothReceiver.IBluetoothScanListener() {
+        @Override
+        public void onDeviceFound(BluetoothDevice device) {
+            onDeviceFound(device, BluetoothDeviceRegistry.RSSI_UNKNOWN, null);
+        }
+
+        @Override
+        public void onDeviceFound(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            BluetoothReceiver.IBluetoothDiscoverListener l;
+            boolean done = false;
+            synchronized (ScanScheduler.this) {
+                if (!running) {
+                    return;
+                }
+                l = listener;
+                if (target != null && target.matches(device, rssi, scanRecord)
+                        && matched.add(device.getAddress()) && matched.size() >= targetCount) {
+                    done = true;
+                }
+            }
+            BluetoothLeScanner.deliver(l, device, rssi, scanRecord);
+            if (done) {
+                handler.removeCallbacks(finishTask);
+                handler.post(finishTask);
+            }
+        }
+
+        /**
+         * 扫描异步失败（onScanFailed），下一个窗口或resume时重新开始
+         */
+        @Override
+        public void onDiscoveryFinish() {
+            synchronized (ScanScheduler.this) {
+                scanning = false;
+            }
+        }
+    };
+}
@@ -0,0 +1,161 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.bluetooth
+ * 类描述： 写合并：同一特征在短时间内的多条小命令先拼在一起，满MTU-3或窗口到期时作为一次写入排队，
+ *          减少每条命令一次往返。写类型改变、命令本身超过一包时先把已缓存的数据发出，保证顺序不变。
+ *          设备端需要能从一包中按长度或分隔符拆出多条命令
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+final class WriteCoalescer {
+
+    /**
+     * 默认合并窗口，毫秒
+     */
+    static final long DEFAULT_WINDOW = 10;
+
+    /**
+     * 一个特征正在合并的数据，到期时由handler执行run()发出
+     */
+    private final class Pending implements Runnable {
+        final UUID uuid;
+        final int writeType;
+        final byte[] buffer;
+        int length;
+        final List<GattOperation.Callback> callbacks = new ArrayList<>(4);
+
+        Pending(UUID uuid, int writeType, int capacity) {
+            this.uuid = uuid;
+            this.writeType = writeType;
+            this.buffer = new byte[capacity];
+        }
+
+        @Override
+        public void run() {
+            synchronized (WriteCoalescer.this) {
+                if (pending.get(uuid) == this) {
+                    flush(this);
+                }
+            }
+        }
+    }
+
+    private final BluetoothLeConnection connection;
+    private final Handler handler;
+    private final Map<UUID, Pending> pending = new HashMap<>();
+    private volatile long window = DEFAULT_WINDOW;
+
+    WriteCoalescer(BluetoothLeConnection connection, Handler handler) {
+        this.connection = connection;
+        this.handler = handler;
+    }
+
+    void setWindow(long windowMillis) {
+        this.window = windowMillis;
+    }
+
+    /**
+     * 加入一条命令
+     *
+     * @param callback 合并后的写入完成时回调，同一包中的命令收到同一个操作
+     */
+    synchronized void write(UUID uuid, byte[] command, int writeType, GattOperation.Callback callback) {
+        int capacity = connection.getMtu() - 3;
+        Pending p = pending.get(uuid);
+        if (p != null && (p.writeType != writeType || p.length + command.length > p.buffer.length)) {
+            flush(p);
+            p = null;
+        }
+        if (command.length >= capacity || window <= 0) {
+            // 放不下或者不合并：先发出缓存，再单独写
+            if (p != null) {
+                flush(p);
+            }
+            connection.writeFragmented(uuid, command, writeType, callback);
+            return;
+        }
+        if (p == null) {
+            p = new Pending(uuid, writeType, capacity);
+            pending.put(uuid, p);
+            handler.postDelayed(p, window);
+        }
+        System.arraycopy(command, 0, p.buffer, p.length, command.length);
+        p.length += command.length;
+        if (callback != null) {
+            p.callbacks.add(callback);
+        }
+        if (p.length == p.buffer.length) {
+            flush(p);
+        }
+    }
+
+    /**
+     * 立即发出某个特征缓存的数据
+     */
+    synchronized void flush(UUID uuid) {
+        Pending p = pending.get(uuid);
+        if (p != null) {
+            flush(p);
+        }
+    }
+
+    synchronized void flushAll() {
+        for (Pending p : new ArrayList<>(pending.values())) {
+            flush(p);
+        }
+    }
+
+    /**
+     * 断开时丢弃还没发出的数据，回调收到STATUS_DISCONNECTED
+     */
+    void clear() {
+        List<Pending> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Pending p : dropped) {
+            handler.removeCallbacks(p);
+            GattOperation op = GattOperation.write(p.uuid, Arrays.copyOf(p.buffer, p.length));
+            op.finish(GattOperation.STATUS_DISCONNECTED, null);
+            for (GattOperation.Callback callback : p.callbacks) {
+                callback.onComplete(op);
+            }
+        }
+    }
+
+    private void flush(Pending p) {
+        pending.remove(p.uuid);
+        handler.removeCallbacks(p);
+        if (p.length == 0) {
+            return;
+        }
+        final List<GattOperation.Callback> callbacks = p.callbacks;
+        GattOperation.Callback callback = null;
+        if (callbacks.size() == 1) {
+            callback = callbacks.get(0);
+        } else if (!callbacks.isEmpty()) {
+            callback = new GattOperation.Callback() {
+                @Override
+                public void onComplete(GattOperation operation) {
+                    for (GattOperation.Callback c : callbacks) {
+                        c.onComplete(operation);
+                    }
+                }
+            };
+        }
+        byte[] data = p.length == p.buffer.length ? p.buffer : Arrays.copyOf(p.buffer, p.length);
+        connection.enqueue(GattOperation.write(p.uuid, data).setWriteType(p.writeType).setCallback(callback));
+    }
+}
@@ -0,0 +1,73 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.shrimp.android.ble.bluetooth.AdvertisementParserTest.bytes;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 广播过滤：组内“与”、组间“或”，条件遇到畸形或缺失的字段时不匹配
+ */
+public class AdvertisementFilterTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+
+    private final AdvertisementParser parser = new AdvertisementParser();
+
+    private boolean matches(AdvertisementFilter filter, byte[] record, int rssi) {
+        parser.reset(record);
+        return filter.matches(parser, rssi, null);
+    }
+
+    @Test
+    public void andWithinClauseOrBetweenClauses() throws Exception {
+        AdvertisementFilter filter = AdvertisementFilter.builder()
+                .serviceUuid(HEART_RATE).minRssi(-70)
+                .or()
+                .manufacturerData(0x004C, bytes(0x02, 0x15), null)
+                .build();
+        byte[] heartRate = bytes(0x03, 0x03, 0x0D, 0x18);
+        byte[] beacon = bytes(0x05, 0xFF, 0x4C, 0x00, 0x02, 0x15);
+
+        assertTrue(matches(filter, heartRate, -60));
+        assertFalse(matches(filter, heartRate, -80));
+        // rssi未知时忽略rssi条件
+        assertTrue(matches(filter, heartRate, BluetoothDeviceRegistry.RSSI_UNKNOWN));
+        assertTrue(matches(filter, beacon, -99));
+        assertFalse(matches(filter, bytes(0x02, 0x01, 0x06), -40));
+    }
+
+    @Test
+    public void malformedRecordsDoNotMatch() throws Exception {
+        AdvertisementFilter filter = AdvertisementFilter.builder()
+                .flags(0x02, 0x02)
+                .or()
+                .minTxPower(-20)
+                .or()
+                .serviceData(0x180D, bytes(0x01), null)
+                .or()
+                .namePrefix("band")
+                .build();
+        // 越界的长度
+        assertFalse(matches(filter, bytes(0x1F, 0x01, 0x06), -40));
+        // 各结构都没有内容
+        assertFalse(matches(filter, bytes(0x01, 0x01, 0x01, 0x0A, 0x03, 0x16, 0x0D, 0x18, 0x01, 0x09), -40));
+        // 广播里没有名称，也没有设备可比较
+        assertFalse(matches(filter, null, -40));
+        assertTrue(matches(filter, bytes(0x02, 0x01, 0x02), -40));
+        assertTrue(matches(filter, bytes(0x02, 0x0A, 0xF0), -40));
+        assertTrue(matches(filter, bytes(0x04, 0x16, 0x0D, 0x18, 0x01), -40));
+        assertTrue(matches(filter, bytes(0x06, 0x09, 'b', 'a', 'n', 'd', '2'), -40));
+    }
+
+    @Test
+    public void emptyFilterAcceptsAll() throws Exception {
+        AdvertisementFilter filter = AdvertisementFilter.builder().or().build();
+        assertSame(AdvertisementFilter.ACCEPT_ALL, filter);
+        assertTrue(matches(filter, bytes(0x1F), -100));
+    }
+}
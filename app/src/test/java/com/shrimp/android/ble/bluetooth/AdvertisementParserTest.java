@@ -0,0 +1,161 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 广播解析：正常的AD结构，以及截断、越界长度、空结构等畸形数据
+ */
+public class AdvertisementParserTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private final AdvertisementParser parser = new AdvertisementParser();
+
+    static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    /**
+     * 128位UUID的AD结构内容，小端
+     */
+    static int[] uuid128Le(UUID uuid) {
+        int[] result = new int[16];
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            result[i] = (int) (lsb >>> (8 * i)) & 0xFF;
+            result[i + 8] = (int) (msb >>> (8 * i)) & 0xFF;
+        }
+        return result;
+    }
+
+    @Test
+    public void parsesTypicalRecord() throws Exception {
+        byte[] record = bytes(
+                0x02, 0x01, 0x06,                   // flags
+                0x03, 0x03, 0x0D, 0x18,             // 16位UUID 0x180D
+                0x02, 0x0A, 0xF4,                   // TX -12dBm
+                0x05, 0xFF, 0x4C, 0x00, 0x02, 0x15, // 厂商 0x004C
+                0x05, 0x09, 'b', 'a', 'n', 'd',     // 完整名称
+                0x00, 0x00, 0x00);                  // 填充
+        assertTrue(parser.reset(record));
+        assertEquals(5, parser.getStructureCount());
+        assertEquals(0x06, parser.getFlags());
+        assertEquals(-12, parser.getTxPowerLevel());
+        assertTrue(parser.hasServiceUuid16(0x180D));
+        assertTrue(parser.hasServiceUuid(HEART_RATE));
+        assertFalse(parser.hasServiceUuid(CUSTOM));
+        assertEquals(0x004C, parser.getManufacturerId());
+        assertEquals(2, parser.getManufacturerDataLength(0x004C));
+        assertEquals(14, parser.getManufacturerDataOffset(0x004C));
+        assertTrue(parser.manufacturerDataMatches(0x004C, bytes(0x02), null));
+        assertFalse(parser.manufacturerDataMatches(0x004C, bytes(0x02, 0x15, 0x00), null));
+        assertEquals("band", parser.getName());
+        assertTrue(parser.nameEquals("band".getBytes("UTF-8")));
+        assertTrue(parser.nameStartsWith("ba".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void uuid128AndUuid32() throws Exception {
+        int[] custom = uuid128Le(CUSTOM);
+        int[] values = new int[2 + 16 + 6];
+        values[0] = 17;
+        values[1] = AdvertisementParser.TYPE_UUID128;
+        for (int i = 0; i < 16; i++) {
+            values[2 + i] = custom[i];
+        }
+        // 32位UUID 0x0000180D
+        System.arraycopy(new int[]{0x05, 0x05, 0x0D, 0x18, 0x00, 0x00}, 0, values, 18, 6);
+        assertTrue(parser.reset(bytes(values)));
+        assertTrue(parser.hasServiceUuid(CUSTOM));
+        assertTrue(parser.hasServiceUuid(HEART_RATE));
+        assertFalse(parser.hasServiceUuid16(0x180D));
+    }
+
+    @Test
+    public void lengthPastEndKeepsEarlierStructures() throws Exception {
+        // 第二个结构声明长度10，实际只剩2字节
+        assertFalse(parser.reset(bytes(0x02, 0x01, 0x06, 0x0A, 0xFF, 0x4C)));
+        assertEquals(1, parser.getStructureCount());
+        assertEquals(0x06, parser.getFlags());
+        assertEquals(-1, parser.getManufacturerId());
+    }
+
+    @Test
+    public void truncatedPayloadsAreIgnored() throws Exception {
+        byte[] record = bytes(
+                0x01, 0x01,                         // flags没有内容
+                0x01, 0x0A,                         // TX没有内容
+                0x02, 0xFF, 0x4C,                   // 厂商数据不足2字节公司ID
+                0x02, 0x03, 0x0D,                   // 16位UUID只有1字节
+                0x0B, 0x07, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, // 128位UUID只有10字节
+                0x03, 0x16, 0x0D, 0x18);            // 服务数据只有UUID
+        assertTrue(parser.reset(record));
+        assertEquals(6, parser.getStructureCount());
+        assertEquals(0, parser.getFlags());
+        assertEquals(AdvertisementParser.TX_POWER_UNKNOWN, parser.getTxPowerLevel());
+        assertEquals(-1, parser.getManufacturerId());
+        assertEquals(-1, parser.getManufacturerDataOffset(0x004C));
+        assertFalse(parser.manufacturerDataMatches(0x004C, new byte[0], null));
+        assertFalse(parser.hasServiceUuid16(0x0D));
+        assertFalse(parser.hasServiceUuid(CUSTOM));
+        assertTrue(parser.serviceDataMatches(0x180D, new byte[0], null));
+        assertFalse(parser.serviceDataMatches(0x180D, bytes(1), null));
+    }
+
+    @Test
+    public void emptyAndNullRecords() throws Exception {
+        assertTrue(parser.reset(null));
+        assertEquals(0, parser.getStructureCount());
+        assertTrue(parser.reset(new byte[0]));
+        assertTrue(parser.reset(new byte[31]));
+        assertEquals(0, parser.getStructureCount());
+        assertFalse(parser.hasName());
+        assertNull(parser.getName());
+        assertFalse(parser.nameStartsWith(new byte[0]));
+        // 只有长度字节
+        assertFalse(parser.reset(bytes(0x05)));
+        assertEquals(0, parser.getStructureCount());
+    }
+
+    @Test
+    public void stopsAtStructureLimit() throws Exception {
+        // 40个只有类型的结构，超过32个的部分不解析
+        byte[] record = new byte[80];
+        for (int i = 0; i < 40; i++) {
+            record[2 * i] = 1;
+            record[2 * i + 1] = (byte) 0x20;
+        }
+        assertTrue(parser.reset(record));
+        assertEquals(32, parser.getStructureCount());
+    }
+
+    @Test
+    public void shortNameMatchesLongerPrefix() throws Exception {
+        assertTrue(parser.reset(bytes(0x04, 0x08, 'b', 'a', 'n')));
+        assertTrue(parser.nameStartsWith("band-01".getBytes("UTF-8")));
+        assertFalse(parser.nameStartsWith("bx".getBytes("UTF-8")));
+        assertFalse(parser.nameEquals("ban".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void maskedPrefix() throws Exception {
+        assertTrue(parser.reset(bytes(0x05, 0xFF, 0x59, 0x00, 0x81, 0x7F)));
+        assertTrue(parser.manufacturerDataMatches(0x0059, bytes(0x01, 0x7F), bytes(0x7F, 0xFF)));
+        assertFalse(parser.manufacturerDataMatches(0x0059, bytes(0x01, 0x7F), bytes(0x80, 0xFF)));
+        // mask比prefix短时，其余字节全部比较
+        assertFalse(parser.manufacturerDataMatches(0x0059, bytes(0x81, 0x7E), bytes(0xFF)));
+    }
+}
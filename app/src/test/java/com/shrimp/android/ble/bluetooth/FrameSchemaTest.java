@@ -0,0 +1,184 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 帧定义：编码后再解码得到原值，位域、字节序、校验和无效帧的判断
+ */
+public class FrameSchemaTest {
+
+    private static final byte[] CHECK = "123456789".getBytes();
+
+    private static FrameSchema sensorFrame() {
+        return new FrameSchema.Builder()
+                .constant("head", FrameSchema.TYPE_UINT8, 0xAA)
+                .int16("speed")
+                .uint16("voltage")
+                .uint8("flags")
+                .bits("mode", "flags", 1, 3)
+                .bits("alarm", "flags", 7, 1)
+                .float32("angle")
+                .littleEndian(false)
+                .int32("counter")
+                .checksum(Checksum.SUM8, 1)
+                .build();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        FrameSchema schema = sensorFrame();
+        byte[] frame = new FrameEncoder(schema)
+                .setInt(schema.indexOf("speed"), -120)
+                .setInt(schema.indexOf("voltage"), 42000)
+                .setInt(schema.indexOf("mode"), 5)
+                .setBoolean(schema.indexOf("alarm"), true)
+                .setFloat(schema.indexOf("angle"), 1.5f)
+                .setInt(schema.indexOf("counter"), 0x01020304)
+                .encode();
+        assertEquals(schema.size, frame.length);
+
+        FrameView view = new FrameView(schema);
+        assertTrue(view.wrap(frame));
+        assertEquals(0xAA, view.getInt(schema.indexOf("head")));
+        assertEquals(-120, view.getInt(schema.indexOf("speed")));
+        assertEquals(42000, view.getInt(schema.indexOf("voltage")));
+        assertEquals(5, view.getInt(schema.indexOf("mode")));
+        assertTrue(view.getBoolean(schema.indexOf("alarm")));
+        assertEquals(0x8A, view.getInt(schema.indexOf("flags")));
+        assertEquals(1.5f, view.getFloat(schema.indexOf("angle")), 0);
+        assertEquals(0x01020304, view.getInt(schema.indexOf("counter")));
+        // 大端
+        int counter = schema.getOffset(schema.indexOf("counter"));
+        assertEquals(1, frame[counter]);
+        assertEquals(4, frame[counter + 3]);
+    }
+
+    @Test
+    public void bitsDoNotTouchNeighbours() throws Exception {
+        FrameSchema schema = sensorFrame();
+        FrameEncoder encoder = new FrameEncoder(schema)
+                .setInt(schema.indexOf("flags"), 0xFF)
+                .setInt(schema.indexOf("mode"), 0);
+        FrameView view = new FrameView(schema);
+        assertTrue(view.wrap(encoder.encode()));
+        assertEquals(0xF1, view.getInt(schema.indexOf("flags")));
+
+        // 超出位宽的部分被截掉
+        encoder.setInt(schema.indexOf("mode"), 0xF);
+        assertTrue(view.wrap(encoder.encode()));
+        assertEquals(7, view.getInt(schema.indexOf("mode")));
+        assertEquals(0xFF, view.getInt(schema.indexOf("flags")));
+    }
+
+    @Test
+    public void fullWidthBitsOnInt64() throws Exception {
+        FrameSchema schema = new FrameSchema.Builder()
+                .int64("raw")
+                .bits("all", "raw", 0, 64)
+                .bits("high", "raw", 32, 32)
+                .build();
+        long value = 0x8123456789ABCDEFL;
+        FrameView view = new FrameView(schema);
+        assertTrue(view.wrap(new FrameEncoder(schema).setLong(schema.indexOf("all"), value).encode()));
+        assertEquals(value, view.getLong(schema.indexOf("all")));
+        assertEquals(value, view.getLong(schema.indexOf("raw")));
+        assertEquals(0x81234567L, view.getLong(schema.indexOf("high")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBitsBeyondParent() throws Exception {
+        new FrameSchema.Builder().uint8("flags").bits("mode", "flags", 6, 3);
+    }
+
+    @Test
+    public void signedConstants() throws Exception {
+        // 0xAA和-86是同一个int8，都能编码后再通过校验
+        FrameSchema schema = new FrameSchema.Builder()
+                .constant("head", FrameSchema.TYPE_INT8, 0xAA)
+                .constant("tail", FrameSchema.TYPE_INT16, -2)
+                .constant("magic", FrameSchema.TYPE_INT32, 0xCAFEBABEL)
+                .build();
+        byte[] frame = new FrameEncoder(schema).encode();
+        assertEquals((byte) 0xAA, frame[0]);
+        assertEquals((byte) 0xFE, frame[1]);
+        assertEquals((byte) 0xFF, frame[2]);
+        assertTrue(new FrameView(schema).wrap(frame));
+
+        FrameSchema same = new FrameSchema.Builder().constant("head", FrameSchema.TYPE_INT8, -86).build();
+        assertTrue(new FrameView(same).wrap(new byte[]{(byte) 0xAA}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsConstantBeyondWidth() throws Exception {
+        new FrameSchema.Builder().constant("head", FrameSchema.TYPE_UINT8, 0x1AA);
+    }
+
+    @Test
+    public void invalidFrames() throws Exception {
+        FrameSchema schema = sensorFrame();
+        byte[] frame = new FrameEncoder(schema).setInt(schema.indexOf("speed"), 7).encode();
+        FrameView view = new FrameView(schema);
+
+        assertFalse(view.wrap(frame, 0, frame.length - 1));
+        assertEquals(FrameView.ERROR_LENGTH, view.getError());
+
+        byte[] corrupt = frame.clone();
+        corrupt[1] ^= 1;
+        assertFalse(view.wrap(corrupt));
+        assertEquals(FrameView.ERROR_CHECKSUM, view.getError());
+
+        byte[] badHead = frame.clone();
+        badHead[0] = 0x55;
+        assertFalse(view.wrap(badHead));
+        assertEquals(FrameView.ERROR_CONSTANT, view.getError());
+
+        // 带偏移的缓冲区
+        byte[] padded = new byte[frame.length + 3];
+        System.arraycopy(frame, 0, padded, 3, frame.length);
+        assertTrue(view.wrap(padded, 3, frame.length));
+        assertEquals(7, view.getInt(schema.indexOf("speed")));
+    }
+
+    @Test
+    public void checksumVectors() throws Exception {
+        assertEquals(0xDD, Checksum.compute(Checksum.SUM8, CHECK, 0, CHECK.length));
+        assertEquals(0x31, Checksum.compute(Checksum.XOR8, CHECK, 0, CHECK.length));
+        assertEquals(0x4B37, Checksum.compute(Checksum.CRC16_MODBUS, CHECK, 0, CHECK.length));
+        assertEquals(0x29B1, Checksum.compute(Checksum.CRC16_CCITT, CHECK, 0, CHECK.length));
+    }
+
+    @Test
+    public void crcByteOrder() throws Exception {
+        FrameSchema modbus = new FrameSchema.Builder().uint8("a").checksum(Checksum.CRC16_MODBUS, 0).build();
+        byte[] frame = new FrameEncoder(modbus).setInt(0, 0x31).encode();
+        int crc = Checksum.compute(Checksum.CRC16_MODBUS, frame, 0, 1);
+        // MODBUS低字节在前
+        assertEquals(crc & 0xff, frame[1] & 0xff);
+        assertEquals(crc >>> 8, frame[2] & 0xff);
+        assertTrue(new FrameView(modbus).wrap(frame));
+    }
+
+    @Test
+    public void decoderCountsInvalidFrames() throws Exception {
+        FrameSchema schema = sensorFrame();
+        final int[] frames = new int[1];
+        FrameDecoder decoder = new FrameDecoder(schema, new FrameDecoder.FrameHandler() {
+            @Override
+            public void onFrame(String address, UUID uuid, FrameView frame) {
+                frames[0]++;
+            }
+        });
+        byte[] frame = new FrameEncoder(schema).encode();
+        decoder.onCharacteristicData("AA:BB:CC:DD:EE:FF", null, frame);
+        decoder.onCharacteristicData("AA:BB:CC:DD:EE:FF", null, new byte[2]);
+        decoder.onCharacteristicData("AA:BB:CC:DD:EE:FF", null, null);
+        assertEquals(1, frames[0]);
+        assertEquals(2, decoder.getInvalidCount());
+    }
+}
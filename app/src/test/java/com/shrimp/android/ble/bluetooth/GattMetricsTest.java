@@ -0,0 +1,74 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 导出的计数器带采集时间和计数时长，可以算出每个特征的通知速率
+ */
+public class GattMetricsTest {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final UUID DATA = UUID.fromString("0000ffe4-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void notificationRateFromSnapshot() throws Exception {
+        GattMetrics metrics = new GattMetrics();
+        GattMetrics.DeviceMetrics device = metrics.device(ADDRESS);
+        long before = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            device.recordNotification(DATA, 20);
+        }
+        Thread.sleep(50);
+
+        GattMetrics.Metric notifications = find(metrics, GattMetrics.NOTIFICATIONS);
+        GattMetrics.Metric bytes = find(metrics, GattMetrics.NOTIFICATION_BYTES);
+        assertEquals(10, notifications.getValue());
+        assertEquals(200, bytes.getValue());
+        assertTrue(notifications.getTimestamp() >= before);
+        assertTrue(notifications.getElapsedNanos() >= 50 * 1000000L);
+        assertEquals(10 * 1e9 / notifications.getElapsedNanos(), notifications.getRatePerSecond(), 1e-6);
+        assertTrue(notifications.getRatePerSecond() <= 200);
+    }
+
+    @Test
+    public void intervalRateFromTwoSnapshots() throws Exception {
+        GattMetrics metrics = new GattMetrics();
+        GattMetrics.DeviceMetrics device = metrics.device(ADDRESS);
+        device.recordNotification(DATA, 20);
+        GattMetrics.Metric first = find(metrics, GattMetrics.NOTIFICATIONS);
+        Thread.sleep(20);
+        for (int i = 0; i < 4; i++) {
+            device.recordNotification(DATA, 20);
+        }
+        GattMetrics.Metric second = find(metrics, GattMetrics.NOTIFICATIONS);
+        assertTrue(second.getElapsedNanos() - first.getElapsedNanos() >= 20 * 1000000L);
+        assertEquals(4, second.getValue() - first.getValue());
+    }
+
+    @Test
+    public void dumpIncludesRate() throws Exception {
+        GattMetrics metrics = new GattMetrics();
+        metrics.device(ADDRESS).recordNotification(DATA, 20);
+        StringBuilder out = new StringBuilder();
+        metrics.dump(out);
+        assertTrue(out.toString().contains(GattMetrics.NOTIFICATIONS + "{device=" + ADDRESS + ",uuid=" + DATA
+                + "} value=1 rate="));
+    }
+
+    private static GattMetrics.Metric find(GattMetrics metrics, String name) {
+        GattMetrics.Metric result = null;
+        for (GattMetrics.Metric metric : metrics.snapshot()) {
+            if (metric.getName().equals(name)) {
+                result = metric;
+            }
+        }
+        assertNotNull(result);
+        return result;
+    }
+}
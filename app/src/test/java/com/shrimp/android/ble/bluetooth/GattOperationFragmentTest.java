@@ -0,0 +1,65 @@
+package com.shrimp.android.ble.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分包写入：拆包大小，以及某一包失败时只回调一次、取消剩下的包
+ */
+public class GattOperationFragmentTest {
+
+    private static final UUID CHARACTERISTIC = UUID.fromString("0000ffe9-0000-1000-8000-00805f9b34fb");
+
+    private final List<GattOperation> reported = new ArrayList<>();
+    private final GattOperation.Callback recorder = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation) {
+            reported.add(operation);
+        }
+    };
+
+    @Test
+    public void splitsAtChunkSize() throws Exception {
+        List<GattOperation> chunks = GattOperation.writeFragments(CHARACTERISTIC, new byte[25], 10,
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, null);
+        assertEquals(3, chunks.size());
+        assertEquals(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, chunks.get(2).getWriteType());
+    }
+
+    @Test
+    public void successReportsLastChunkOnce() throws Exception {
+        List<GattOperation> chunks = GattOperation.writeFragments(CHARACTERISTIC, new byte[25], 10,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, recorder);
+        for (GattOperation chunk : chunks) {
+            chunk.finish(BluetoothGatt.GATT_SUCCESS, (byte[]) null);
+        }
+        assertEquals(1, reported.size());
+        assertSame(chunks.get(2), reported.get(0));
+    }
+
+    @Test
+    public void failureCancelsRemainingAndReportsOnce() throws Exception {
+        List<GattOperation> chunks = GattOperation.writeFragments(CHARACTERISTIC, new byte[25], 10,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, recorder);
+        // 没有BluetoothGatt，第一包在drive()里同步失败，取消的包会再回到失败回调里
+        GattOperationQueue queue = new GattOperationQueue(null);
+        queue.enqueueAll(chunks);
+
+        assertEquals(1, reported.size());
+        assertSame(chunks.get(0), reported.get(0));
+        assertEquals(GattOperation.STATUS_FAILED, chunks.get(0).getStatus());
+        assertTrue(chunks.get(1).isCancelled());
+        assertTrue(chunks.get(2).isCancelled());
+        assertTrue(queue.isIdle());
+    }
+}
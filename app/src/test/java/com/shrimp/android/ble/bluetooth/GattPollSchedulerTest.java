@@ -0,0 +1,93 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 轮询降频：按优先级分配链路时间，超出部分拉长周期
+ */
+public class GattPollSchedulerTest {
+
+    private static GattPollScheduler.Entry add(GattPollScheduler.Device device, long period, int priority) {
+        GattPollScheduler.Entry entry = new GattPollScheduler.Entry(UUID.randomUUID());
+        entry.period = period;
+        entry.priority = priority;
+        device.entries.add(entry);
+        return entry;
+    }
+
+    private static double utilization(GattPollScheduler.Device device) {
+        double total = 0;
+        for (GattPollScheduler.Entry entry : device.entries) {
+            total += device.latency / entry.effectivePeriod;
+        }
+        return total;
+    }
+
+    @Test
+    public void unmeasuredLatencyKeepsTargetPeriods() throws Exception {
+        GattPollScheduler.Device device = new GattPollScheduler.Device("AA:BB:CC:DD:EE:FF");
+        GattPollScheduler.Entry entry = add(device, 5, GattPollScheduler.PRIORITY_LOW);
+        GattPollScheduler.rebalance(device);
+        assertEquals(5, entry.effectivePeriod);
+    }
+
+    @Test
+    public void withinBudgetKeepsTargetPeriods() throws Exception {
+        GattPollScheduler.Device device = new GattPollScheduler.Device("AA:BB:CC:DD:EE:FF");
+        device.latency = 10;
+        GattPollScheduler.Entry high = add(device, 50, GattPollScheduler.PRIORITY_HIGH);
+        GattPollScheduler.Entry low = add(device, 100, GattPollScheduler.PRIORITY_LOW);
+        GattPollScheduler.rebalance(device);
+        assertEquals(50, high.effectivePeriod);
+        assertEquals(100, low.effectivePeriod);
+    }
+
+    @Test
+    public void lowerPrioritiesAbsorbTheOverload() throws Exception {
+        GattPollScheduler.Device device = new GattPollScheduler.Device("AA:BB:CC:DD:EE:FF");
+        device.latency = 10;
+        // 需求：高0.2，普通1.0，低0.1，上限0.8
+        GattPollScheduler.Entry high = add(device, 50, GattPollScheduler.PRIORITY_HIGH);
+        GattPollScheduler.Entry normalA = add(device, 20, GattPollScheduler.PRIORITY_NORMAL);
+        GattPollScheduler.Entry normalB = add(device, 20, GattPollScheduler.PRIORITY_NORMAL);
+        GattPollScheduler.Entry low = add(device, 100, GattPollScheduler.PRIORITY_LOW);
+        GattPollScheduler.rebalance(device);
+
+        assertEquals(50, high.effectivePeriod);
+        // 普通优先级分到剩下的0.6，按1.0/0.6拉长
+        assertEquals(34, normalA.effectivePeriod);
+        assertEquals(34, normalB.effectivePeriod);
+        // 没有余量，按最大倍数降频
+        assertEquals(3200, low.effectivePeriod);
+    }
+
+    @Test
+    public void scaleIsCappedEvenForTopPriority() throws Exception {
+        GattPollScheduler.Device device = new GattPollScheduler.Device("AA:BB:CC:DD:EE:FF");
+        device.latency = 100;
+        // 需求100，远超上限
+        GattPollScheduler.Entry entry = add(device, 1, GattPollScheduler.PRIORITY_HIGH);
+        GattPollScheduler.rebalance(device);
+        assertEquals(32, entry.effectivePeriod);
+    }
+
+    @Test
+    public void utilizationStaysWithinLimit() throws Exception {
+        GattPollScheduler.Device device = new GattPollScheduler.Device("AA:BB:CC:DD:EE:FF");
+        device.latency = 7;
+        for (int i = 0; i < 12; i++) {
+            add(device, 25 + 13 * i, i % 3);
+        }
+        GattPollScheduler.rebalance(device);
+        assertTrue(utilization(device) <= 0.8 + 1e-9);
+        for (GattPollScheduler.Entry entry : device.entries) {
+            assertTrue(entry.effectivePeriod >= entry.period);
+            assertTrue(entry.effectivePeriod <= entry.period * 32);
+        }
+    }
+}
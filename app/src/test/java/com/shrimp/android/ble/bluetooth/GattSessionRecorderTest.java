@@ -0,0 +1,191 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 录制文件格式：写入、换文件、保留个数、回放读回，以及跨会话的时间基准
+ */
+public class GattSessionRecorderTest {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final UUID DATA = UUID.fromString("0000ffe4-0000-1000-8000-00805f9b34fb");
+    // 一条带20字节数据的记录63字节，一个文件放3条
+    private static final int SEGMENT_SIZE = GattSessionRecorder.FILE_HEADER_SIZE + 3 * 63;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("gatt-session", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        dir.deleteOnExit();
+    }
+
+    @Test
+    public void addressRoundTrip() throws Exception {
+        long address = GattSessionRecorder.addressToLong(ADDRESS);
+        assertEquals(0xAABBCCDDEEFFL, address);
+        assertEquals(ADDRESS, GattSessionRecorder.longToAddress(address));
+    }
+
+    @Test
+    public void readsBackAcrossSegments() throws Exception {
+        GattSessionRecorder recorder = new GattSessionRecorder(dir, SEGMENT_SIZE, 100);
+        long address = GattSessionRecorder.addressToLong(ADDRESS);
+        for (int i = 0; i < 20; i++) {
+            record(recorder, GattSessionRecorder.EVENT_NOTIFY, address, DATA, i, value(i, 20));
+        }
+        record(recorder, GattSessionRecorder.EVENT_MTU, address, null, 20, null);
+        recorder.close();
+        assertTrue(GattSessionRecorder.listSegments(dir).length >= 7);
+
+        List<Object[]> events = replay(false);
+        assertEquals(21, events.size());
+        long lastTime = Long.MIN_VALUE;
+        for (int i = 0; i < 20; i++) {
+            Object[] e = events.get(i);
+            assertEquals(GattSessionRecorder.EVENT_NOTIFY, e[0]);
+            assertTrue((Long) e[1] >= lastTime);
+            lastTime = (Long) e[1];
+            assertEquals(ADDRESS, e[2]);
+            assertEquals(DATA, e[3]);
+            assertEquals(0, e[4]);
+            assertEquals(i, e[5]);
+            assertArrayEquals(value(i, 20), (byte[]) e[6]);
+        }
+        Object[] mtu = events.get(20);
+        assertEquals(GattSessionRecorder.EVENT_MTU, mtu[0]);
+        assertNull(mtu[3]);
+        assertEquals(20, mtu[5]);
+        assertEquals(0, ((byte[]) mtu[6]).length);
+    }
+
+    @Test
+    public void truncatesValueLargerThanSegment() throws Exception {
+        GattSessionRecorder recorder = new GattSessionRecorder(dir, SEGMENT_SIZE, 100);
+        record(recorder, GattSessionRecorder.EVENT_READ, 0, DATA, 0, value(0, 1000));
+        recorder.close();
+
+        List<Object[]> events = replay(false);
+        assertEquals(1, events.size());
+        int length = SEGMENT_SIZE - GattSessionRecorder.FILE_HEADER_SIZE - GattSessionRecorder.HEADER_SIZE;
+        byte[] expected = new byte[length];
+        System.arraycopy(value(0, 1000), 0, expected, 0, length);
+        assertArrayEquals(expected, (byte[]) events.get(0)[6]);
+    }
+
+    @Test
+    public void keepsOnlyRecentSegments() throws Exception {
+        GattSessionRecorder recorder = new GattSessionRecorder(dir, SEGMENT_SIZE, 2);
+        for (int i = 0; i < 30; i++) {
+            record(recorder, GattSessionRecorder.EVENT_NOTIFY, 0, DATA, i, value(i, 20));
+        }
+        recorder.close();
+        // 删除在后台线程上
+        long deadline = System.currentTimeMillis() + 2000;
+        while (GattSessionRecorder.listSegments(dir).length > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(GattSessionRecorder.listSegments(dir).length <= 2);
+
+        List<Object[]> events = replay(false);
+        assertTrue(events.size() > 0 && events.size() <= 6);
+        // 保留的是最后几条
+        assertEquals(29, events.get(events.size() - 1)[5]);
+    }
+
+    @Test
+    public void skipsUnknownFiles() throws Exception {
+        GattSessionRecorder recorder = new GattSessionRecorder(dir, SEGMENT_SIZE, 100);
+        record(recorder, GattSessionRecorder.EVENT_WRITE, 0, DATA, 1, value(1, 4));
+        recorder.close();
+        FileOutputStream out = new FileOutputStream(GattSessionRecorder.segmentFile(dir, 0));
+        out.write(new byte[SEGMENT_SIZE]);
+        out.close();
+
+        assertEquals(0, replay(false).size());
+    }
+
+    @Test
+    public void realTimeReplayKeepsGapsWithinSession() throws Exception {
+        GattSessionRecorder recorder = new GattSessionRecorder(dir, SEGMENT_SIZE, 100);
+        record(recorder, GattSessionRecorder.EVENT_NOTIFY, 0, DATA, 0, null);
+        Thread.sleep(200);
+        record(recorder, GattSessionRecorder.EVENT_NOTIFY, 0, DATA, 1, null);
+        recorder.close();
+
+        long start = System.nanoTime();
+        assertEquals(2, replay(true).size());
+        assertTrue(System.nanoTime() - start >= 150 * 1000000L);
+    }
+
+    @Test
+    public void realTimeReplayResetsTimeBaseBetweenSessions() throws Exception {
+        GattSessionRecorder first = new GattSessionRecorder(dir, SEGMENT_SIZE, 100);
+        record(first, GattSessionRecorder.EVENT_NOTIFY, 0, DATA, 0, null);
+        first.close();
+        Thread.sleep(500);
+        GattSessionRecorder second = new GattSessionRecorder(dir, SEGMENT_SIZE, 100);
+        record(second, GattSessionRecorder.EVENT_NOTIFY, 0, DATA, 1, null);
+        second.close();
+
+        long start = System.nanoTime();
+        List<Object[]> events = replay(true);
+        // 两次录制之间的空档不回放
+        assertTrue(System.nanoTime() - start < 250 * 1000000L);
+        assertEquals(2, events.size());
+        assertEquals(0, events.get(0)[5]);
+        assertEquals(1, events.get(1)[5]);
+    }
+
+    /**
+     * 下一个文件在后台准备，没准备好时记录会被丢弃，等一下重试
+     */
+    private static void record(GattSessionRecorder recorder, int event, long address, UUID uuid,
+                               int arg, byte[] value) throws InterruptedException {
+        long dropped = recorder.getDroppedEvents();
+        for (int attempt = 0; attempt < 200; attempt++) {
+            recorder.record(event, address, uuid, 0, arg, value);
+            if (recorder.getDroppedEvents() == dropped) {
+                return;
+            }
+            dropped = recorder.getDroppedEvents();
+            Thread.sleep(5);
+        }
+        throw new AssertionError("spare segment never became ready");
+    }
+
+    private List<Object[]> replay(boolean realTime) throws Exception {
+        final List<Object[]> events = new ArrayList<>();
+        long count = new GattSessionReplayer(dir, realTime).replay(new GattSessionReplayer.EventListener() {
+            @Override
+            public void onEvent(int event, long timeNanos, String address, UUID uuid, int status, int arg,
+                                byte[] value) {
+                events.add(new Object[]{event, timeNanos, address, uuid, status, arg, value});
+            }
+        });
+        assertEquals(events.size(), count);
+        return events;
+    }
+
+    private static byte[] value(int seed, int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (seed * 31 + i);
+        }
+        return value;
+    }
+}
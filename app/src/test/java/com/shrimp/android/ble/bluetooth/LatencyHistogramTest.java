@@ -0,0 +1,90 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 延迟直方图：桶边界连续、相对误差，分位数和最大最小值
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() throws Exception {
+        for (long v = 0; v < 64; v++) {
+            assertEquals(v, LatencyHistogram.indexOf(v));
+            assertEquals(v, LatencyHistogram.upperBoundOf((int) v));
+        }
+    }
+
+    @Test
+    public void bucketBoundariesAreContiguous() throws Exception {
+        int last = LatencyHistogram.indexOf((1L << 36) - 1);
+        for (int i = 1; i <= last; i++) {
+            long lower = LatencyHistogram.upperBoundOf(i - 1) + 1;
+            long upper = LatencyHistogram.upperBoundOf(i);
+            assertTrue(upper >= lower);
+            assertEquals(i, LatencyHistogram.indexOf(lower));
+            assertEquals(i, LatencyHistogram.indexOf(upper));
+            // 64以上桶宽不超过下界的1/32
+            assertTrue(i < 64 || (upper - lower + 1) * 32 <= lower);
+        }
+        assertEquals(64, LatencyHistogram.indexOf(64));
+        assertEquals(64, LatencyHistogram.indexOf(65));
+        assertEquals(65, LatencyHistogram.indexOf(66));
+        assertEquals(96, LatencyHistogram.indexOf(128));
+        assertEquals(131, LatencyHistogram.upperBoundOf(96));
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 1e-9);
+        assertEquals(1, snapshot.getValueAtPercentile(0));
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+        assertWithin(500, snapshot.getValueAtPercentile(50));
+        assertWithin(990, snapshot.getValueAtPercentile(99));
+        // 分位数取桶上界，不会小于实际值
+        assertTrue(snapshot.getValueAtPercentile(50) >= 500);
+    }
+
+    @Test
+    public void ignoresNegativeAndClampsHuge() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getCount());
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals((1L << 36) - 1, snapshot.getMax());
+        assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void emptyAndReset() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram.Snapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getMin());
+        assertEquals(0, empty.getValueAtPercentile(99));
+        assertEquals(0, empty.getMean(), 0);
+
+        histogram.recordNanos(2500000);
+        assertEquals(2500, histogram.snapshot().getMax());
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected) * 32 <= expected);
+    }
+}
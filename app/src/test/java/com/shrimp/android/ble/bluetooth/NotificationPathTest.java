@@ -0,0 +1,84 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 通知路径：直接分发、按特征重组，以及事件回收重用
+ */
+public class NotificationPathTest {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final UUID DATA = UUID.fromString("0000ffe4-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER = UUID.fromString("0000ffe5-0000-1000-8000-00805f9b34fb");
+
+    private final List<UUID> uuids = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private GattMetrics metrics;
+    private NotificationPath path;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new GattMetrics();
+        path = new NotificationPath(ADDRESS, metrics.device(ADDRESS), new NotificationPath.Sink() {
+            @Override
+            public void onData(String address, UUID uuid, byte[] value) {
+                assertEquals(ADDRESS, address);
+                uuids.add(uuid);
+                values.add(value);
+            }
+        });
+    }
+
+    @Test
+    public void deliversValueUnchanged() throws Exception {
+        byte[] value = {1, 2, 3};
+        path.deliver(path.onNotification(DATA, value, null));
+        assertEquals(1, values.size());
+        assertSame(DATA, uuids.get(0));
+        assertSame(value, values.get(0));
+    }
+
+    @Test
+    public void recyclesDeliveredEvents() throws Exception {
+        NotificationPath.Event first = path.onNotification(DATA, new byte[1], null);
+        path.deliver(first);
+        NotificationPath.Event second = path.onNotification(OTHER, new byte[2], null);
+        assertSame(first, second);
+        path.deliver(second);
+        assertSame(OTHER, uuids.get(1));
+        assertEquals(2, values.get(1).length);
+    }
+
+    @Test
+    public void reassemblesOnlyConfiguredCharacteristic() throws Exception {
+        path.setFrameReassembler(DATA, new FrameReassembler(0, 2, true, 0, 512));
+        // 2字节长度 + 3字节内容，分两包到达
+        path.deliver(path.onNotification(DATA, new byte[]{3, 0, 7}, null));
+        path.deliver(path.onNotification(OTHER, new byte[]{9}, null));
+        assertEquals(1, values.size());
+        path.deliver(path.onNotification(DATA, new byte[]{8, 9}, null));
+        assertEquals(2, values.size());
+        assertSame(OTHER, uuids.get(0));
+        assertSame(DATA, uuids.get(1));
+        assertArrayEquals(new byte[]{3, 0, 7, 8, 9}, values.get(1));
+    }
+
+    @Test
+    public void resetDropsPartialFrame() throws Exception {
+        path.setFrameReassembler(DATA, new FrameReassembler(0, 2, true, 0, 512));
+        path.deliver(path.onNotification(DATA, new byte[]{3, 0, 7}, null));
+        path.reset();
+        path.deliver(path.onNotification(DATA, new byte[]{1, 0, 5}, null));
+        assertEquals(1, values.size());
+        assertArrayEquals(new byte[]{1, 0, 5}, values.get(0));
+    }
+}
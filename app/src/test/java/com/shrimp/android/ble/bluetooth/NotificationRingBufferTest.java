@@ -0,0 +1,131 @@
+package com.shrimp.android.ble.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 环形缓冲区：容量取整、绕回、满和超长时丢弃、多生产者不丢不重
+ */
+public class NotificationRingBufferTest {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final UUID DATA = UUID.fromString("0000ffe4-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() throws Exception {
+        assertEquals(1, new NotificationRingBuffer(1, 4).getCapacity());
+        assertEquals(8, new NotificationRingBuffer(5, 4).getCapacity());
+        assertEquals(8, new NotificationRingBuffer(8, 4).getCapacity());
+    }
+
+    @Test
+    public void wrapsAroundInOrder() throws Exception {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(4, 4);
+        int next = 0;
+        // 写读交错，序号多次越过容量
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(buffer.publish(ADDRESS, DATA, new byte[]{(byte) (round * 3 + i)}));
+            }
+            NotificationRingBuffer.Slot slot;
+            while ((slot = buffer.poll()) != null) {
+                assertEquals(1, slot.getLength());
+                assertEquals((byte) next++, slot.getData()[0]);
+                assertSame(DATA, slot.getUuid());
+                assertEquals(ADDRESS, slot.getAddress());
+                buffer.release(slot);
+            }
+        }
+        assertEquals(30, next);
+        assertEquals(0, buffer.getOverflowCount());
+    }
+
+    @Test
+    public void dropsWhenFullUntilReleased() throws Exception {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(2, 4);
+        assertTrue(buffer.publish(ADDRESS, DATA, new byte[]{1}));
+        assertTrue(buffer.publish(ADDRESS, DATA, new byte[]{2}));
+        assertFalse(buffer.publish(ADDRESS, DATA, new byte[]{3}));
+        assertEquals(1, buffer.getOverflowCount());
+
+        // 取出但还没归还的槽位不能被覆盖
+        NotificationRingBuffer.Slot slot = buffer.poll();
+        assertFalse(buffer.publish(ADDRESS, DATA, new byte[]{3}));
+        buffer.release(slot);
+        assertTrue(buffer.publish(ADDRESS, DATA, new byte[]{3}));
+
+        assertEquals(2, buffer.poll().getData()[0]);
+        assertEquals(2, buffer.drain(new NotificationRingBuffer.SlotHandler() {
+            @Override
+            public void onSlot(NotificationRingBuffer.Slot slot) {
+            }
+        }, Integer.MAX_VALUE));
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void rejectsOversizeAndAcceptsEmpty() throws Exception {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(2, 4);
+        assertFalse(buffer.publish(ADDRESS, DATA, new byte[5]));
+        assertEquals(1, buffer.getOversizeCount());
+        assertTrue(buffer.publish(ADDRESS, DATA, null));
+        assertEquals(0, buffer.poll().getLength());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releaseOutOfOrderFails() throws Exception {
+        NotificationRingBuffer buffer = new NotificationRingBuffer(2, 4);
+        buffer.publish(ADDRESS, DATA, new byte[]{1});
+        NotificationRingBuffer.Slot slot = buffer.poll();
+        buffer.release(slot);
+        buffer.release(slot);
+    }
+
+    @Test
+    public void concurrentProducersLoseNothing() throws Exception {
+        final NotificationRingBuffer buffer = new NotificationRingBuffer(64, 8);
+        final int producers = 4;
+        final int perProducer = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final byte id = (byte) p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] value = {id};
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.publish(ADDRESS, DATA, value)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        final int[] counts = new int[producers];
+        NotificationRingBuffer.SlotHandler handler = new NotificationRingBuffer.SlotHandler() {
+            @Override
+            public void onSlot(NotificationRingBuffer.Slot slot) {
+                counts[slot.getData()[0]]++;
+            }
+        };
+        int total = 0;
+        while (total < producers * perProducer) {
+            total += buffer.drain(handler, Integer.MAX_VALUE);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int count : counts) {
+            assertEquals(perProducer, count);
+        }
+        assertNull(buffer.poll());
+    }
+}
@@ -0,0 +1,241 @@
+package com.shrimp.android.ble.benchmark;
+
+import com.shrimp.android.ble.bluetooth.Checksum;
+import com.shrimp.android.ble.bluetooth.FrameEncoder;
+import com.shrimp.android.ble.bluetooth.FrameReassembler;
+import com.shrimp.android.ble.bluetooth.FrameSchema;
+import com.shrimp.android.ble.bluetooth.FrameView;
+import com.shrimp.android.ble.bluetooth.GattMetrics;
+import com.shrimp.android.ble.bluetooth.GattSessionRecorder;
+import com.shrimp.android.ble.bluetooth.NotificationDispatcher;
+import com.shrimp.android.ble.bluetooth.NotificationPath;
+import com.shrimp.android.ble.bluetooth.NotificationRingBuffer;
+import com.shrimp.android.ble.bluetooth.NotificationRouter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * 项目名称：BluetoothDemo
+ * 包名称： com.shrimp.android.ble.benchmark
+ * 类描述： 通知热路径的基准测试：完整路径和各个步骤（复制、分发、环形缓冲、分包重组、解码）分开测，
+ *          回归时可以看出是哪一步变慢或开始分配内存。完整路径调用的是连接里同一个NotificationPath和
+ *          BluetoothLeClass里同一个NotificationRouter，只是省掉了binder线程到连接线程的Handler转发
+ * author: ywq
+ * 创建时间：2017/2/4
+ */
+@State(Scope.Thread)
+public class NotificationPathBenchmark {
+
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final UUID DATA_UUID = UUID.fromString("0000ffe4-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * 默认MTU下20字节，协商到247后244字节
+     */
+    @Param({"20", "244"})
+    public int payloadSize;
+
+    /**
+     * 同一特征的订阅者数量
+     */
+    @Param({"1", "4"})
+    public int listenerCount;
+
+    private NotificationRouter router;
+    private NotificationPath path;
+    private NotificationPath reassemblingPath;
+    private GattSessionRecorder recorder;
+    private File recordDir;
+    private NotificationDispatcher dispatcher;
+    private NotificationRingBuffer ringBuffer;
+    private FrameReassembler reassembler;
+    private byte[] payload;
+    private byte[][] fragments;
+    private FrameView view;
+    private byte[] frame;
+    private int speedField;
+    private int voltageField;
+    private int modeField;
+    private Sink sink;
+
+    /**
+     * 订阅者只累加长度，防止分发被优化掉
+     */
+    static final class Sink implements NotificationDispatcher.Listener, NotificationRingBuffer.SlotHandler,
+            FrameReassembler.FrameListener {
+        long bytes;
+
+        @Override
+        public void onCharacteristicData(String address, UUID uuid, byte[] value) {
+            bytes += value.length;
+        }
+
+        @Override
+        public void onSlot(NotificationRingBuffer.Slot slot) {
+            bytes += slot.getLength();
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            bytes += length;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        sink = new Sink();
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        // 分发器会去重，每个订阅者用单独的实例
+        dispatcher = new NotificationDispatcher();
+        for (int i = 0; i < listenerCount; i++) {
+            dispatcher.register(DATA_UUID, i == 0 ? sink : new Sink());
+        }
+        ringBuffer = new NotificationRingBuffer(1024, 256);
+        GattMetrics metrics = new GattMetrics();
+        router = new NotificationRouter(dispatcher);
+        path = new NotificationPath(ADDRESS, metrics.device(ADDRESS), router);
+        recordDir = Files.createTempDirectory("gatt-bench").toFile();
+        recorder = new GattSessionRecorder(recordDir);
+
+        // 一帧 = 2字节长度 + payload，按20字节一包分片
+        byte[] framed = new byte[payloadSize + 2];
+        framed[0] = (byte) payloadSize;
+        framed[1] = (byte) (payloadSize >>> 8);
+        System.arraycopy(payload, 0, framed, 2, payloadSize);
+        int count = (framed.length + 19) / 20;
+        fragments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            fragments[i] = Arrays.copyOfRange(framed, i * 20, Math.min(framed.length, i * 20 + 20));
+        }
+        reassembler = new FrameReassembler(0, 2, true, 0, 512);
+        NotificationDispatcher frameDispatcher = new NotificationDispatcher();
+        frameDispatcher.register(DATA_UUID, sink);
+        reassemblingPath = new NotificationPath(ADDRESS, metrics.device(ADDRESS),
+                new NotificationRouter(frameDispatcher));
+        reassemblingPath.setFrameReassembler(DATA_UUID, new FrameReassembler(0, 2, true, 0, 512));
+
+        FrameSchema schema = new FrameSchema.Builder()
+                .constant("head", FrameSchema.TYPE_UINT8, 0xAA)
+                .int16("speed")
+                .uint16("voltage")
+                .uint8("flags")
+                .bits("mode", "flags", 1, 3)
+                .float32("angle")
+                .checksum(Checksum.SUM8, 1)
+                .build();
+        speedField = schema.indexOf("speed");
+        voltageField = schema.indexOf("voltage");
+        modeField = schema.indexOf("mode");
+        frame = new FrameEncoder(schema)
+                .setInt(speedField, -120)
+                .setInt(voltageField, 42000)
+                .setInt(modeField, 3)
+                .setFloat(schema.indexOf("angle"), 1.5f)
+                .encode();
+        view = new FrameView(schema);
+    }
+
+    @TearDown
+    public void tearDown() {
+        recorder.close();
+        File[] files = recordDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        recordDir.delete();
+    }
+
+    /**
+     * 一条通知从回调到订阅者的完整路径：统计、跟踪，转到连接线程后分发。
+     * 每次通知系统都会给出新的数组，这里同样复制一份
+     */
+    @Benchmark
+    public long notificationPath() {
+        path.deliver(path.onNotification(DATA_UUID, payload.clone(), null));
+        return sink.bytes;
+    }
+
+    /**
+     * 完整路径，同时录制会话
+     */
+    @Benchmark
+    public long notificationPathRecording() {
+        path.deliver(path.onNotification(DATA_UUID, payload.clone(), recorder));
+        return sink.bytes;
+    }
+
+    /**
+     * 完整路径，同时写入环形缓冲并由消费者取走
+     */
+    @Benchmark
+    public long notificationPathWithRingBuffer() {
+        router.setRingBuffer(ringBuffer);
+        path.deliver(path.onNotification(DATA_UUID, payload.clone(), null));
+        ringBuffer.drain(sink, Integer.MAX_VALUE);
+        router.setRingBuffer(null);
+        return sink.bytes;
+    }
+
+    /**
+     * 分片的通知经过重组后分发，每次操作是一整帧
+     */
+    @Benchmark
+    public long reassembledFramePath() {
+        for (byte[] fragment : fragments) {
+            reassemblingPath.deliver(reassemblingPath.onNotification(DATA_UUID, fragment.clone(), null));
+        }
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public byte[] payloadCopy() {
+        return payload.clone();
+    }
+
+    @Benchmark
+    public long dispatch() {
+        dispatcher.dispatch(ADDRESS, DATA_UUID, payload);
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public int ringBufferPublishDrain() {
+        ringBuffer.publish(ADDRESS, DATA_UUID, payload);
+        return ringBuffer.drain(sink, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public long reassemble() {
+        for (byte[] fragment : fragments) {
+            reassembler.feed(fragment, 0, fragment.length, sink);
+        }
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public void frameDecode(Blackhole blackhole) {
+        if (view.wrap(frame)) {
+            blackhole.consume(view.getInt(speedField));
+            blackhole.consume(view.getInt(voltageField));
+            blackhole.consume(view.getInt(modeField));
+        }
+    }
+}